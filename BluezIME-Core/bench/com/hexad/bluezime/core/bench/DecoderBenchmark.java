@@ -0,0 +1,327 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.hexad.bluezime.core.BGP100Decoder;
+import com.hexad.bluezime.core.GameStopDecoder;
+import com.hexad.bluezime.core.HIDKeyboardDecoder;
+import com.hexad.bluezime.core.HIDipegaDecoder;
+import com.hexad.bluezime.core.InputDecoder;
+import com.hexad.bluezime.core.InputEventSink;
+import com.hexad.bluezime.core.InputRingBuffer;
+import com.hexad.bluezime.core.PhonejoyDecoder;
+import com.hexad.bluezime.core.WiimoteDecoder;
+import com.hexad.bluezime.core.ZeemoteDecoder;
+import com.hexad.bluezime.core.iCadeDecoder;
+import com.hexad.bluezime.core.iControlPadDecoder;
+
+//Measures the time and the memory allocated per report for each decoder,
+// by feeding the synthetic streams from ReportStreams through the same
+// read/parse/consume loop that RfcommReader.run() uses.
+//
+//Run it on a desktop JVM:
+//  javac -d out $(find src bench -name '*.java')
+//  java -cp out com.hexad.bluezime.core.bench.DecoderBenchmark [-reports n] [-chunk n] [-rounds n] [name ...]
+//
+//Allocation is read from the HotSpot thread allocation counter, and shows as n/a on other JVMs
+public class DecoderBenchmark {
+
+	//Defaults for the command line options
+	private static final int DEFAULT_REPORTS = 1000000;
+	private static final int DEFAULT_CHUNK = 64;
+	private static final int DEFAULT_ROUNDS = 5;
+
+	//The number of distinct reports in each stream, the benchmark cycles through them
+	private static final int STREAM_REPORTS = 4096;
+
+	//Same sizes as RfcommReader uses
+	private static final int INPUT_BUFFER_SIZE = 0x100;
+	private static final int MAX_INPUT_BUFFER_SIZE = 0x4000;
+
+	private static final com.sun.management.ThreadMXBean THREADS = getThreadBean();
+
+	//Creates a fresh decoder, so each round starts from the same state
+	private interface DecoderFactory {
+		InputDecoder create(InputEventSink sink) throws Exception;
+	}
+
+	private static class Case {
+		public final ReportStream stream;
+		public final DecoderFactory factory;
+
+		public Case(ReportStream stream, DecoderFactory factory) {
+			this.stream = stream;
+			this.factory = factory;
+		}
+	}
+
+	//Counts the events, and keeps a sum of the values so the work cannot be optimized away
+	private static class CountingSink implements InputEventSink {
+		public long events;
+		public long warnings;
+		public long checksum;
+
+		@Override
+		public void sendKeypress(int action, int key, int modifiers, boolean emulated) {
+			events++;
+			checksum += action + key + modifiers;
+		}
+
+		@Override
+		public void sendDirectionalChange(int direction, int value) {
+			events++;
+			checksum += direction + value;
+		}
+
+		@Override
+		public void sendAccelerometerChange(int axis, int value) {
+			events++;
+			checksum += axis + value;
+		}
+
+		@Override
+		public void onDecodeWarning(String message) {
+			warnings++;
+		}
+	}
+
+	//Returns the reports in reads of at most chunk bytes, starting over at the end.
+	//Like the Bluetooth stack, a read holds whole reports, unless a report is larger than
+	// the space in the buffer, and a read never crosses the end of the data
+	private static class CyclingInputStream extends InputStream {
+		private final byte[] m_data;
+		private final int[] m_reportEnds;
+		private final int m_chunk;
+		private int m_position = 0;
+		private int m_report = 0;
+
+		public CyclingInputStream(byte[] data, int[] reportEnds, int chunk) {
+			m_data = data;
+			m_reportEnds = reportEnds;
+			m_chunk = chunk;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int limit = Math.min(length, m_chunk);
+			int end = m_position;
+			while (m_report < m_reportEnds.length && m_reportEnds[m_report] - m_position <= limit)
+				end = m_reportEnds[m_report++];
+
+			//The next report does not fit, so it is split
+			if (end == m_position)
+				end = m_position + Math.min(limit, m_reportEnds[m_report] - m_position);
+
+			int count = end - m_position;
+			System.arraycopy(m_data, m_position, buffer, offset, count);
+
+			m_position = end;
+			if (m_position == m_data.length) {
+				m_position = 0;
+				m_report = 0;
+			}
+
+			return count;
+		}
+	}
+
+	//The Wiimote writes commands to the control channel, which are ignored here
+	private static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int reports = DEFAULT_REPORTS;
+		int chunk = DEFAULT_CHUNK;
+		int rounds = DEFAULT_ROUNDS;
+		List<String> filter = new ArrayList<String>();
+
+		for(int i = 0; i < args.length; i++) {
+			if (args[i].equals("-reports"))
+				reports = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-chunk"))
+				chunk = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-rounds"))
+				rounds = Integer.parseInt(args[++i]);
+			else
+				filter.add(args[i]);
+		}
+
+		System.out.println(String.format("%d reports per round, %d rounds, reads of %d bytes", reports, rounds, chunk));
+		System.out.println(String.format("%-18s %12s %12s %12s %12s", "decoder", "ns/report", "best ns", "bytes/report", "events/report"));
+
+		for(Case c : getCases()) {
+			if (filter.size() > 0 && !filter.contains(c.stream.name))
+				continue;
+
+			//The first round warms up the JIT and is not reported
+			run(c, reports, chunk);
+
+			double[] ns = new double[rounds];
+			double bytes = 0;
+			double events = 0;
+			long warnings = 0;
+			for(int i = 0; i < rounds; i++) {
+				double[] res = run(c, reports, chunk);
+				ns[i] = res[0];
+				bytes += res[1];
+				events = res[2];
+				warnings += (long)res[3];
+			}
+
+			Arrays.sort(ns);
+			System.out.println(String.format("%-18s %12.1f %12.1f %12s %12.2f%s",
+				c.stream.name,
+				ns[ns.length / 2],
+				ns[0],
+				THREADS == null ? "n/a" : String.format("%.2f", bytes / rounds),
+				events,
+				warnings == 0 ? "" : "  (" + warnings + " warnings)"));
+		}
+	}
+
+	//Runs a single round, and returns ns/report, bytes/report, events/report and the warning count
+	private static double[] run(Case c, int reports, int chunk) throws Exception {
+		CountingSink sink = new CountingSink();
+		InputDecoder decoder = c.factory.create(sink);
+
+		//The setup is parsed as a single read
+		if (c.stream.setup.length > 0)
+			feed(decoder, new InputRingBuffer(INPUT_BUFFER_SIZE, MAX_INPUT_BUFFER_SIZE), new CyclingInputStream(c.stream.setup, new int[] { c.stream.setup.length }, c.stream.setup.length), c.stream.setup.length);
+
+		int passes = Math.max(1, reports / c.stream.reports);
+		long total = (long)passes * c.stream.reports;
+		InputRingBuffer buffer = new InputRingBuffer(INPUT_BUFFER_SIZE, MAX_INPUT_BUFFER_SIZE);
+		InputStream input = new CyclingInputStream(c.stream.data, c.stream.reportEnds, chunk);
+		sink.events = 0;
+
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+
+		feed(decoder, buffer, input, (long)passes * c.stream.data.length);
+
+		long elapsed = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+
+		//Keep the checksum alive
+		if (sink.checksum == Long.MIN_VALUE)
+			System.out.println();
+
+		return new double[] { elapsed / (double)total, allocated / (double)total, sink.events / (double)total, sink.warnings };
+	}
+
+	//The same loop as RfcommReader.run(), without the error handling
+	private static void feed(InputDecoder decoder, InputRingBuffer buffer, InputStream input, long bytes) throws IOException {
+		while (bytes > 0) {
+			if (buffer.isFull() && !buffer.grow())
+				buffer.clear();
+
+			bytes -= buffer.read(input);
+
+			int unparsed = decoder.parseInputData(buffer);
+			if (unparsed < 0)
+				unparsed = 0;
+
+			buffer.consume(buffer.size() - unparsed);
+		}
+	}
+
+	private static List<Case> getCases() {
+		List<Case> cases = new ArrayList<Case>();
+
+		cases.add(new Case(ReportStreams.zeemote(STREAM_REPORTS), new DecoderFactory() {
+			public InputDecoder create(InputEventSink sink) { return new ZeemoteDecoder(sink); }
+		}));
+		cases.add(new Case(ReportStreams.bgp100(STREAM_REPORTS), new DecoderFactory() {
+			public InputDecoder create(InputEventSink sink) { return new BGP100Decoder(sink); }
+		}));
+		cases.add(new Case(ReportStreams.phonejoy(STREAM_REPORTS), new DecoderFactory() {
+			public InputDecoder create(InputEventSink sink) { return new PhonejoyDecoder(sink); }
+		}));
+		cases.add(new Case(ReportStreams.iControlPad(STREAM_REPORTS), new DecoderFactory() {
+			public InputDecoder create(InputEventSink sink) { return new iControlPadDecoder(sink); }
+		}));
+		cases.add(new Case(ReportStreams.gameStop(STREAM_REPORTS), new DecoderFactory() {
+			public InputDecoder create(InputEventSink sink) { return new GameStopDecoder(sink); }
+		}));
+		cases.add(new Case(ReportStreams.hidKeyboard(STREAM_REPORTS), new DecoderFactory() {
+			public InputDecoder create(InputEventSink sink) { return new HIDKeyboardDecoder(sink); }
+		}));
+		cases.add(new Case(ReportStreams.iCade(STREAM_REPORTS), new DecoderFactory() {
+			public InputDecoder create(InputEventSink sink) { return new iCadeDecoder(sink); }
+		}));
+		cases.add(new Case(ReportStreams.ipega(STREAM_REPORTS), new DecoderFactory() {
+			public InputDecoder create(InputEventSink sink) { return new HIDipegaDecoder(sink); }
+		}));
+
+		//The Wiimote streams all include accelerometer data
+		DecoderFactory wiimote = new DecoderFactory() {
+			public InputDecoder create(InputEventSink sink) throws Exception {
+				WiimoteDecoder decoder = new WiimoteDecoder(sink);
+				decoder.start(new NullOutputStream());
+				decoder.request_UseAccelerometer(true);
+				return decoder;
+			}
+		};
+
+		cases.add(new Case(ReportStreams.wiimote(STREAM_REPORTS), wiimote));
+		cases.add(new Case(ReportStreams.wiimoteNunchuck(STREAM_REPORTS), wiimote));
+		cases.add(new Case(ReportStreams.wiimoteClassic(STREAM_REPORTS), wiimote));
+
+		return cases;
+	}
+
+	private static com.sun.management.ThreadMXBean getThreadBean() {
+		try {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+			if (!bean.isThreadAllocatedMemorySupported())
+				return null;
+
+			bean.setThreadAllocatedMemoryEnabled(true);
+			return bean;
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+
+	private static long allocatedBytes() {
+		if (THREADS == null)
+			return 0;
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
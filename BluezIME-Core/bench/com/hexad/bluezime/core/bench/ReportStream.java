@@ -0,0 +1,46 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core.bench;
+
+//A synthetic input stream for a single decoder, as it would be read from the socket
+public class ReportStream {
+
+	//The name shown in the benchmark output
+	public final String name;
+
+	//Data that is parsed once before measuring, used to bring the decoder into a state,
+	// such as having a Wiimote extension connected, may be empty
+	public final byte[] setup;
+
+	//The reports, the benchmark cycles through these
+	public final byte[] data;
+
+	//The index in data just after each report, the socket delivers whole reports
+	public final int[] reportEnds;
+
+	//The number of reports in data
+	public final int reports;
+
+	public ReportStream(String name, byte[] setup, byte[] data, int[] reportEnds) {
+		this.name = name;
+		this.setup = setup;
+		this.data = data;
+		this.reportEnds = reportEnds;
+		this.reports = reportEnds.length;
+	}
+}
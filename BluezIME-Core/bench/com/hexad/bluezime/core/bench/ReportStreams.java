@@ -0,0 +1,503 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+//Builds synthetic report streams for each decoder.
+//The streams mix button and analog traffic the way a player would,
+// buttons change now and then while the sticks move in small steps
+public class ReportStreams {
+
+	//The random generator is seeded, so every run decodes the same data
+	private static final long SEED = 0x5eed;
+
+	//Zeemote message types
+	private static final byte ZEEMOTE_MAGIC = (byte)0xA1;
+	private static final byte ZEEMOTE_BUTTONS = 0x07;
+	private static final byte ZEEMOTE_DIRECTION = 0x08;
+
+	//BGP100 codes for button down and up, same order in both
+	private static final int[] BGP100_DOWN = new int[] { 0xb649, 0xb54a, 0xb748, 0xbe41, 0xbb44, 0xbc43, 0xba45, 0xbd42, 0xb946, 0xb847, 0xb44b };
+	private static final int[] BGP100_UP = new int[] { 0xf609, 0xf50a, 0xf708, 0xfe01, 0xfb04, 0xfc03, 0xfa05, 0xfd02, 0xf906, 0xf807, 0xf40b };
+
+	//The extra Phonejoy buttons
+	private static final int[] PHONEJOY_DOWN = new int[] { 0xb24e, 0xb14d, 0xb34c };
+	private static final int[] PHONEJOY_UP = new int[] { 0xf20e, 0xf10d, 0xf30c };
+
+	//iCade scan codes for button down and up, same order in both
+	private static final int[] ICADE_DOWN = new int[] { 0x1a, 0x1b, 0x04, 0x07, 0x1c, 0x18, 0x0c, 0x12, 0x0b, 0x0d, 0x0e, 0x0f };
+	private static final int[] ICADE_UP = new int[] { 0x08, 0x1d, 0x14, 0x06, 0x17, 0x09, 0x10, 0x0a, 0x15, 0x11, 0x13, 0x19 };
+
+	//Wiimote extension ids, as returned when reading register 0xfa
+	private static final byte[] WIIMOTE_NUNCHUCK_ID = new byte[] { 0x00, 0x00, (byte)0xA4, 0x20, 0x00, 0x00 };
+	private static final byte[] WIIMOTE_CLASSIC_ID = new byte[] { 0x00, 0x00, (byte)0xA4, 0x20, 0x01, 0x01 };
+
+	private static final byte[] NO_SETUP = new byte[0];
+
+	//Collects the reports and keeps track of where each one ends
+	private static class StreamBuilder extends ByteArrayOutputStream {
+		private final List<Integer> m_ends = new ArrayList<Integer>();
+
+		//Marks the start of a new report, which ends the previous one
+		public void nextReport() {
+			if (size() > 0)
+				m_ends.add(size());
+		}
+
+		public ReportStream build(String name, byte[] setup) {
+			nextReport();
+
+			int[] ends = new int[m_ends.size()];
+			for(int i = 0; i < ends.length; i++)
+				ends[i] = m_ends.get(i);
+
+			return new ReportStream(name, setup, toByteArray(), ends);
+		}
+	}
+
+	public static ReportStream zeemote(int count) {
+		Random r = new Random(SEED);
+		StreamBuilder s = new StreamBuilder();
+		boolean[] buttons = new boolean[12];
+		int x = 0, y = 0;
+
+		for(int i = 0; i < count; i++) {
+			s.nextReport();
+
+			if (r.nextInt(4) == 0) {
+				buttons[r.nextInt(buttons.length)] ^= true;
+
+				//The controller reports up to four pressed buttons, unused slots are out of range
+				s.write(6);
+				s.write(ZEEMOTE_MAGIC);
+				s.write(ZEEMOTE_BUTTONS);
+				int slots = 4;
+				for(int j = 0; j < buttons.length && slots > 0; j++)
+					if (buttons[j]) {
+						s.write(j);
+						slots--;
+					}
+				while(slots-- > 0)
+					s.write(0xfe);
+			} else {
+				x = walk(r, x, -127, 127);
+				y = walk(r, y, -127, 127);
+
+				s.write(5);
+				s.write(ZEEMOTE_MAGIC);
+				s.write(ZEEMOTE_DIRECTION);
+				s.write(0);
+				s.write(x);
+				s.write(y);
+			}
+		}
+
+		return s.build("zeemote", NO_SETUP);
+	}
+
+	public static ReportStream bgp100(int count) {
+		Random r = new Random(SEED);
+		StreamBuilder s = new StreamBuilder();
+		boolean[] buttons = new boolean[BGP100_DOWN.length];
+
+		for(int i = 0; i < count; i++) {
+			s.nextReport();
+			writeToggle(s, r, buttons, BGP100_DOWN, BGP100_UP);
+		}
+
+		return s.build("bgp100", NO_SETUP);
+	}
+
+	public static ReportStream phonejoy(int count) {
+		Random r = new Random(SEED);
+		StreamBuilder s = new StreamBuilder();
+		int[] down = concat(BGP100_DOWN, PHONEJOY_DOWN);
+		int[] up = concat(BGP100_UP, PHONEJOY_UP);
+		boolean[] buttons = new boolean[down.length];
+		int[] axes = new int[] { 0x7f, 0x7f, 0x7f, 0x7f };
+
+		for(int i = 0; i < count; i++) {
+			s.nextReport();
+
+			if (r.nextInt(4) == 0) {
+				writeToggle(s, r, buttons, down, up);
+			} else {
+				int axis = r.nextInt(axes.length);
+				axes[axis] = walk(r, axes[axis], 0, 0xff);
+
+				s.write(0xff);
+				s.write(0x11 + axis);
+				s.write(axes[axis]);
+			}
+		}
+
+		return s.build("phonejoy", NO_SETUP);
+	}
+
+	public static ReportStream iControlPad(int count) {
+		Random r = new Random(SEED);
+		StreamBuilder s = new StreamBuilder();
+		int[] axes = new int[4];
+		int buttons = 0;
+
+		for(int i = 0; i < count; i++) {
+			s.nextReport();
+
+			for(int j = 0; j < axes.length; j++) {
+				axes[j] = walk(r, axes[j], -127, 127);
+				s.write(axes[j]);
+			}
+
+			if (r.nextInt(4) == 0)
+				buttons ^= 1 << r.nextInt(16);
+
+			s.write(buttons >>> 8);
+			s.write(buttons);
+		}
+
+		return s.build("icp", NO_SETUP);
+	}
+
+	public static ReportStream gameStop(int count) {
+		Random r = new Random(SEED);
+		StreamBuilder s = new StreamBuilder();
+		int[] axes = new int[] { 0x80, 0x80, 0x80, 0x80 };
+		int buttons = 0;
+
+		for(int i = 0; i < count; i++) {
+			s.nextReport();
+
+			//Battery status is sent once in a while
+			if (i % 64 == 63) {
+				s.write(0xA1);
+				s.write(0xff);
+				for(int j = 0; j < 5; j++)
+					s.write(0);
+				continue;
+			}
+
+			if (r.nextInt(4) == 0)
+				buttons ^= 1 << (2 + r.nextInt(14));
+
+			s.write(0xA1);
+			s.write(0x01);
+			for(int j = 0; j < axes.length; j++) {
+				axes[j] = walk(r, axes[j], 0, 0xff);
+				s.write(axes[j]);
+			}
+			s.write(buttons >>> 8);
+			s.write(buttons);
+		}
+
+		return s.build("gamestop", NO_SETUP);
+	}
+
+	public static ReportStream hidKeyboard(int count) {
+		Random r = new Random(SEED);
+		StreamBuilder s = new StreamBuilder();
+		int[] keys = new int[2];
+		int modifiers = 0;
+		int extended = 0;
+
+		for(int i = 0; i < count; i++) {
+			s.nextReport();
+
+			//Media keys use the extended report
+			if (i % 32 == 31) {
+				extended ^= 1 << r.nextInt(24);
+
+				s.write(0xa1);
+				s.write(0x02);
+				s.write(extended >>> 16);
+				s.write(extended >>> 8);
+				s.write(extended);
+				continue;
+			}
+
+			//Typing, a key goes down or up, sometimes with shift held
+			int slot = r.nextInt(keys.length);
+			keys[slot] = keys[slot] == 0 ? 0x04 + r.nextInt(0x24) : 0;
+			if (r.nextInt(8) == 0)
+				modifiers ^= 0x02;
+
+			s.write(0xa1);
+			s.write(0x01);
+			s.write(modifiers);
+			s.write(0);
+			for(int j = 0; j < 6; j++)
+				s.write(j < keys.length ? keys[j] : 0);
+		}
+
+		return s.build("hidkeyboard", NO_SETUP);
+	}
+
+	public static ReportStream iCade(int count) {
+		Random r = new Random(SEED);
+		StreamBuilder s = new StreamBuilder();
+		boolean[] buttons = new boolean[ICADE_DOWN.length];
+
+		//The iCade sends a key for each change, followed by an empty report when the key is released
+		for(int i = 0; i < count; i++) {
+			s.nextReport();
+
+			int code = 0;
+			if (i % 2 == 0) {
+				int button = r.nextInt(buttons.length);
+				buttons[button] ^= true;
+				code = buttons[button] ? ICADE_DOWN[button] : ICADE_UP[button];
+			}
+
+			s.write(0xa1);
+			s.write(0x01);
+			s.write(0);
+			s.write(0);
+			s.write(code);
+			for(int j = 0; j < 5; j++)
+				s.write(0);
+		}
+
+		return s.build("icade", NO_SETUP);
+	}
+
+	public static ReportStream ipega(int count) {
+		Random r = new Random(SEED);
+		StreamBuilder s = new StreamBuilder();
+		int[] axes = new int[] { 0x80, 0x80, 0x80, 0x80 };
+		int dpad = 0x88;
+		int buttons = 0;
+
+		for(int i = 0; i < count; i++) {
+			s.nextReport();
+
+			if (r.nextInt(8) == 0)
+				dpad = dpad == 0x88 ? r.nextInt(8) : 0x88;
+			if (r.nextInt(4) == 0)
+				buttons ^= 1 << r.nextInt(16);
+
+			s.write(0xa1);
+			s.write(0x07);
+			for(int j = 0; j < axes.length; j++) {
+				axes[j] = walk(r, axes[j], 0, 0xff);
+				s.write(axes[j]);
+			}
+			s.write(dpad);
+			s.write(buttons >>> 8);
+			s.write(buttons);
+			s.write(0);
+		}
+
+		return s.build("ipega", NO_SETUP);
+	}
+
+	//Core buttons and accelerometer, the decoder must have the accelerometer enabled
+	public static ReportStream wiimote(int count) {
+		Random r = new Random(SEED);
+		StreamBuilder s = new StreamBuilder();
+		int[] accel = new int[] { 0x80, 0x80, 0x80 };
+		int buttons = 0;
+
+		for(int i = 0; i < count; i++) {
+			s.nextReport();
+
+			buttons = wiimoteButtons(r, buttons);
+
+			s.write(0xa1);
+			s.write(0x31);
+			s.write(buttons >>> 8);
+			s.write(buttons);
+			for(int j = 0; j < accel.length; j++) {
+				accel[j] = walk(r, accel[j], 0, 0xff);
+				s.write(accel[j]);
+			}
+		}
+
+		return s.build("wiimote", wiimoteCoreReport());
+	}
+
+	//Core buttons, accelerometer and a Nunchuck, the decoder must have the accelerometer enabled
+	public static ReportStream wiimoteNunchuck(int count) {
+		Random r = new Random(SEED);
+		StreamBuilder s = new StreamBuilder();
+		int[] accel = new int[] { 0x80, 0x80, 0x80 };
+		int[] stick = new int[] { 0x80, 0x80 };
+		int[] nunchuckAccel = new int[] { 0x80, 0x80, 0x80 };
+		int buttons = 0;
+		int nunchuckButtons = 0x03;
+
+		for(int i = 0; i < count; i++) {
+			s.nextReport();
+
+			buttons = wiimoteButtons(r, buttons);
+			if (r.nextInt(8) == 0)
+				nunchuckButtons ^= 1 << r.nextInt(2);
+
+			s.write(0xa1);
+			s.write(0x35);
+			s.write(buttons >>> 8);
+			s.write(buttons);
+			for(int j = 0; j < accel.length; j++) {
+				accel[j] = walk(r, accel[j], 0, 0xff);
+				s.write(accel[j]);
+			}
+
+			//The 16 extension bytes, the first 6 are used by the Nunchuck
+			for(int j = 0; j < stick.length; j++) {
+				stick[j] = walk(r, stick[j], 0x20, 0xe0);
+				s.write(stick[j]);
+			}
+			for(int j = 0; j < nunchuckAccel.length; j++) {
+				nunchuckAccel[j] = walk(r, nunchuckAccel[j], 0, 0xff);
+				s.write(nunchuckAccel[j]);
+			}
+			s.write(nunchuckButtons);
+			for(int j = 0; j < 10; j++)
+				s.write(0);
+		}
+
+		return s.build("wiimote-nunchuck", wiimoteExtensionSetup(WIIMOTE_NUNCHUCK_ID));
+	}
+
+	//Core buttons and a Classic Controller
+	public static ReportStream wiimoteClassic(int count) {
+		Random r = new Random(SEED);
+		StreamBuilder s = new StreamBuilder();
+		int[] sticks = new int[] { 31, 31, 15, 15 };
+		int buttons = 0;
+		int classicButtons = 0;
+
+		for(int i = 0; i < count; i++) {
+			s.nextReport();
+
+			buttons = wiimoteButtons(r, buttons);
+			if (r.nextInt(4) == 0)
+				classicButtons ^= 1 << r.nextInt(16);
+
+			for(int j = 0; j < sticks.length; j++)
+				sticks[j] = walk(r, sticks[j], 0, j < 2 ? 63 : 31);
+
+			s.write(0xa1);
+			s.write(0x32);
+			s.write(buttons >>> 8);
+			s.write(buttons);
+
+			//The 8 extension bytes, the sticks are packed into the first 3 bytes,
+			// and the buttons are reported inverted
+			s.write(((sticks[2] & 0x18) << 3) | sticks[0]);
+			s.write(((sticks[2] & 0x06) << 5) | sticks[1]);
+			s.write(((sticks[2] & 0x01) << 7) | sticks[3]);
+			s.write(0);
+			s.write(~classicButtons);
+			s.write(~classicButtons >>> 8);
+			s.write(0);
+			s.write(0);
+		}
+
+		return s.build("wiimote-classic", wiimoteExtensionSetup(WIIMOTE_CLASSIC_ID));
+	}
+
+	//All the streams, in the order they are reported
+	public static ReportStream[] all(int count) {
+		return new ReportStream[] {
+			zeemote(count),
+			bgp100(count),
+			phonejoy(count),
+			iControlPad(count),
+			gameStop(count),
+			hidKeyboard(count),
+			iCade(count),
+			ipega(count),
+			wiimote(count),
+			wiimoteNunchuck(count),
+			wiimoteClassic(count)
+		};
+	}
+
+	//A single report with no buttons pressed, which applies pending settings in the decoder
+	private static byte[] wiimoteCoreReport() {
+		return new byte[] { (byte)0xa1, 0x30, 0x00, 0x00 };
+	}
+
+	//The reports the Wiimote sends while an extension is detected:
+	// a status report with the extension flag set, the acknowledge for the
+	// two register writes, and the register read with the extension id
+	private static byte[] wiimoteExtensionSetup(byte[] extensionId) {
+		ByteArrayOutputStream s = new ByteArrayOutputStream();
+
+		s.write(wiimoteCoreReport(), 0, 4);
+
+		s.write(0xa1);
+		s.write(0x20);
+		s.write(new byte[] { 0x00, 0x00, 0x02, 0x00, 0x00, 0x60 }, 0, 6);
+
+		for(int i = 0; i < 2; i++) {
+			s.write(0xa1);
+			s.write(0x22);
+			s.write(new byte[] { 0x00, 0x00, 0x16, 0x00 }, 0, 4);
+		}
+
+		s.write(0xa1);
+		s.write(0x21);
+		s.write(0x00);
+		s.write(0x00);
+		s.write(((extensionId.length - 1) << 4));
+		s.write(0x00);
+		s.write(0xfa);
+		s.write(extensionId, 0, extensionId.length);
+		for(int i = extensionId.length; i < 16; i++)
+			s.write(0);
+
+		return s.toByteArray();
+	}
+
+	private static int wiimoteButtons(Random r, int buttons) {
+		if (r.nextInt(4) == 0)
+			buttons ^= 1 << r.nextInt(16);
+		return buttons;
+	}
+
+	//Presses or releases a random button, and writes the matching two byte code
+	private static void writeToggle(ByteArrayOutputStream s, Random r, boolean[] buttons, int[] down, int[] up) {
+		int button = r.nextInt(buttons.length);
+		buttons[button] ^= true;
+
+		int code = buttons[button] ? down[button] : up[button];
+		s.write(code >>> 8);
+		s.write(code);
+	}
+
+	//Moves an analog value a small step, and sometimes a large jump
+	private static int walk(Random r, int value, int min, int max) {
+		if (r.nextInt(16) == 0)
+			value = min + r.nextInt(max - min + 1);
+		else
+			value += r.nextInt(17) - 8;
+
+		return Math.max(min, Math.min(max, value));
+	}
+
+	private static int[] concat(int[] a, int[] b) {
+		int[] res = new int[a.length + b.length];
+		System.arraycopy(a, 0, res, 0, a.length);
+		System.arraycopy(b, 0, res, a.length, b.length);
+		return res;
+	}
+}
@@ -0,0 +1,135 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+import java.util.HashMap;
+
+//Decodes the MSI Chainpus BGP100 protocol, where each key press
+// and release is sent as a two byte code
+public class BGP100Decoder implements InputDecoder {
+
+	protected final InputEventSink m_sink;
+
+	protected HashMap<Integer, KeyAction> _lookup;
+
+	public BGP100Decoder(InputEventSink sink) {
+		m_sink = sink;
+
+		//TODO: It is possible to map all buttons by looking at
+		// the least significant 4 bits, and then use a
+		// 16 element integer array, instead of
+		// the HashMap and thus improve performance and
+		// reduce memory usage
+
+		_lookup = new HashMap<Integer, KeyAction>();
+
+		//A
+		_lookup.put(0xb649, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_A));
+		_lookup.put(0xf609, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_BUTTON_A));
+
+		//B
+		_lookup.put(0xb54a, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_B));
+		_lookup.put(0xf50a, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_BUTTON_B));
+
+		//C
+		_lookup.put(0xb748, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_C));
+		_lookup.put(0xf708, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_BUTTON_C));
+
+		//D
+		_lookup.put(0xbe41, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_X));
+		_lookup.put(0xfe01, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_BUTTON_X));
+
+		//Left
+		_lookup.put(0xbb44, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_DPAD_LEFT));
+		_lookup.put(0xfb04, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_DPAD_LEFT));
+
+		//Right
+		_lookup.put(0xbc43, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_DPAD_RIGHT));
+		_lookup.put(0xfc03, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_DPAD_RIGHT));
+
+		//Up
+		_lookup.put(0xba45, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_DPAD_UP));
+		_lookup.put(0xfa05, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_DPAD_UP));
+
+		//Down
+		_lookup.put(0xbd42, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_DPAD_DOWN));
+		_lookup.put(0xfd02, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_DPAD_DOWN));
+
+		//R
+		_lookup.put(0xb946, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_R1));
+		_lookup.put(0xf906, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_BUTTON_R1));
+
+		//L
+		_lookup.put(0xb847, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_L1));
+		_lookup.put(0xf807, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_BUTTON_L1));
+
+		//Start
+		_lookup.put(0xb44b, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_START));
+		_lookup.put(0xf40b, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_BUTTON_START));
+	}
+
+	@Override
+	public int parseInputData(InputRingBuffer data) {
+
+		int read = data.size();
+
+		if (read < 2)
+			return read;
+
+		int offset = 0;
+		int remaining = read;
+
+		while(remaining >= 2) {
+
+			//If the high bit is set in byte 0 and not in byte 1, we accept it
+			if (((data.get(offset) & 0x80) != 0) && ((data.get(offset + 1) & 0x80) == 0)) {
+
+				//TODO: This is actually for Phonejoy, not BGP100
+				if ((data.get(offset) & 0xff) == 0xff) {
+
+					//Make sure we have the next byte as well
+					if (remaining < 3)
+						return remaining;
+
+					handleAnalogValue(data.get(offset + 1), data.get(offset + 2));
+
+					offset += 3;
+					remaining -= 3;
+
+				} else {
+					int value = (data.get(offset) & 0xff) << 8 | (data.get(offset + 1) & 0xff);
+
+					KeyAction e = _lookup.get(value);
+					if (e != null)
+						m_sink.sendKeypress(e.action, e.keyCode, 0, false);
+
+					offset += 2;
+					remaining -= 2;
+				}
+			} else {
+				offset++;
+				remaining--;
+			}
+		}
+
+		return remaining;
+	}
+
+	protected void handleAnalogValue(int axis, int value) {
+	}
+}
@@ -1,12 +1,12 @@
 /*
  * Copyright (C) 2006 The Android Open Source Project
- *
+ * 
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- *
+ * 
  *      http://www.apache.org/licenses/LICENSE-2.0
- *
+ * 
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -24,9 +24,14 @@
  * 
  * */
 
-package com.hexad.bluezime;
+package com.hexad.bluezime.core;
 
 public class FutureKeyCodes {
+    /** Key action constant: the key has been pressed down. */
+    public static final int ACTION_DOWN             = 0;
+    /** Key action constant: the key has been released. */
+    public static final int ACTION_UP               = 1;
+
     /** Key code constant: Unknown key code. */
     public static final int KEYCODE_UNKNOWN         = 0;
     /** Key code constant: Soft Left key.
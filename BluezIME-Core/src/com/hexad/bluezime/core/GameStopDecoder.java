@@ -0,0 +1,161 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+//Decodes the GameStop/Samurai protocol, where each message holds
+// four analog values and a bitmap of the buttons
+public class GameStopDecoder implements InputDecoder {
+
+	private final byte MAGIC_NUMBER = (byte)0xA1;
+	private final byte MAGIC_NUMBER_MESSAGE = (byte)0x01;
+	private final byte MAGIC_NUMBER_HEADER = (byte)0xfe;
+	private final byte MAGIC_NUMBER_BATTERY= (byte)0xff;
+
+	private final int MESSAGE_LENGTH = 8;
+	private final int HEADER_LENGTH = 18;
+	private final int BATTERY_LENGTH = 7;
+
+	//The max value a nub can report
+	private static int ANALOG_NUB_MAX_VALUE = 127;
+	//How far the nub must be pressed for it to issue an emulated keypress
+	private static int ANALOG_NUB_THRESHOLD = ANALOG_NUB_MAX_VALUE / 2;
+
+	//This is the number of directions supported, hardcoded
+	private static final int SUPPORTED_DIRECTIONS = 8;
+
+	//This is the number of buttons supported, hardcoded
+	private static final int SUPPORTED_BUTTONS = 14;
+
+	//These three keep track of the last known state of buttons, directions and emulated direction-buttons
+	private boolean[] m_buttons = new boolean[SUPPORTED_BUTTONS];
+	private int[] m_directions = new int[SUPPORTED_DIRECTIONS / 2];
+	private boolean[] m_lastDirectionsKeys = new boolean[SUPPORTED_DIRECTIONS];
+
+	//These are buffers that are used to read/parse input data,
+	// they are reused to prevent re-allocation and garbage collections.
+	//If they have the wrong size, they will be re-allocated once
+	private int[] _directionValues = new int[SUPPORTED_DIRECTIONS / 2];
+
+	//This is the reason we only support 8 directions (and my device only has 4)
+	private static final int[] ANALOG_KEYCODES = new int[] {
+		FutureKeyCodes.KEYCODE_W, //Left knob right
+		FutureKeyCodes.KEYCODE_A, //Left knob left
+		FutureKeyCodes.KEYCODE_S, //Left knob down
+		FutureKeyCodes.KEYCODE_D,  //Left knob up
+
+		FutureKeyCodes.KEYCODE_6, //Right knob right
+		FutureKeyCodes.KEYCODE_4, //Right knob left
+		FutureKeyCodes.KEYCODE_5, //Right knob down
+		FutureKeyCodes.KEYCODE_8  //Right knob up
+	};
+
+	//Mapping of reported scan-codes to Android keypress values
+	private static final int[] KEYCODE_MAPPINGS = {
+		FutureKeyCodes.KEYCODE_BUTTON_1,  //Button 1
+		FutureKeyCodes.KEYCODE_BUTTON_2,  //Button 2
+		FutureKeyCodes.KEYCODE_BUTTON_3,  //Button 3
+		FutureKeyCodes.KEYCODE_BUTTON_4,  //Button 4
+
+		FutureKeyCodes.KEYCODE_DPAD_UP,    //DPAD Up
+		FutureKeyCodes.KEYCODE_DPAD_LEFT,  //DPAD Left
+		FutureKeyCodes.KEYCODE_DPAD_DOWN,  //DPAD Down
+		FutureKeyCodes.KEYCODE_DPAD_RIGHT, //DPAD Right
+
+		FutureKeyCodes.KEYCODE_BUTTON_SELECT,   //Select
+		FutureKeyCodes.KEYCODE_BUTTON_START,    //Start
+		FutureKeyCodes.KEYCODE_BUTTON_5, 		//L3
+		FutureKeyCodes.KEYCODE_BUTTON_6, 		//R3
+
+		FutureKeyCodes.KEYCODE_BUTTON_L1,   	//L1
+		FutureKeyCodes.KEYCODE_BUTTON_L2,   	//R1
+		FutureKeyCodes.KEYCODE_BUTTON_R1, 		//L2
+		FutureKeyCodes.KEYCODE_BUTTON_R2 		//R2
+	};
+
+	private final InputEventSink m_sink;
+
+	public GameStopDecoder(InputEventSink sink) {
+		m_sink = sink;
+	}
+
+	@Override
+	public int parseInputData(InputRingBuffer data) {
+
+		int offset = 0;
+		int remaining = data.size();
+
+		//This should always be true
+		while (remaining > 3 && data.get(offset + 0) == MAGIC_NUMBER) {
+			if (data.get(offset + 1) == MAGIC_NUMBER_BATTERY) {
+				remaining -= BATTERY_LENGTH;
+				offset += BATTERY_LENGTH;
+			} else if (data.get(offset + 1) == MAGIC_NUMBER_HEADER) {
+				remaining -= HEADER_LENGTH;
+				offset += HEADER_LENGTH;
+			} else if (data.get(offset + 1) == MAGIC_NUMBER_MESSAGE) {
+				int buttons = ((data.get(offset + 6) & 0xff) << 8) | (data.get(offset + 7) & 0xff);
+				//For some strange reason, the UP bit is flipped
+				int up = (buttons & (1 << 8)) == 0 ? 1 : 0;
+				buttons = (buttons & ~(1 << 8)) | (up << 8);
+
+				_directionValues[0] = (data.get(offset + 2) & 0xff) - 0x80;
+				_directionValues[1] = (data.get(offset + 3) & 0xff) - 0x80;
+				_directionValues[2] = (data.get(offset + 4) & 0xff) - 0x80;
+				_directionValues[3] = (data.get(offset + 5) & 0xff) - 0x80;
+
+				for(int i = 0; i < m_buttons.length; i++) {
+					boolean state =  (buttons & (1 << (15 - i))) != 0;
+					if (state != m_buttons[i]) {
+						m_buttons[i] = state;
+						m_sink.sendKeypress(state ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, KEYCODE_MAPPINGS[i], 0, false);
+					}
+				}
+
+				for(int i = 0; i < m_directions.length; i++) {
+					boolean large = _directionValues[i] > ANALOG_NUB_THRESHOLD;
+					boolean small = _directionValues[i] < -ANALOG_NUB_THRESHOLD;
+
+					if (large != m_lastDirectionsKeys[i * 2]) {
+						m_lastDirectionsKeys[i * 2] = large;
+						m_sink.sendKeypress(large ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, ANALOG_KEYCODES[i], 0, true);
+					}
+
+					if (small != m_lastDirectionsKeys[(i * 2) + 1]) {
+						m_lastDirectionsKeys[(i * 2) + 1] = small;
+						m_sink.sendKeypress(small ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, ANALOG_KEYCODES[i], 0, true);
+					}
+
+					if (_directionValues[i] != m_directions[i]) {
+						m_sink.sendDirectionalChange(i, _directionValues[i]);
+						m_directions[i] = _directionValues[i];
+					}
+
+				}
+
+				remaining -= MESSAGE_LENGTH;
+				offset += MESSAGE_LENGTH;
+
+			} else {
+				//Ditch the rest
+				remaining = 0;
+			}
+		}
+
+		return remaining;
+	}
+}
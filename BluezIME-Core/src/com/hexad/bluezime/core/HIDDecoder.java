@@ -0,0 +1,103 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+//Splits the data from the HID interrupt channel into reports,
+// and passes each report to the driver specific decoding
+public abstract class HIDDecoder implements InputDecoder {
+
+	protected final InputEventSink m_sink;
+
+	//The payload length of each supported report, indexed by report id, -1 means unsupported
+	private final int[] m_reportLengths = new int[256];
+
+	//Used for reports that wrap around the end of the input buffer
+	private byte[] m_wrapBuffer = new byte[0];
+
+	public HIDDecoder(InputEventSink sink) {
+		m_sink = sink;
+
+		for(int i = 0; i < m_reportLengths.length; i++)
+			m_reportLengths[i] = -1;
+	}
+
+	//Registers a report that the driver can handle
+	protected void addSupportedReport(byte reportId, int length) {
+		m_reportLengths[reportId & 0xff] = length;
+		if (m_wrapBuffer.length < length)
+			m_wrapBuffer = new byte[length];
+	}
+
+	@Override
+	public int parseInputData(InputRingBuffer data) {
+
+		int offset = 0;
+		int remaining = data.size();
+
+		//The stack may deliver more than one package in a single read,
+		// so we use the report lengths to walk each report in the buffer
+		while (remaining > 0) {
+
+			//Need at least the HID header and the report id
+			if (remaining < 2)
+				return remaining;
+
+			//If we get a HID A or C data package, process it.
+			//Without a known header we cannot find the next report, so drop the rest
+			if (data.get(offset) != (byte)0xa1 && data.get(offset) != (byte)0xb1)
+				return 0;
+
+			int reportIndex = data.get(offset + 1) & 0xff;
+			int neededBytes = m_reportLengths[reportIndex];
+
+			//The length is unknown, so we cannot find the next report, drop the rest
+			if (neededBytes < 0)
+				return 0;
+
+			//Partial report, keep it in the sliding window and wait for some more
+			if (neededBytes > remaining - 2)
+				return remaining;
+
+			try {
+				//Decode directly from the input buffer, unless the report wraps around its end
+				if (data.isContiguous(offset + 2, neededBytes)) {
+					handleHIDMessage(data.get(offset), data.get(offset + 1), data.array(), data.arrayOffset(offset + 2), neededBytes);
+				} else {
+					data.copyTo(offset + 2, m_wrapBuffer, 0, neededBytes);
+					handleHIDMessage(data.get(offset), data.get(offset + 1), m_wrapBuffer, 0, neededBytes);
+				}
+			} catch (Exception ex) {
+				m_sink.onDecodeWarning("Handling HID message " + data.get(offset + 1) + " failed: " + ex.toString());
+			}
+
+			offset += neededBytes + 2;
+			remaining -= neededBytes + 2;
+		}
+
+		return 0;
+	}
+
+	//Adapter for callers that have the report payload in a buffer of its own
+	public void handleHIDMessage(byte hidType, byte reportId, byte[] data) throws Exception {
+		handleHIDMessage(hidType, reportId, data, 0, data.length);
+	}
+
+	//Decodes a single report, the payload is data[offset] to data[offset + length - 1],
+	// and data is the read buffer itself, so it must not be kept after the call returns
+	public abstract void handleHIDMessage(byte hidType, byte reportId, byte[] data, int offset, int length) throws Exception;
+}
@@ -0,0 +1,161 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+//Decodes the gamepad report of the ipega controller
+public class HIDipegaDecoder extends HIDDecoder {
+
+	private static final int KEYCODE_UNUSED = 0x0;
+
+	private static final int[] DPAD = new int[] {
+		FutureKeyCodes.KEYCODE_DPAD_UP, 		//Byte A, bit 0
+		FutureKeyCodes.KEYCODE_DPAD_RIGHT, 		//Byte A, bit 1
+		FutureKeyCodes.KEYCODE_DPAD_DOWN, 		//Byte A, bit 2
+		FutureKeyCodes.KEYCODE_DPAD_LEFT		//Byte A, bit 3
+	};
+
+	private static final byte[] DPAD_MAP = new byte[] {
+		1,	 	//up, 			bit 0000001
+		3,	 	//up-right, 	bit 0000011
+		2,		//right, 		bit 0000010
+		6,		//right-down, 	bit 0000110
+		4,		//down			bit 0000100
+		12,		//down-left		bit 0001100
+		8,		//left			bit 0001000
+		9		//left-up		bit 0001001
+	};
+
+	private static final int[] KEYS = new int[] {
+		FutureKeyCodes.KEYCODE_BUTTON_SELECT, 	//Byte B, bit 0
+		FutureKeyCodes.KEYCODE_BUTTON_START,	//Byte B, bit 1
+		KEYCODE_UNUSED, 						//Byte B, bit 2
+		KEYCODE_UNUSED, 						//Byte B, bit 3
+		KEYCODE_UNUSED, 						//Byte B, bit 4
+		KEYCODE_UNUSED, 						//Byte B, bit 5
+		KEYCODE_UNUSED, 						//Byte B, bit 6
+		KEYCODE_UNUSED, 						//Byte B, bit 7
+		FutureKeyCodes.KEYCODE_BUTTON_X, 		//Byte A, bit 0
+		FutureKeyCodes.KEYCODE_BUTTON_A, 		//Byte A, bit 1
+		FutureKeyCodes.KEYCODE_BUTTON_B, 		//Byte A, bit 2
+		FutureKeyCodes.KEYCODE_BUTTON_Y, 		//Byte A, bit 3
+		FutureKeyCodes.KEYCODE_BUTTON_L1, 		//Byte A, bit 4
+		FutureKeyCodes.KEYCODE_BUTTON_R1, 		//Byte A, bit 5
+		KEYCODE_UNUSED, 						//Byte A, bit 6
+		KEYCODE_UNUSED, 						//Byte A, bit 7
+	};
+
+	private static final int[] ANALOG_KEYS = new int[] {
+		FutureKeyCodes.KEYCODE_D, //Nub1 right
+		FutureKeyCodes.KEYCODE_A, //Nub1 left
+		FutureKeyCodes.KEYCODE_S, //Nub1 down
+		FutureKeyCodes.KEYCODE_W, //Nub1 up
+		FutureKeyCodes.KEYCODE_6, //Nub2 right
+		FutureKeyCodes.KEYCODE_4, //Nub2 left
+		FutureKeyCodes.KEYCODE_5, //Nub2 down
+		FutureKeyCodes.KEYCODE_8  //Nub2 up
+	};
+
+	//The max value a nub can report
+	private static int ANALOG_NUB_MAX_VALUE = 127;
+	//How far the nub must be pressed for it to issue an emulated keypress
+	private static int ANALOG_NUB_THRESHOLD = ANALOG_NUB_MAX_VALUE / 2;
+	private static int ANALOG_NUB_OFFSET = 128;
+
+	private int[] m_axes = new int[4];
+	private int[] m_dpad = new int[4];
+	private boolean[] m_emulatedButtons = new boolean[8];
+
+	private int[] m_buttons = new int[16];
+
+	public HIDipegaDecoder(InputEventSink sink) {
+		super(sink);
+
+		//TODO: This should be handled by SDP inquiry
+		addSupportedReport((byte)0x7, 8);
+	}
+
+	protected void parseDPad(byte[] data, int offset) {
+		int v;
+		if((data[offset] & 0xff) != 0x88){
+			v = DPAD_MAP[data[offset] & 0xff];
+		}else{
+			v = 0;
+		}
+		for(int i = 0; i < 4; i++) {
+			if ((v & 1) != m_dpad[i]) {
+				m_dpad[i] = (v & 1);
+				m_sink.sendKeypress(m_dpad[i] == 1 ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, DPAD[i], 0, false);
+			}
+			v = v >>> 1;
+		}
+	}
+
+	protected void parseDigital(byte A, byte B) {
+		int v = (A << 8) | B;
+		for(int i = 0; i < 16; i++) {
+			if ((v & 1) != m_buttons[i]) {
+				m_buttons[i] = (v & 1);
+
+				if (KEYS[i] != KEYCODE_UNUSED) {
+					m_sink.sendKeypress(m_buttons[i] == 1 ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, KEYS[i], 0, false);
+				}
+			}
+			v = v >>> 1;
+		}
+	}
+
+	protected void parseAnalog(byte[] data, int offset) {
+
+		for(int i = 0; i < 4; i++) {
+			int newvalue = (data[offset + i] & 0xff)-ANALOG_NUB_OFFSET;
+			if (m_axes[i] != newvalue) {
+
+				boolean up = newvalue >= ANALOG_NUB_THRESHOLD;
+				boolean down = newvalue <= -ANALOG_NUB_THRESHOLD;
+
+				m_axes[i] = newvalue;
+				m_sink.sendDirectionalChange(i, m_axes[i]);
+
+				if (up != m_emulatedButtons[i*2]) {
+					m_emulatedButtons[i*2] = up;
+					m_sink.sendKeypress(up ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, ANALOG_KEYS[i*2], 0, true);
+				}
+
+				if (down != m_emulatedButtons[(i*2) + 1]) {
+					m_emulatedButtons[i*2 + 1] = down;
+					m_sink.sendKeypress(down ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, ANALOG_KEYS[(i*2) + 1], 0, true);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void handleHIDMessage(byte hidType, byte reportId, byte[] data, int offset, int length) throws Exception {
+		if (reportId == 0x07) {
+			if (length < 5) {
+				m_sink.onDecodeWarning("Got keypress message with too few bytes: " + InputRingBuffer.getHexString(data, offset, offset + length));
+			} else {
+				parseDPad(data, offset + 4);
+				parseAnalog(data, offset);
+				parseDigital(data[offset + 5],data[offset + 6]);
+			}
+		} else {
+			m_sink.onDecodeWarning("Got report " + hidType + ":" + reportId +  " message: " + InputRingBuffer.getHexString(data, offset, offset + length));
+		}
+	}
+}
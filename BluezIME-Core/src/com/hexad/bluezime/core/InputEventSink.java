@@ -0,0 +1,37 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+//Receives the events produced by a decoder.
+//The decoders only know this interface, so they run without Android,
+// and the readers in the app implement it by delivering the events to the clients
+public interface InputEventSink {
+
+	//A key changed state, action is FutureKeyCodes.ACTION_DOWN or ACTION_UP,
+	// and emulated is set if the key is derived from an analog value
+	void sendKeypress(int action, int key, int modifiers, boolean emulated);
+
+	//An analog axis changed, the value is in the range [-127, 127]
+	void sendDirectionalChange(int direction, int value);
+
+	//An accelerometer axis changed, the value is in the range [-127, 127]
+	void sendAccelerometerChange(int axis, int value);
+
+	//The input contained something the decoder could not handle
+	void onDecodeWarning(String message);
+}
@@ -0,0 +1,164 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+//A circular byte buffer that the reader thread fills from the input stream.
+//The drivers parse the data through get(), which hides the wrap-around,
+// so unparsed bytes never have to be moved to the front of the buffer.
+//Not thread safe, it is only used from the reader thread
+public class InputRingBuffer {
+
+	private byte[] m_data;
+	private int m_mask;
+	private final int m_maxCapacity;
+
+	//The physical index of the first unconsumed byte
+	private int m_start = 0;
+
+	//The number of unconsumed bytes
+	private int m_count = 0;
+
+	public InputRingBuffer(int capacity, int maxCapacity) {
+		capacity = roundToPowerOfTwo(capacity);
+		m_data = new byte[capacity];
+		m_mask = capacity - 1;
+		m_maxCapacity = Math.max(capacity, roundToPowerOfTwo(maxCapacity));
+	}
+
+	private static int roundToPowerOfTwo(int value) {
+		int result = 16;
+		while (result < value)
+			result <<= 1;
+		return result;
+	}
+
+	//Returns the number of bytes that are waiting to be parsed
+	public int size() {
+		return m_count;
+	}
+
+	public int getCapacity() {
+		return m_data.length;
+	}
+
+	public boolean isFull() {
+		return m_count == m_data.length;
+	}
+
+	//Returns the byte at the given index, relative to the first unconsumed byte
+	public byte get(int index) {
+		return m_data[(m_start + index) & m_mask];
+	}
+
+	//Marks the first count bytes as parsed
+	public void consume(int count) {
+		if (count <= 0)
+			return;
+		if (count >= m_count) {
+			clear();
+		} else {
+			m_start = (m_start + count) & m_mask;
+			m_count -= count;
+		}
+	}
+
+	public void clear() {
+		m_start = 0;
+		m_count = 0;
+	}
+
+	//Doubles the capacity, keeping the unconsumed data,
+	// returns false if the buffer is already at its maximum size
+	public boolean grow() {
+		if (m_data.length >= m_maxCapacity)
+			return false;
+
+		byte[] tmp = new byte[m_data.length * 2];
+		copyTo(0, tmp, 0, m_count);
+
+		m_data = tmp;
+		m_mask = tmp.length - 1;
+		m_start = 0;
+		return true;
+	}
+
+	//Reads as much as fits in the free space after the last byte, without wrapping.
+	//Returns the number of bytes read, or -1 on end of stream
+	public int read(InputStream input) throws IOException {
+		if (isFull())
+			return 0;
+
+		int end = (m_start + m_count) & m_mask;
+		int free = end < m_start ? m_start - end : m_data.length - end;
+
+		int read = input.read(m_data, end, free);
+		if (read > 0)
+			m_count += read;
+
+		return read;
+	}
+
+	//Returns true if the given range does not wrap around the end of the backing array
+	public boolean isContiguous(int index, int length) {
+		return ((m_start + index) & m_mask) + length <= m_data.length;
+	}
+
+	//The backing array, only valid until the next call to read() or grow()
+	public byte[] array() {
+		return m_data;
+	}
+
+	//Translates an index relative to the first unconsumed byte into an index in array()
+	public int arrayOffset(int index) {
+		return (m_start + index) & m_mask;
+	}
+
+	public void copyTo(int index, byte[] dest, int destOffset, int length) {
+		int first = (m_start + index) & m_mask;
+		int part = Math.min(length, m_data.length - first);
+		System.arraycopy(m_data, first, dest, destOffset, part);
+		if (part < length)
+			System.arraycopy(m_data, 0, dest, destOffset + part, length - part);
+	}
+
+	public String getHexString(int index, int length) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = index; i < index + length; i++) {
+            if ((get(i) & 0xff) < 0x10)
+                buf.append("0");
+            buf.append(Integer.toHexString((get(i) & 0xff))).append(" ");
+        }
+
+        return buf.toString();
+	}
+
+	//Formats buffer[offset] to buffer[count - 1] as hex
+	public static String getHexString(byte[] buffer, int offset, int count) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = offset; i < count; i++) {
+            if ((buffer[i] & 0xff) < 0x10)
+                buf.append("0");
+            buf.append(Integer.toHexString((buffer[i] & 0xff))).append(" ");
+        }
+
+        return buf.toString();
+	}
+}
@@ -0,0 +1,111 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+//Decodes the Phonejoy protocol, which is the BGP100 protocol
+// with some extra buttons and two analog sticks
+public class PhonejoyDecoder extends BGP100Decoder {
+
+	private static final int ANALOG_THRESHOLD = 127 / 2;
+
+	private static final int[] ANALOG_KEYS = new int[] {
+		FutureKeyCodes.KEYCODE_T,
+		FutureKeyCodes.KEYCODE_G,
+		FutureKeyCodes.KEYCODE_F,
+		FutureKeyCodes.KEYCODE_H,
+		FutureKeyCodes.KEYCODE_I,
+		FutureKeyCodes.KEYCODE_K,
+		FutureKeyCodes.KEYCODE_J,
+		FutureKeyCodes.KEYCODE_L
+	};
+
+	private boolean[] mAnalogKeyStates = new boolean[ANALOG_KEYS.length];
+
+	public PhonejoyDecoder(InputEventSink sink) {
+		super(sink);
+
+		//R
+		_lookup.put(0xb24e, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_R2));
+		_lookup.put(0xf20e, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_BUTTON_R2));
+
+		//L
+		_lookup.put(0xb14d, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_L2));
+		_lookup.put(0xf10d, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_BUTTON_L2));
+
+		//Select
+		_lookup.put(0xb34c, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_SELECT));
+		_lookup.put(0xf30c, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_BUTTON_SELECT));
+
+		//Left Analog stick up
+		_lookup.put(0xa121, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_T));
+		_lookup.put(0xe111, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_T));
+
+		//Left Analog stick down
+		_lookup.put(0xa222, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_G));
+		_lookup.put(0xe212, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_G));
+
+		//Left Analog stick left
+		_lookup.put(0xa323, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_F));
+		_lookup.put(0xe313, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_F));
+
+		//Left Analog stick right
+		_lookup.put(0xa424, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_H));
+		_lookup.put(0xe414, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_H));
+
+		//Right Analog stick up
+		_lookup.put(0xa525, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_I));
+		_lookup.put(0xe515, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_I));
+
+		//Right Analog stick down
+		_lookup.put(0xa626, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_K));
+		_lookup.put(0xe616, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_K));
+
+		//Right Analog stick left
+		_lookup.put(0xa727, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_J));
+		_lookup.put(0xe717, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_J));
+
+		//Right Analog stick right
+		_lookup.put(0xa828, new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_L));
+		_lookup.put(0xe818, new KeyAction(FutureKeyCodes.ACTION_UP,   FutureKeyCodes.KEYCODE_L));
+	}
+
+	@Override
+	protected void handleAnalogValue(int axis, int value) {
+
+		axis = (axis & 0xff) - 0x11;
+		if (axis >= 0 && axis < 4) {
+			int axis_value = value & 0xff;
+			int normalized = Math.max(-127, Math.min(127, (axis_value - 127)));
+
+			m_sink.sendDirectionalChange(axis, normalized);
+
+			boolean pressedUp = normalized < -ANALOG_THRESHOLD;
+			boolean pressedDown = normalized > ANALOG_THRESHOLD;
+
+			if (pressedUp != mAnalogKeyStates[(axis * 2)]) {
+				mAnalogKeyStates[(axis * 2)] = pressedUp;
+				m_sink.sendKeypress(pressedUp ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, ANALOG_KEYS[(axis * 2)], 0, true);
+			}
+
+			if (pressedDown != mAnalogKeyStates[(axis * 2) + 1]) {
+				mAnalogKeyStates[(axis * 2) + 1] = pressedDown;
+				m_sink.sendKeypress(pressedDown ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, ANALOG_KEYS[(axis * 2) + 1], 0, true);
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+//The layout of a raw stream trace, as written by TraceWriter.
+//All values are big endian, which matches DataInputStream.
+//
+//The file starts with a header:
+// 4 bytes  MAGIC
+// 1 byte   VERSION
+// 8 bytes  wall clock time in milliseconds when the trace was started
+//
+//It is followed by records, each with a fixed size header:
+// 1 byte   record type, one of the TYPE_* values
+// 1 byte   session index, assigned by the TYPE_SESSION record
+// 8 bytes  timestamp in nanoseconds, relative to the start of the trace
+// 2 bytes  payload length, unsigned
+// n bytes  payload
+//
+//The TYPE_SESSION payload is three strings, each written as with
+// DataOutputStream.writeUTF(): session id, driver name and device address.
+//The TYPE_IN, TYPE_OUT and TYPE_WELCOME payloads are the raw bytes
+// exactly as they were read from or written to the device.
+//Records from different sessions are interleaved, and the timestamps
+// are only ordered within a session
+public class TraceFormat {
+
+	public static final int MAGIC = 0x425a5452; //"BZTR"
+	public static final int VERSION = 1;
+
+	public static final int FILE_HEADER_LENGTH = 4 + 1 + 8;
+	public static final int RECORD_HEADER_LENGTH = 1 + 1 + 8 + 2;
+
+	//The largest payload a single record can hold, longer chunks are split
+	public static final int MAX_PAYLOAD_LENGTH = 0xffff;
+
+	//The largest number of sessions in a single trace
+	public static final int MAX_SESSIONS = 0x100;
+
+	//Announces a new session, must come before any other record for the session
+	public static final byte TYPE_SESSION = 0;
+	//A chunk returned by a single read() on the data channel
+	public static final byte TYPE_IN = 1;
+	//A chunk written to the device, on the data or control channel
+	public static final byte TYPE_OUT = 2;
+	//The welcome message read while the connection was set up
+	public static final byte TYPE_WELCOME = 3;
+	//The session was disconnected, the payload is empty
+	public static final byte TYPE_END = 4;
+
+	public static final String FILE_EXTENSION = ".bztrace";
+
+	private TraceFormat() {
+	}
+
+	public static String getTypeName(byte type) {
+		switch (type) {
+			case TYPE_SESSION:
+				return "session";
+			case TYPE_IN:
+				return "in";
+			case TYPE_OUT:
+				return "out";
+			case TYPE_WELCOME:
+				return "welcome";
+			case TYPE_END:
+				return "end";
+			default:
+				return "unknown(" + type + ")";
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+//Reads a raw stream trace written by TraceWriter, one record at a time.
+//The payload buffer is reused, so the values are only valid until the
+// next call to next()
+public class TraceReader {
+
+	private final DataInputStream m_input;
+	private final long m_startTime;
+
+	//The sessions announced so far, by session index
+	private final ArrayList<SessionInfo> m_sessions = new ArrayList<SessionInfo>();
+
+	//The current record
+	private byte m_type;
+	private int m_session;
+	private long m_timestamp;
+	private int m_length;
+	private final byte[] m_payload = new byte[TraceFormat.MAX_PAYLOAD_LENGTH];
+
+	public TraceReader(InputStream input) throws IOException {
+		m_input = new DataInputStream(new BufferedInputStream(input));
+
+		if (m_input.readInt() != TraceFormat.MAGIC)
+			throw new IOException("Not a trace file");
+
+		int version = m_input.readUnsignedByte();
+		if (version != TraceFormat.VERSION)
+			throw new IOException("Unsupported trace version: " + version);
+
+		m_startTime = m_input.readLong();
+	}
+
+	public static class SessionInfo {
+		public final int index;
+		public final String sessionId;
+		public final String driverName;
+		public final String address;
+
+		public SessionInfo(int index, String sessionId, String driverName, String address) {
+			this.index = index;
+			this.sessionId = sessionId;
+			this.driverName = driverName;
+			this.address = address;
+		}
+	}
+
+	//Moves to the next record, returns false at the end of the trace.
+	//A trace that was cut short, because the app was killed while capturing,
+	// ends at the last complete record
+	public boolean next() throws IOException {
+		try {
+			m_type = m_input.readByte();
+		} catch (EOFException ex) {
+			return false;
+		}
+
+		try {
+			m_session = m_input.readUnsignedByte();
+			m_timestamp = m_input.readLong();
+			m_length = m_input.readUnsignedShort();
+			m_input.readFully(m_payload, 0, m_length);
+		} catch (EOFException ex) {
+			return false;
+		}
+
+		if (m_type == TraceFormat.TYPE_SESSION) {
+			DataInputStream ds = new DataInputStream(new ByteArrayInputStream(m_payload, 0, m_length));
+			SessionInfo info = new SessionInfo(m_session, ds.readUTF(), ds.readUTF(), ds.readUTF());
+
+			while (m_sessions.size() <= m_session)
+				m_sessions.add(null);
+			m_sessions.set(m_session, info);
+		}
+
+		return true;
+	}
+
+	public void close() throws IOException {
+		m_input.close();
+	}
+
+	//The wall clock time in milliseconds when the trace was started
+	public long getStartTime() {
+		return m_startTime;
+	}
+
+	//Returns the session with the given index, or null if it has not been announced yet
+	public SessionInfo getSession(int index) {
+		return index >= 0 && index < m_sessions.size() ? m_sessions.get(index) : null;
+	}
+
+	public byte getType() {
+		return m_type;
+	}
+
+	public int getSession() {
+		return m_session;
+	}
+
+	//The timestamp of the record in nanoseconds, relative to the start of the trace
+	public long getTimestamp() {
+		return m_timestamp;
+	}
+
+	public int getLength() {
+		return m_length;
+	}
+
+	public byte[] getPayload() {
+		return m_payload;
+	}
+}
@@ -0,0 +1,163 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+//Plays back the data read in one session of a trace as an input stream,
+// so it can be fed through the same read loop as a socket.
+//Each read() returns at most one recorded chunk, and waits until the
+// chunk is due, so the decoders see the same chunking and timing as
+// during the capture. Only the TYPE_IN records are played back
+public class TraceReplayStream extends InputStream {
+
+	//Plays back the chunks as fast as they are read
+	public static final double AS_FAST_AS_POSSIBLE = 0;
+
+	private final TraceReader m_reader;
+	private final TraceReader.SessionInfo m_session;
+	private final double m_speed;
+
+	//The chunk being played back, and how much of it has been returned
+	private int m_offset = 0;
+	private int m_length = 0;
+	private boolean m_eof = false;
+
+	//System.nanoTime() when the first chunk was returned, and the trace timestamp of it
+	private long m_replayStart = -1;
+	private long m_traceStart = 0;
+
+	private long m_chunks = 0;
+	private long m_bytes = 0;
+
+	//Plays back the session with the given index, or the first session in the
+	// trace if the index is negative. A speed of 1 is the original timing,
+	// 2 is twice as fast, and AS_FAST_AS_POSSIBLE does not wait at all
+	public TraceReplayStream(TraceReader reader, int session, double speed) throws IOException {
+		m_reader = reader;
+		m_speed = speed;
+
+		//Skip to the session announcement, so the driver name is known up front
+		while (m_reader.next()) {
+			if (m_reader.getType() == TraceFormat.TYPE_SESSION && (session < 0 || m_reader.getSession() == session)) {
+				m_session = m_reader.getSession(m_reader.getSession());
+				return;
+			}
+		}
+
+		throw new IOException(session < 0 ? "The trace has no sessions" : "The trace has no session " + session);
+	}
+
+	public TraceReader.SessionInfo getSession() {
+		return m_session;
+	}
+
+	//The number of chunks and bytes returned so far
+	public long getChunks() {
+		return m_chunks;
+	}
+
+	public long getBytes() {
+		return m_bytes;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		if (count == 0)
+			return 0;
+
+		if (m_offset >= m_length && !nextChunk())
+			return -1;
+
+		int n = Math.min(count, m_length - m_offset);
+		System.arraycopy(m_reader.getPayload(), m_offset, buffer, offset, n);
+		m_offset += n;
+		m_bytes += n;
+
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return m_length - m_offset;
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_eof = true;
+		m_reader.close();
+	}
+
+	private boolean nextChunk() throws IOException {
+		while (!m_eof) {
+			if (!m_reader.next()) {
+				m_eof = true;
+				break;
+			}
+
+			if (m_reader.getSession() != m_session.index)
+				continue;
+
+			if (m_reader.getType() == TraceFormat.TYPE_END) {
+				m_eof = true;
+				break;
+			}
+
+			if (m_reader.getType() != TraceFormat.TYPE_IN || m_reader.getLength() == 0)
+				continue;
+
+			waitUntilDue(m_reader.getTimestamp());
+
+			m_offset = 0;
+			m_length = m_reader.getLength();
+			m_chunks++;
+			return true;
+		}
+
+		return false;
+	}
+
+	private void waitUntilDue(long timestamp) throws IOException {
+		if (m_replayStart < 0) {
+			m_replayStart = System.nanoTime();
+			m_traceStart = timestamp;
+			return;
+		}
+
+		if (m_speed <= AS_FAST_AS_POSSIBLE)
+			return;
+
+		long due = m_replayStart + (long)((timestamp - m_traceStart) / m_speed);
+		long wait = due - System.nanoTime();
+		if (wait <= 0)
+			return;
+
+		try {
+			Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+		} catch (InterruptedException ex) {
+			throw new IOException("Replay was interrupted");
+		}
+	}
+}
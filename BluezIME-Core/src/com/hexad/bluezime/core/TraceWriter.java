@@ -0,0 +1,271 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+//Writes a raw stream trace, see TraceFormat for the layout.
+//The reader threads serialize each record into a ring buffer, which
+// costs a copy but no allocations, and a background thread moves the
+// buffered records to the output stream, so the reader thread never
+// waits for the file system.
+//If the background thread cannot keep up, records are dropped rather
+// than stalling the reader, see getDroppedRecords()
+public class TraceWriter {
+
+	//The default size of the ring buffer
+	public static final int DEFAULT_BUFFER_SIZE = 0x40000;
+
+	//How long the background thread waits for more records before it writes a partial buffer
+	private static final int FLUSH_INTERVAL_MS = 250;
+
+	private final OutputStream m_output;
+	private final Thread m_thread;
+
+	//System.nanoTime() when the trace was started, all timestamps are relative to this
+	private final long m_startTime;
+
+	//The buffered records, m_start is the first unwritten byte
+	private final byte[] m_ring;
+	private int m_start = 0;
+	private int m_count = 0;
+
+	private int m_sessionCount = 0;
+	private long m_droppedRecords = 0;
+	private boolean m_closed = false;
+	private IOException m_error = null;
+
+	public TraceWriter(OutputStream output) throws IOException {
+		this(output, DEFAULT_BUFFER_SIZE);
+	}
+
+	public TraceWriter(OutputStream output, int bufferSize) throws IOException {
+		m_output = output;
+		m_ring = new byte[Math.max(bufferSize, 2 * (TraceFormat.RECORD_HEADER_LENGTH + TraceFormat.MAX_PAYLOAD_LENGTH))];
+		m_startTime = System.nanoTime();
+
+		DataOutputStream header = new DataOutputStream(m_output);
+		header.writeInt(TraceFormat.MAGIC);
+		header.writeByte(TraceFormat.VERSION);
+		header.writeLong(System.currentTimeMillis());
+		header.flush();
+
+		m_thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "TraceWriter");
+		m_thread.setDaemon(true);
+		m_thread.start();
+	}
+
+	//Starts a new session in the trace, returns null if the trace is closed or full
+	public Session openSession(String sessionId, String driverName, String address) {
+		byte[] payload;
+		try {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream ds = new DataOutputStream(buffer);
+			ds.writeUTF(sessionId == null ? "" : sessionId);
+			ds.writeUTF(driverName == null ? "" : driverName);
+			ds.writeUTF(address == null ? "" : address);
+			ds.flush();
+			payload = buffer.toByteArray();
+		} catch (IOException ex) {
+			//Cannot happen with a ByteArrayOutputStream
+			return null;
+		}
+
+		synchronized (this) {
+			if (m_sessionCount >= TraceFormat.MAX_SESSIONS)
+				return null;
+
+			Session session = new Session(m_sessionCount);
+			if (!put(TraceFormat.TYPE_SESSION, session.m_index, System.nanoTime(), payload, 0, payload.length))
+				return null;
+
+			m_sessionCount++;
+			return session;
+		}
+	}
+
+	//Returns the number of records that were lost because the buffer was full
+	public synchronized long getDroppedRecords() {
+		return m_droppedRecords;
+	}
+
+	public synchronized boolean isClosed() {
+		return m_closed;
+	}
+
+	//Stops accepting records, writes the buffered records and closes the output stream
+	public void close() throws IOException {
+		synchronized (this) {
+			m_closed = true;
+			notifyAll();
+		}
+
+		try { m_thread.join(); }
+		catch (InterruptedException ex) { }
+
+		synchronized (this) {
+			if (m_error != null)
+				throw m_error;
+		}
+	}
+
+	private synchronized boolean put(byte type, int session, long timestamp, byte[] data, int offset, int length) {
+		if (m_closed)
+			return false;
+
+		if (m_ring.length - m_count < TraceFormat.RECORD_HEADER_LENGTH + length) {
+			m_droppedRecords++;
+			return false;
+		}
+
+		long relative = timestamp - m_startTime;
+
+		putByte(type);
+		putByte((byte)session);
+		for(int i = 56; i >= 0; i -= 8)
+			putByte((byte)(relative >>> i));
+		putByte((byte)(length >>> 8));
+		putByte((byte)length);
+
+		if (length > 0) {
+			int end = (m_start + m_count) % m_ring.length;
+			int first = Math.min(length, m_ring.length - end);
+			System.arraycopy(data, offset, m_ring, end, first);
+			System.arraycopy(data, offset + first, m_ring, 0, length - first);
+			m_count += length;
+		}
+
+		//Wake up the writer early if the buffer is filling up
+		if (m_count >= m_ring.length / 2)
+			notifyAll();
+
+		return true;
+	}
+
+	private void putByte(byte value) {
+		m_ring[(m_start + m_count) % m_ring.length] = value;
+		m_count++;
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				int start;
+				int length;
+
+				synchronized (this) {
+					if (!m_closed && m_count < m_ring.length / 2)
+						wait(FLUSH_INTERVAL_MS);
+
+					if (m_count == 0) {
+						if (m_closed)
+							break;
+						continue;
+					}
+
+					start = m_start;
+					length = Math.min(m_count, m_ring.length - m_start);
+				}
+
+				//The reader threads only append after the buffered data,
+				// so this part of the buffer can be written without the lock
+				m_output.write(m_ring, start, length);
+
+				synchronized (this) {
+					m_start = (m_start + length) % m_ring.length;
+					m_count -= length;
+				}
+			}
+
+			m_output.flush();
+		} catch (InterruptedException ex) {
+		} catch (IOException ex) {
+			synchronized (this) {
+				m_error = ex;
+				m_closed = true;
+			}
+		} finally {
+			try { m_output.close(); }
+			catch (IOException ex) { }
+		}
+	}
+
+	//A single connection in the trace, records are written through this
+	public class Session {
+		private final int m_index;
+
+		private Session(int index) {
+			m_index = index;
+		}
+
+		public int getIndex() {
+			return m_index;
+		}
+
+		//Records a chunk of data, the timestamp is a System.nanoTime() value
+		public void record(byte type, long timestamp, byte[] data, int offset, int length) {
+			do {
+				int chunk = Math.min(length, TraceFormat.MAX_PAYLOAD_LENGTH);
+				put(type, m_index, timestamp, data, offset, chunk);
+				offset += chunk;
+				length -= chunk;
+			} while (length > 0);
+		}
+
+		//Marks the session as disconnected
+		public void close() {
+			put(TraceFormat.TYPE_END, m_index, System.nanoTime(), null, 0, 0);
+		}
+
+		//Returns a stream that records everything written to the device
+		public OutputStream wrap(OutputStream output) {
+			return new TracingOutputStream(this, output);
+		}
+	}
+
+	private static class TracingOutputStream extends FilterOutputStream {
+		private final Session m_session;
+		private final byte[] m_single = new byte[1];
+
+		public TracingOutputStream(Session session, OutputStream output) {
+			super(output);
+			m_session = session;
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			m_single[0] = (byte)b;
+			write(m_single, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] buffer, int offset, int count) throws IOException {
+			m_session.record(TraceFormat.TYPE_OUT, System.nanoTime(), buffer, offset, count);
+			out.write(buffer, offset, count);
+		}
+	}
+}
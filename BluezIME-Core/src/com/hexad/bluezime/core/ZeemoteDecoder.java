@@ -0,0 +1,175 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+//Decodes the Zeemote JS1 and SteelSeries Free protocol
+public class ZeemoteDecoder implements InputDecoder {
+
+	private final byte BUTTON_UPDATE = 0x07;
+	private final byte BUTTON_UPDATE_STEELSERIES = 0x1c;
+	private final byte DIRECTION_UPDATE = 0x08;
+	private final byte MAGIC_NUMBER = (byte)0xA1;
+
+	//The max value a nub can report
+	private static int ANALOG_NUB_MAX_VALUE = 127;
+	//How far the nub must be pressed for it to issue an emulated keypress
+	private static int ANALOG_NUB_THRESHOLD = ANALOG_NUB_MAX_VALUE / 2;
+
+	//This is the number of directions supported, hardcoded
+	private static final int SUPPORTED_DIRECTIONS = 8;
+
+	//This is the number of buttons supported, hardcoded
+	private static final int SUPPORTED_BUTTONS = 16;
+
+	//These three keep track of the last known state of buttons, directions and emulated direction-buttons
+	private boolean[] m_originalButtons = new boolean[SUPPORTED_BUTTONS];
+	private boolean[] m_steelseriesButtons = new boolean[SUPPORTED_BUTTONS];
+	private int[] m_directions = new int[SUPPORTED_DIRECTIONS / 2];
+	private boolean[] m_lastDirectionsKeys = new boolean[SUPPORTED_DIRECTIONS];
+
+	//These are buffers that are used to read/parse input data,
+	// they are reused to prevent re-allocation and garbage collections.
+	//If they have the wrong size, they will be re-allocated once
+	private boolean[] _buttonStates = new boolean[SUPPORTED_BUTTONS];
+	private int[] _directionValues = new int[SUPPORTED_DIRECTIONS / 2];
+	private boolean[] _directionStates = new boolean[SUPPORTED_DIRECTIONS];
+
+	//This is the reason we only support 8 directions (and my device only has 4)
+	private static final int[] ANALOG_KEYCODES = new int[] {
+		FutureKeyCodes.KEYCODE_DPAD_RIGHT, //Left knob right
+		FutureKeyCodes.KEYCODE_DPAD_LEFT, //Left knob left
+		FutureKeyCodes.KEYCODE_DPAD_DOWN, //Left knob down
+		FutureKeyCodes.KEYCODE_DPAD_UP,  //Left knob up
+
+		FutureKeyCodes.KEYCODE_6, //Right knob right
+		FutureKeyCodes.KEYCODE_4, //Right knob left
+		FutureKeyCodes.KEYCODE_5, //Right knob down
+		FutureKeyCodes.KEYCODE_8  //Right knob up
+	};
+
+	//Mapping of reported scan-codes to Android keypress values
+	private static final int[] KEYCODE_MAPPINGS = {
+		// Keycodes from original Zeemote
+		FutureKeyCodes.KEYCODE_BUTTON_A, //0x00 (A) renamed to (1)
+		FutureKeyCodes.KEYCODE_BUTTON_B, //0x01 (B) renamed to (2)
+		FutureKeyCodes.KEYCODE_BUTTON_C, //0x02 (C) renamed to (3)
+		FutureKeyCodes.KEYCODE_BUTTON_X, //0x03 (D) renamed to (4)
+
+		//Keycodes from SteelSeries Free
+		FutureKeyCodes.KEYCODE_W,	 //0x04 DPAD Up
+		FutureKeyCodes.KEYCODE_A,  //0x05 DPAD Down
+		FutureKeyCodes.KEYCODE_S,  //0x06 DPAD Left
+		FutureKeyCodes.KEYCODE_D, //0x07 DPAD Right
+
+		FutureKeyCodes.KEYCODE_BUTTON_L1,    //0x08 L Trigger
+		FutureKeyCodes.KEYCODE_BUTTON_R1,    //0x09 R Trigger
+		FutureKeyCodes.KEYCODE_BUTTON_START, //0x0a A Button
+		FutureKeyCodes.KEYCODE_BUTTON_SELECT //0x0b B Button
+	};
+
+	private final InputEventSink m_sink;
+
+	public ZeemoteDecoder(InputEventSink sink) {
+		m_sink = sink;
+	}
+
+	@Override
+	public int parseInputData(InputRingBuffer data) {
+
+		int offset = 0;
+		int remaining = data.size();
+
+		//This should always be true
+		while (remaining > 3 && remaining >= data.get(offset + 0) + 1 && data.get(offset + 1) == MAGIC_NUMBER) {
+			int consumed = data.get(offset + 0) + 1;
+			remaining -= consumed;
+
+			if (data.get(offset + 2) == BUTTON_UPDATE || data.get(offset + 2) == BUTTON_UPDATE_STEELSERIES) {
+
+				//Clear the values
+				for(int i = 0; i < _buttonStates.length; i++)
+					_buttonStates[i] = false;
+
+				//Mark the pressed buttons
+				for(int i = 3; i < consumed; i++)
+					if (data.get(offset + i) < _buttonStates.length && data.get(offset + i) >= 0)
+						_buttonStates[data.get(offset + i)] = true;
+
+				boolean[] curStates = data.get(offset + 2) == BUTTON_UPDATE ? m_originalButtons : m_steelseriesButtons;
+
+				for(int i = 0; i < curStates.length; i++)
+					if (curStates[i] != _buttonStates[i] && i < KEYCODE_MAPPINGS.length && i >= 0)
+					{
+						m_sink.sendKeypress(_buttonStates[i] ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, KEYCODE_MAPPINGS[i], 0, false);
+						curStates[i] = _buttonStates[i];
+					}
+
+			} else if (data.get(offset + 2) == DIRECTION_UPDATE) {
+
+				//data[offset + 3] is the index of the analog stick, and we keep two values
+				int indexmultiplier = data.get(offset + 3) * 2;
+
+				if (consumed - 4 >= 2)
+				{
+					//Prevent allocations -> GC
+					if ((2 * indexmultiplier) >  _directionValues.length)
+						_directionValues = new int[(2 * indexmultiplier)];
+
+					int[] directions = _directionValues;
+					directions[indexmultiplier + 0] = data.get(offset + 4);
+					directions[indexmultiplier + 1] = data.get(offset + 5);
+
+					boolean[] newKeyStates = _directionStates;
+
+					//If we need to reallocate, make sure we maintain the values
+					if (m_directions.length != directions.length) {
+						int[] tmp = new int[newKeyStates.length];
+						for(int i = 0; i < Math.min(m_directions.length, tmp.length); i++)
+							tmp[i] = m_directions[i];
+
+						m_directions = tmp;
+					}
+
+					for(int i = 0; i < Math.min(directions.length, m_directions.length); i++)
+						if (m_directions[i] != directions[i]) {
+							m_sink.sendDirectionalChange(i, directions[i]);
+							m_directions[i] = directions[i];
+
+							//We only support X/Y axis
+							if (i < SUPPORTED_DIRECTIONS && i >= 0) {
+								newKeyStates[(i * 2)] = directions[i] > ANALOG_NUB_THRESHOLD;
+								newKeyStates[(i * 2) + 1] = directions[i] < -ANALOG_NUB_THRESHOLD;
+							}
+						}
+
+					//Send simulated key presses as well
+					for(int i = 0; i < ANALOG_KEYCODES.length; i++)
+						if (newKeyStates[i] != m_lastDirectionsKeys[i])
+						{
+							m_sink.sendKeypress(newKeyStates[i] ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, ANALOG_KEYCODES[i], 0, true);
+							m_lastDirectionsKeys[i] = newKeyStates[i];
+						}
+				}
+			}
+
+			offset += consumed;
+		}
+
+		return remaining;
+	}
+}
@@ -0,0 +1,96 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+//Decodes the iCade, which is a HID keyboard that sends
+// one key when a button is pressed and another when it is released
+public class iCadeDecoder extends HIDDecoder {
+
+	private static final KeyAction[] KEY_MAP = new KeyAction[256];
+
+	static {
+		//W - E -> Up
+		KEY_MAP[0x1a] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_DPAD_UP);
+		KEY_MAP[0x08] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_DPAD_UP);
+		//X - Z -> Down
+		KEY_MAP[0x1b] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_DPAD_DOWN);
+		KEY_MAP[0x1d] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_DPAD_DOWN);
+		//A - Q -> Left
+		KEY_MAP[0x04] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_DPAD_LEFT);
+		KEY_MAP[0x14] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_DPAD_LEFT);
+		//D - C -> Right
+		KEY_MAP[0x07] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_DPAD_RIGHT);
+		KEY_MAP[0x06] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_DPAD_RIGHT);
+
+		//Y - T
+		KEY_MAP[0x1c] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_A);
+		KEY_MAP[0x17] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_BUTTON_A);
+		//U - F
+		KEY_MAP[0x18] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_B);
+		KEY_MAP[0x09] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_BUTTON_B);
+		//I - M
+		KEY_MAP[0x0c] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_C);
+		KEY_MAP[0x10] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_BUTTON_C);
+		//O - G
+		KEY_MAP[0x12] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_START);
+		KEY_MAP[0x0a] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_BUTTON_START);
+
+		//H - R
+		KEY_MAP[0x0b] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_X);
+		KEY_MAP[0x15] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_BUTTON_X);
+		//J - N
+		KEY_MAP[0x0d] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_Y);
+		KEY_MAP[0x11] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_BUTTON_Y);
+		//K - P
+		KEY_MAP[0x0e] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_Z);
+		KEY_MAP[0x13] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_BUTTON_Z);
+		//L - V
+		KEY_MAP[0x0f] = new KeyAction(FutureKeyCodes.ACTION_DOWN, FutureKeyCodes.KEYCODE_BUTTON_SELECT);
+		KEY_MAP[0x19] = new KeyAction(FutureKeyCodes.ACTION_UP, FutureKeyCodes.KEYCODE_BUTTON_SELECT);
+	}
+
+	public iCadeDecoder(InputEventSink sink) {
+		super(sink);
+
+		//TODO: This should be handled by SDP inquiry
+		addSupportedReport((byte)0x1, 8); //Keypress info
+		addSupportedReport((byte)0x2, 3); //Extended Keypress info
+	}
+
+	@Override
+	public void handleHIDMessage(byte hidType, byte reportId, byte[] data, int offset, int length) throws Exception {
+		if (reportId == 0x01) {
+			if (length < 5) {
+				m_sink.onDecodeWarning("Got keypress message with too few bytes: " + InputRingBuffer.getHexString(data, offset, offset + length));
+			} else {
+				//As we use scan codes, we can just look at the input data directly
+				//Since the iCade sends different keys for up/down,
+				// we do not need to keep any state info
+				for(int i = offset + 2; i < offset + length; i++) {
+					if (data[i] != 0) {
+						KeyAction keycode = KEY_MAP[((int)data[i]) & 0xff];
+						if (keycode != null)
+							m_sink.sendKeypress(keycode.action, keycode.keyCode, 0, false);
+					}
+				}
+			}
+		} else {
+			m_sink.onDecodeWarning("Got report " + hidType + ":" + reportId +  " message: " + InputRingBuffer.getHexString(data, offset, offset + length));
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime.core;
+
+//Decodes the auto-report mode of the iControlPad, where each report
+// is four analog values followed by two bytes of button bits
+public class iControlPadDecoder implements InputDecoder {
+
+	//Value for keys we do not care about
+	private static final int KEYCODE_UNUSED = 0x0;
+
+	//The length of a report
+	public static final int REPORT_LENGTH = 6;
+
+	//The max value a nub can report
+	private static int ANALOG_NUB_MAX_VALUE = 127;
+	//How far the nub must be pressed for it to issue an emulated keypress
+	private static int ANALOG_NUB_THRESHOLD = ANALOG_NUB_MAX_VALUE / 2;
+
+	//Mappings from bit-index to keycode
+	private static final int[] KEYS = new int[] {
+		FutureKeyCodes.KEYCODE_BUTTON_SELECT, 	//Byte B, bit 0
+		FutureKeyCodes.KEYCODE_BUTTON_START,	//Byte B, bit 1
+		FutureKeyCodes.KEYCODE_BUTTON_Y, 		//Byte B, bit 2
+		FutureKeyCodes.KEYCODE_BUTTON_A, 		//Byte B, bit 3
+		FutureKeyCodes.KEYCODE_BUTTON_X, 		//Byte B, bit 4
+		FutureKeyCodes.KEYCODE_BUTTON_B, 		//Byte B, bit 5
+		FutureKeyCodes.KEYCODE_BUTTON_R1, 		//Byte B, bit 6
+		KEYCODE_UNUSED, 						//Byte B, bit 7
+		FutureKeyCodes.KEYCODE_DPAD_UP, 		//Byte A, bit 0
+		FutureKeyCodes.KEYCODE_DPAD_RIGHT, 		//Byte A, bit 1
+		FutureKeyCodes.KEYCODE_DPAD_LEFT, 		//Byte A, bit 2
+		FutureKeyCodes.KEYCODE_DPAD_DOWN, 		//Byte A, bit 3
+		FutureKeyCodes.KEYCODE_BUTTON_L1, 		//Byte A, bit 4
+		KEYCODE_UNUSED, 						//Byte A, bit 5
+		KEYCODE_UNUSED, 						//Byte A, bit 6
+		KEYCODE_UNUSED, 						//Byte A, bit 7
+	};
+
+	//Nubs are emulated with keys (up,left,down,right) = (w,a,s,d) and (8,4,5,6) respectively
+	private static final int[] ANALOG_KEYS = new int[] {
+		FutureKeyCodes.KEYCODE_D, //Nub1 right
+		FutureKeyCodes.KEYCODE_A, //Nub1 left
+		FutureKeyCodes.KEYCODE_S, //Nub1 down
+		FutureKeyCodes.KEYCODE_W, //Nub1 up
+		FutureKeyCodes.KEYCODE_6, //Nub2 right
+		FutureKeyCodes.KEYCODE_4, //Nub2 left
+		FutureKeyCodes.KEYCODE_5, //Nub2 down
+		FutureKeyCodes.KEYCODE_8  //Nub2 up
+	};
+
+	private final InputEventSink m_sink;
+
+	//The current analog nub values
+	private int[] m_axes = new int[4];
+	//The state of buttons that are emulated by nubs, true means pressed
+	private boolean[] m_emulatedButtons = new boolean[8];
+	//The state of buttons, 1 = pressed, 0 = unpressed
+	private int[] m_buttons = new int[16];
+
+	public iControlPadDecoder(InputEventSink sink) {
+		m_sink = sink;
+	}
+
+	protected void parseAnalog(InputRingBuffer data, int offset) {
+
+		for(int i = 0; i < 4; i++) {
+			int newvalue = data.get(offset + i);
+			if (m_axes[i] != newvalue) {
+
+				boolean up = newvalue >= ANALOG_NUB_THRESHOLD;
+				boolean down = newvalue <= -ANALOG_NUB_THRESHOLD;
+
+				m_axes[i] = newvalue;
+				m_sink.sendDirectionalChange(i, m_axes[i]);
+
+				if (up != m_emulatedButtons[i*2]) {
+					m_emulatedButtons[i*2] = up;
+					m_sink.sendKeypress(up ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, ANALOG_KEYS[i*2], 0, true);
+				}
+
+				if (down != m_emulatedButtons[(i*2) + 1]) {
+					m_emulatedButtons[i*2 + 1] = down;
+					m_sink.sendKeypress(down ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, ANALOG_KEYS[(i*2) + 1], 0, true);
+				}
+			}
+		}
+	}
+
+	protected void parseDigital(byte A, byte B) {
+		int v = (A << 8) | B;
+		for(int i = 0; i < 16; i++) {
+			if ((v & 1) != m_buttons[i]) {
+				m_buttons[i] = (v & 1);
+
+				if (KEYS[i] != KEYCODE_UNUSED) {
+					m_sink.sendKeypress(m_buttons[i] == 1 ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, KEYS[i], 0, false);
+				}
+			}
+			v = v >>> 1;
+		}
+	}
+
+	@Override
+	public int parseInputData(InputRingBuffer data) {
+
+		int offset = 0;
+		int remaining = data.size();
+
+		while(remaining >= REPORT_LENGTH) {
+			parseAnalog(data, offset);
+			parseDigital(data.get(offset + 4), data.get(offset + 5));
+
+			offset += REPORT_LENGTH;
+			remaining -= REPORT_LENGTH;
+		}
+
+		return remaining;
+	}
+}
@@ -0,0 +1,184 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+//Keeps only the latest value for each analog axis and emits all changed
+// axes together, either after each read or after a fixed time window.
+//The key presses emulated from the axes are held back with them, so they are not
+// delivered before the axis values that caused them
+public class AxisCoalescer {
+	
+	//Values for the window, anything larger is a time window in milliseconds
+	public static final int DISABLED = -1;
+	public static final int PER_READ = 0;
+	
+	//The number of axes we coalesce, events for other axes are sent directly
+	private static final int MAX_AXES = 16;
+	
+	//The fields of a held back key press
+	private static final int KEY_FIELD_ACTION = 0;
+	private static final int KEY_FIELD_KEY = 1;
+	private static final int KEY_FIELD_MODIFIERS = 2;
+	private static final int KEY_FIELDS = 3;
+
+	//Shared timer thread for all time windowed coalescers
+	private static Timer m_timer = null;
+	
+	private final RfcommReader m_reader;
+	private final int m_window;
+	
+	private final int[] m_directions = new int[MAX_AXES];
+	private final int[] m_accelerometers = new int[MAX_AXES];
+	
+	//Bitmasks of axes that have a pending value
+	private int m_dirtyDirections = 0;
+	private int m_dirtyAccelerometers = 0;
+	
+	//The emulated key presses in the order they arrived, all of them are sent
+	private int[] m_keys = new int[8 * KEY_FIELDS];
+	private int m_keyCount = 0;
+	
+	//The flush that is scheduled on the timer, if any
+	private TimerTask m_task = null;
+	
+	//Set when the reader stops, nothing is sent after that
+	private boolean m_cancelled = false;
+	
+	public AxisCoalescer(RfcommReader reader, int window) {
+		m_reader = reader;
+		m_window = Math.max(PER_READ, window);
+	}
+	
+	public int getWindow() {
+		return m_window;
+	}
+	
+	//Stores the value for later, returns false if the axis cannot be coalesced
+	public synchronized boolean setDirection(int axis, int value) {
+		if (axis < 0 || axis >= MAX_AXES)
+			return false;
+		
+		m_directions[axis] = value;
+		m_dirtyDirections |= 1 << axis;
+		scheduleFlush();
+		return true;
+	}
+
+	//Stores the value for later, returns false if the axis cannot be coalesced
+	public synchronized boolean setAccelerometer(int axis, int value) {
+		if (axis < 0 || axis >= MAX_AXES)
+			return false;
+		
+		m_accelerometers[axis] = value;
+		m_dirtyAccelerometers |= 1 << axis;
+		scheduleFlush();
+		return true;
+	}
+	
+	//Holds back a key press emulated from an axis, returns false if it should be sent directly
+	public synchronized boolean addEmulatedKeypress(int action, int key, int modifiers) {
+		if (m_cancelled)
+			return false;
+		
+		int offset = m_keyCount * KEY_FIELDS;
+		
+		//Grow the buffer if we get more key presses than expected
+		if (offset + KEY_FIELDS > m_keys.length) {
+			int[] tmp = new int[m_keys.length * 2];
+			System.arraycopy(m_keys, 0, tmp, 0, offset);
+			m_keys = tmp;
+		}
+		
+		m_keys[offset + KEY_FIELD_ACTION] = action;
+		m_keys[offset + KEY_FIELD_KEY] = key;
+		m_keys[offset + KEY_FIELD_MODIFIERS] = modifiers;
+		m_keyCount++;
+		scheduleFlush();
+		return true;
+	}
+	
+	//Called by the reader when all data from a read() has been parsed
+	public void onReadComplete() {
+		if (m_window == PER_READ)
+			flush();
+	}
+	
+	//Emits the latest value of all axes that have changed, followed by the key presses emulated from them
+	public synchronized void flush() {
+		if (m_cancelled)
+			return;
+		
+		for(int i = 0; m_dirtyDirections != 0; i++, m_dirtyDirections >>>= 1)
+			if ((m_dirtyDirections & 1) != 0)
+				m_reader.emitDirectionalChange(i, m_directions[i]);
+
+		for(int i = 0; m_dirtyAccelerometers != 0; i++, m_dirtyAccelerometers >>>= 1)
+			if ((m_dirtyAccelerometers & 1) != 0)
+				m_reader.emitAccelerometerChange(i, m_accelerometers[i]);
+		
+		for(int i = 0; i < m_keyCount; i++) {
+			int offset = i * KEY_FIELDS;
+			m_reader.emitKeypress(m_keys[offset + KEY_FIELD_ACTION], m_keys[offset + KEY_FIELD_KEY], m_keys[offset + KEY_FIELD_MODIFIERS], true);
+		}
+		m_keyCount = 0;
+	}
+	
+	//Discards the pending values and the scheduled flush, used when the reader stops
+	public synchronized void cancel() {
+		m_cancelled = true;
+		m_dirtyDirections = 0;
+		m_dirtyAccelerometers = 0;
+		m_keyCount = 0;
+		
+		if (m_task != null) {
+			m_task.cancel();
+			m_task = null;
+		}
+	}
+	
+	private void scheduleFlush() {
+		if (m_window == PER_READ || m_task != null || m_cancelled)
+			return;
+		
+		m_task = new TimerTask() {
+			@Override
+			public void run() {
+				synchronized (AxisCoalescer.this) {
+					if (m_task != this)
+						return;
+					
+					m_task = null;
+					flush();
+				}
+				
+				//Batched clients get the frame as a single broadcast
+				m_reader.flushBatch();
+			}
+		};
+		getTimer().schedule(m_task, m_window);
+	}
+	
+	private static synchronized Timer getTimer() {
+		if (m_timer == null)
+			m_timer = new Timer("AxisCoalescer", true);
+		return m_timer;
+	}
+}
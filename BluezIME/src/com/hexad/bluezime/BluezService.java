@@ -1,413 +1,748 @@
-/* Copyright (C) 2011, Kenneth Skovhede
- * http://www.hexad.dk, opensource@hexad.dk
- * 
- * This library is free software; you can redistribute it and/or
- * modify it under the terms of the GNU Lesser General Public
- * License as published by the Free Software Foundation; either
- * version 2.1 of the License, or (at your option) any later version.
- * 
- * This library is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
- * Lesser General Public License for more details.
- * 
- * You should have received a copy of the GNU Lesser General Public
- * License along with this library; if not, write to the Free Software
- * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
-*/
-package com.hexad.bluezime;
-
-import java.util.ArrayList;
-import java.util.Hashtable;
-
-import android.app.IntentService;
-import android.bluetooth.BluetoothAdapter;
-import android.content.Intent;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
-import android.os.Binder;
-import android.os.IBinder;
-import android.util.Log;
-
-public class BluezService extends IntentService {
-	
-	private static final String[] BASE_DRIVER_NAMES = {
-		ZeemoteReader.DRIVER_NAME, 
-		BGP100Reader.DRIVER_NAME, 
-		PhonejoyReader.DRIVER_NAME,
-		iControlPadReader.DRIVER_NAME,
-		GameStopReader.DRIVER_NAME,
-		DataDumpReader.DRIVER_NAME
-	};
-	
-	private static final String[] BASE_DRIVER_DISPLAYNAMES = {
-		ZeemoteReader.DISPLAY_NAME, 
-		BGP100Reader.DISPLAY_NAME, 
-		PhonejoyReader.DISPLAY_NAME,
-		iControlPadReader.DISPLAY_NAME,
-		GameStopReader.DISPLAY_NAME,
-		DataDumpReader.DISPLAY_NAME
-	};
-	
-	private static final String[] HID_DRIVER_NAMES = {
-		WiimoteReader.DRIVER_NAME,
-		HIDKeyboard.DRIVER_NAME,
-		iCadeReader.DRIVER_NAME,
-        HIDipega.DRIVER_NAME
-	};
-
-	private static final String[] HID_DRIVER_DISPLAYNAMES = {
-		WiimoteReader.DISPLAY_NAME,
-		HIDKeyboard.DRIVER_DISPLAYNAME,
-		iCadeReader.DRIVER_DISPLAYNAME,
-        HIDipega.DRIVER_DISPLAYNAME
-	};
-
-	public static final String SESSION_ID = "com.hexad.bluezime.sessionid";
-	public static final String DEFAULT_SESSION_NAME = "com.hexad.bluezime.default_session";
-	
-	public static final String EVENT_KEYPRESS = "com.hexad.bluezime.keypress";
-	public static final String EVENT_KEYPRESS_KEY = "key";
-	public static final String EVENT_KEYPRESS_ACTION = "action";
-	public static final String EVENT_KEYPRESS_MODIFIERS = "modifiers";
-	public static final String EVENT_KEYPRESS_ANALOG_EMULATED = "emulated";
-
-	public static final String EVENT_DIRECTIONALCHANGE = "com.hexad.bluezime.directionalchange";
-	public static final String EVENT_DIRECTIONALCHANGE_DIRECTION = "direction";
-	public static final String EVENT_DIRECTIONALCHANGE_VALUE = "value";
-
-	public static final String EVENT_ACCELEROMETERCHANGE = "com.hexad.bluezime.accelerometerchange";
-	public static final String EVENT_ACCELEROMETERCHANGE_AXIS = "axis";
-	public static final String EVENT_ACCELEROMETERCHANGE_VALUE = "value";
-
-	public static final String EVENT_CONNECTING = "com.hexad.bluezime.connecting";
-	public static final String EVENT_CONNECTING_ADDRESS = "address";
-
-	public static final String EVENT_CONNECTED = "com.hexad.bluezime.connected";
-	public static final String EVENT_CONNECTED_ADDRESS = "address";
-
-	public static final String EVENT_DISCONNECTED = "com.hexad.bluezime.disconnected";
-	public static final String EVENT_DISCONNECTED_ADDRESS = "address";
-
-	public static final String EVENT_ERROR = "com.hexad.bluezime.error";
-	public static final String EVENT_ERROR_SHORT = "message";
-	public static final String EVENT_ERROR_FULL = "stacktrace";
-
-	public static final String REQUEST_CONNECT = "com.hexad.bluezime.connect";
-	public static final String REQUEST_CONNECT_ADDRESS = "address";
-	public static final String REQUEST_CONNECT_DRIVER = "driver";
-	public static final String REQUEST_CONNECT_USE_UI = "use-ui-setup";
-	public static final String REQUEST_CONNECT_CREATE_NOTIFICATION = "registernotification";
-		
-	public static final String REQUEST_DISCONNECT = "com.hexad.bluezime.disconnect";
-	
-	public static final String REQUEST_STATE = "com.hexad.bluezime.getstate";
-	
-	public static final String EVENT_REPORTSTATE = "com.hexad.bluezime.currentstate";
-	public static final String EVENT_REPORTSTATE_CONNECTED = "connected";
-	public static final String EVENT_REPORTSTATE_DEVICENAME = "devicename";
-	public static final String EVENT_REPORTSTATE_DISPLAYNAME = "displayname";
-	public static final String EVENT_REPORTSTATE_DRIVERNAME = "drivername";
-	
-	//The service caller can also activate these, but they are not used by Bluez-IME (=> Not tested!)
-	public static final String REQUEST_FEATURECHANGE = "com.hexad.bluezime.featurechange";
-	public static final String REQUEST_FEATURECHANGE_RUMBLE = "rumble"; //Boolean, true=on, false=off
-	public static final String REQUEST_FEATURECHANGE_LEDID = "ledid"; //Integer, LED to use 1-4 for Wiimote
-	public static final String REQUEST_FEATURECHANGE_ACCELEROMETER = "accelerometer"; //Boolean, true=on, false=off
-
-	public static final String REQUEST_CONFIG = "com.hexad.bluezime.getconfig";
-	
-	public static final String EVENT_REPORT_CONFIG = "com.hexad.bluezime.config";
-	public static final String EVENT_REPORT_CONFIG_VERSION = "version";
-	public static final String EVENT_REPORT_CONFIG_DRIVER_NAMES = "drivernames";
-	public static final String EVENT_REPORT_CONFIG_DRIVER_DISPLAYNAMES = "driverdisplaynames";
-	
-	private static final String LOG_NAME = "BluezService";
-	private final Binder binder = new LocalBinder();
-	
-	//private static BluezDriverInterface m_reader = null;
-	private static Hashtable<String, BluezDriverInterface> m_readers = new Hashtable<String, BluezDriverInterface>();
-
-	private static boolean hasProbedForHID = false;
-	private static boolean supportsHID = false;
-	
-	public BluezService() {
-		super(LOG_NAME);
-	}
-
-	@Override
-	public void onCreate() {
-		super.onCreate();
-	}
-	
-	public class LocalBinder extends Binder {
-		BluezService getService() {
-			return(BluezService.this);
-		}
-	}
-
-	@Override
-	public IBinder onBind(Intent intent) {
-		return binder;
-	}
-
-	@Override
-	protected void onHandleIntent(Intent intent) {
-		if (intent == null || intent.getAction() == null)
-			return;
-		
-		String sessionId = DEFAULT_SESSION_NAME;
-		if (intent.hasExtra(SESSION_ID))
-			sessionId = intent.getStringExtra(SESSION_ID);
-		
-		BluezDriverInterface reader = null;
-		synchronized (m_readers) {
-			if (sessionId != null && m_readers.containsKey(sessionId))
-				reader = m_readers.get(sessionId);
-		}
-
-		if (intent.getAction().equals(REQUEST_CONNECT)) {
-            String address = null;
-            String driver = null;
-			
-			if (intent.hasExtra(REQUEST_CONNECT_ADDRESS))
-				address = intent.getStringExtra(REQUEST_CONNECT_ADDRESS);
-			if (intent.hasExtra(REQUEST_CONNECT_DRIVER))
-				driver = intent.getStringExtra(REQUEST_CONNECT_DRIVER);
-			
-			if (address == null || driver == null) {
-				boolean use_ui = intent.getBooleanExtra(REQUEST_CONNECT_USE_UI, false);
-				Preferences p = new Preferences(this);
-
-				if (address == null)
-					address = p.getSelectedDeviceAddress(0);
-				if (driver == null)
-					driver = p.getSelectedDriverName(0);
-	            
-	            if (!use_ui) {
-	            	Log.w(LOG_NAME, "No driver/address set for connect request, please update your application. If this is intentional, please set the option " + REQUEST_CONNECT_USE_UI + " to true");
-	            }
-			}
-			
-			boolean startnotification = intent.getBooleanExtra(REQUEST_CONNECT_CREATE_NOTIFICATION, true);
-			connectToDevice(address, driver, sessionId, startnotification);
-		} else if (intent.getAction().equals(REQUEST_DISCONNECT)) {
-			disconnectFromDevice(sessionId);
-		} else if (intent.getAction().equals(REQUEST_FEATURECHANGE)) {
-			try 
-			{
-				//NOTE: Not tested!
-				
-				if (intent.hasExtra(REQUEST_FEATURECHANGE_RUMBLE)) {
-					if (reader != null && reader instanceof WiimoteReader) {
-						((WiimoteReader)reader).request_SetRumble(intent.getBooleanExtra(REQUEST_FEATURECHANGE_RUMBLE, false));
-					}
-				}
-
-				if (intent.hasExtra(REQUEST_FEATURECHANGE_ACCELEROMETER)) {
-					if (reader != null && reader instanceof WiimoteReader) {
-						((WiimoteReader)reader).request_UseAccelerometer(intent.getBooleanExtra(REQUEST_FEATURECHANGE_ACCELEROMETER, false));
-					}
-				}
-
-				if (intent.hasExtra(REQUEST_FEATURECHANGE_LEDID)) {
-					if (reader != null && reader instanceof WiimoteReader) {
-						int led = intent.getIntExtra(REQUEST_FEATURECHANGE_LEDID, 1);
-						((WiimoteReader)reader).request_SetLEDState(led == 1, led == 2, led == 3, led ==4);
-					}
-				}
-			} catch (Exception ex) {
-				notifyError(ex, sessionId);
-			}
-		} else if (intent.getAction().equals(REQUEST_STATE)) {
-			Intent i = new Intent(EVENT_REPORTSTATE);
-			
-			synchronized (this) {
-				i.putExtra(EVENT_REPORTSTATE_CONNECTED, reader != null);
-				i.putExtra(SESSION_ID, sessionId);
-				if (reader != null) {
-					i.putExtra(EVENT_REPORTSTATE_DEVICENAME, reader.getDeviceAddress());
-					i.putExtra(EVENT_REPORTSTATE_DISPLAYNAME, reader.getDeviceName());
-					i.putExtra(EVENT_REPORTSTATE_DRIVERNAME, reader.getDriverName());
-				}
-			}
-			
-			sendBroadcast(i);
-		} else if (intent.getAction().equals(REQUEST_CONFIG)) {
-			Intent i = new Intent(EVENT_REPORT_CONFIG);
-			
-			int version = 0;
-			try
-			{
-			    version = this.getPackageManager().getPackageInfo(this.getPackageName(), 0).versionCode;
-			}
-			catch (NameNotFoundException e)
-			{
-			    Log.w(LOG_NAME, e.getMessage());
-			}
-			
-			i.putExtra(SESSION_ID, sessionId);
-			i.putExtra(EVENT_REPORT_CONFIG_VERSION, version);
-			i.putExtra(EVENT_REPORT_CONFIG_DRIVER_NAMES, getDriverNames());
-			i.putExtra(EVENT_REPORT_CONFIG_DRIVER_DISPLAYNAMES, getDriverDisplayNames());
-			
-			sendBroadcast(i);
-		} else {
-			notifyError(new Exception(this.getString(R.string.bluetooth_unsupported)), sessionId);
-		}
-	}
-
-	private synchronized void disconnectFromDevice(String sessionId)
-	{
-		String adr = "<null>"; 
-		try
-		{
-			BluezDriverInterface reader = null;
-			synchronized (m_readers) {
-				if (sessionId != null && m_readers.containsKey(sessionId))
-					reader = m_readers.get(sessionId);
-			}
-			
-			if (reader != null) {
-				adr = reader.getDeviceAddress();
-				reader.stop();
-			}
-		}
-		catch (Exception ex)
-		{
-        	Log.e(LOG_NAME, "Error on disconnect from " + adr + ", message: " + ex.toString());
-        	notifyError(ex, sessionId);
-		}
-		finally
-		{
-			synchronized (m_readers) {
-				if (sessionId != null && m_readers.containsKey(sessionId))
-					m_readers.remove(sessionId);
-			}
-		}
-	}
-	
-	private synchronized void connectToDevice(String address, String driver, String sessionId, boolean startnotification) {
-		try {
-			if (sessionId == null || sessionId.trim().length() == 0)
-				throw new Exception("Invalid call, no session id specified, this is an API violation, please report to the app maker");
-			if (driver == null || driver.trim().length() == 0)
-				throw new Exception("Invalid call, no driver specified, this is an API violation, please report to the app maker");
-
-			//The error message is slightly different here because it is possible for the user to activate the IME without selecting a device
-			if (address == null || address.trim().length() == 0)
-				throw new Exception("No device selected, please select a device");
-
-			BluetoothAdapter blue = BluetoothAdapter.getDefaultAdapter();
-			if (blue == null)
-				throw new Exception(this.getString(R.string.bluetooth_unsupported));
-			if (!blue.isEnabled())
-				throw new Exception(this.getString(R.string.error_bluetooth_off));
-
-			BluezDriverInterface reader = null;
-			
-			synchronized (m_readers) {
-				if (sessionId != null && m_readers.containsKey(sessionId))
-					reader = m_readers.get(sessionId);
-			
-				if (reader != null)
-				{
-					if (reader.isRunning() && address.equals(reader.getDeviceAddress()) && driver.toLowerCase().equals(reader.getDriverName()))
-						return; //Already connected
-					
-					//Connect to other device, disconnect
-					disconnectFromDevice(sessionId);
-				}
-				
-				Intent connectingBroadcast = new Intent(EVENT_CONNECTING);
-				connectingBroadcast.putExtra(EVENT_CONNECTING_ADDRESS, address);
-				connectingBroadcast.putExtra(SESSION_ID, sessionId);
-				sendBroadcast(connectingBroadcast);
-	
-				if (driver.toLowerCase().equals(ZeemoteReader.DRIVER_NAME.toLowerCase()))
-					reader = new ZeemoteReader(address, sessionId, getApplicationContext(), startnotification);
-				else if (driver.toLowerCase().equals(BGP100Reader.DRIVER_NAME.toLowerCase()))
-					reader = new BGP100Reader(address, sessionId, getApplicationContext(), startnotification);
-				else if (driver.toLowerCase().equals(PhonejoyReader.DRIVER_NAME.toLowerCase()))
-					reader = new PhonejoyReader(address, sessionId, getApplicationContext(), startnotification);
-				else if (driver.toLowerCase().equals(DataDumpReader.DRIVER_NAME.toLowerCase()))
-					reader = new DataDumpReader(address, sessionId, getApplicationContext(), startnotification);
-				else if (driver.toLowerCase().equals(iControlPadReader.DRIVER_NAME.toLowerCase()))
-					reader = new iControlPadReader(address, sessionId, getApplicationContext(), startnotification);
-				else if (driver.toLowerCase().equals(WiimoteReader.DRIVER_NAME.toLowerCase()))
-					reader = new WiimoteReader(address, sessionId, getApplicationContext(), startnotification);
-				else if (driver.toLowerCase().equals(HIDKeyboard.DRIVER_NAME.toLowerCase()))
-					reader = new HIDKeyboard(address, sessionId, getApplicationContext(), startnotification);
-				else if (driver.toLowerCase().equals(iCadeReader.DRIVER_NAME.toLowerCase()))
-					reader = new iCadeReader(address, sessionId, getApplicationContext(), startnotification);
-				else if (driver.toLowerCase().equals(GameStopReader.DRIVER_NAME.toLowerCase()))
-					reader = new GameStopReader(address, sessionId, getApplicationContext(), startnotification);
-                else if (driver.toLowerCase().equals(HIDipega.DRIVER_NAME.toLowerCase()))
-                    reader = new HIDipega(address, sessionId, getApplicationContext(), startnotification);
-				else
-					throw new Exception(String.format(this.getString(R.string.invalid_driver), driver));
-				
-				m_readers.put(sessionId, reader);
-			}
-			
-			new Thread(reader).start();
-		} catch (Exception ex) {
-			notifyError(ex, sessionId);
-		}
-	}
-	
-	public String[] getDriverNames() {
-		ArrayList<String> drivers = new ArrayList<String>(); 
-		for(int i = 0; i < BASE_DRIVER_NAMES.length; i++)
-			drivers.add(BASE_DRIVER_NAMES[i]);
-		
-		if (hasHIDSupport())
-			for(int i = 0; i < HID_DRIVER_NAMES.length; i++)
-				drivers.add(HID_DRIVER_NAMES[i]);
-		
-		return drivers.toArray(new String[drivers.size()]); 
-	}
-	public String[] getDriverDisplayNames() { 
-		ArrayList<String> drivers = new ArrayList<String>(); 
-		for(int i = 0; i < BASE_DRIVER_DISPLAYNAMES.length; i++)
-			drivers.add(BASE_DRIVER_DISPLAYNAMES[i]);
-
-		if (hasHIDSupport())
-			for(int i = 0; i < HID_DRIVER_DISPLAYNAMES.length; i++)
-				drivers.add(HID_DRIVER_DISPLAYNAMES[i]);
-
-		return drivers.toArray(new String[drivers.size()]); 
-	}
-	
-	public static String getDefaultDriverName() { return BASE_DRIVER_NAMES[0]; }
-
-	private boolean hasHIDSupport() {
-		if (!hasProbedForHID) {
-			hasProbedForHID = true;
-			supportsHID = false;
-			try {			
-				PackageInfo pi = this.getPackageManager().getPackageInfo("com.hexad.bluezime.hidenabler", PackageManager.GET_GIDS);
-				supportsHID = pi != null;
-			} catch (NameNotFoundException e) {
-				
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
-		
-		return supportsHID; 
-	}
-	
-	private void notifyError(Exception ex, String sessionId) {
-		Log.e(LOG_NAME, ex.toString());
-
-		Intent errorBroadcast = new Intent(EVENT_ERROR);
-		errorBroadcast.putExtra(EVENT_ERROR_SHORT, ex.getMessage());
-		errorBroadcast.putExtra(EVENT_ERROR_FULL, ex.toString());
-		errorBroadcast.putExtra(SESSION_ID, sessionId);
-		sendBroadcast(errorBroadcast);
-		
-		disconnectFromDevice(sessionId);
-	}
-}
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.NoSuchElementException;
+
+import android.app.IntentService;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+public class BluezService extends IntentService {
+	
+	private static final String[] BASE_DRIVER_NAMES = {
+		ZeemoteReader.DRIVER_NAME, 
+		BGP100Reader.DRIVER_NAME, 
+		PhonejoyReader.DRIVER_NAME,
+		iControlPadReader.DRIVER_NAME,
+		GameStopReader.DRIVER_NAME,
+		DataDumpReader.DRIVER_NAME,
+		DriverDetector.DRIVER_NAME
+	};
+	
+	private static final String[] BASE_DRIVER_DISPLAYNAMES = {
+		ZeemoteReader.DISPLAY_NAME, 
+		BGP100Reader.DISPLAY_NAME, 
+		PhonejoyReader.DISPLAY_NAME,
+		iControlPadReader.DISPLAY_NAME,
+		GameStopReader.DISPLAY_NAME,
+		DataDumpReader.DISPLAY_NAME,
+		DriverDetector.DISPLAY_NAME
+	};
+	
+	private static final String[] HID_DRIVER_NAMES = {
+		WiimoteReader.DRIVER_NAME,
+		HIDKeyboard.DRIVER_NAME,
+		iCadeReader.DRIVER_NAME,
+        HIDipega.DRIVER_NAME
+	};
+
+	private static final String[] HID_DRIVER_DISPLAYNAMES = {
+		WiimoteReader.DISPLAY_NAME,
+		HIDKeyboard.DRIVER_DISPLAYNAME,
+		iCadeReader.DRIVER_DISPLAYNAME,
+        HIDipega.DRIVER_DISPLAYNAME
+	};
+
+	public static final String SESSION_ID = "com.hexad.bluezime.sessionid";
+	public static final String DEFAULT_SESSION_NAME = "com.hexad.bluezime.default_session";
+	
+	public static final String EVENT_KEYPRESS = "com.hexad.bluezime.keypress";
+	public static final String EVENT_KEYPRESS_KEY = "key";
+	public static final String EVENT_KEYPRESS_ACTION = "action";
+	public static final String EVENT_KEYPRESS_MODIFIERS = "modifiers";
+	public static final String EVENT_KEYPRESS_ANALOG_EMULATED = "emulated";
+
+	public static final String EVENT_DIRECTIONALCHANGE = "com.hexad.bluezime.directionalchange";
+	public static final String EVENT_DIRECTIONALCHANGE_DIRECTION = "direction";
+	public static final String EVENT_DIRECTIONALCHANGE_VALUE = "value";
+
+	public static final String EVENT_ACCELEROMETERCHANGE = "com.hexad.bluezime.accelerometerchange";
+	public static final String EVENT_ACCELEROMETERCHANGE_AXIS = "axis";
+	public static final String EVENT_ACCELEROMETERCHANGE_VALUE = "value";
+
+	//Present on all input events, Long, the System.nanoTime() of the socket read that produced the event
+	public static final String EVENT_READTIME = "readtime";
+
+	//Sent instead of the individual events if the session requested batched delivery
+	public static final String EVENT_BATCH = "com.hexad.bluezime.batch";
+	public static final String EVENT_BATCH_DATA = "data"; //Integer array, EVENT_BATCH_FIELDS values per event
+	public static final int EVENT_BATCH_FIELDS = 5;
+	public static final int EVENT_BATCH_FIELD_TYPE = 0; //One of the EVENT_BATCH_TYPE_* values
+	public static final int EVENT_BATCH_FIELD_KEY = 1; //The key or the axis
+	public static final int EVENT_BATCH_FIELD_ACTION = 2; //Key action
+	public static final int EVENT_BATCH_FIELD_MODIFIERS = 3; //Key modifiers
+	public static final int EVENT_BATCH_FIELD_VALUE = 4; //Axis value, or 1 if the keypress is analog emulated
+	public static final int EVENT_BATCH_TYPE_KEYPRESS = 1;
+	public static final int EVENT_BATCH_TYPE_DIRECTIONALCHANGE = 2;
+	public static final int EVENT_BATCH_TYPE_ACCELEROMETERCHANGE = 3;
+
+	public static final String EVENT_CONNECTING = "com.hexad.bluezime.connecting";
+	public static final String EVENT_CONNECTING_ADDRESS = "address";
+
+	public static final String EVENT_CONNECTED = "com.hexad.bluezime.connected";
+	public static final String EVENT_CONNECTED_ADDRESS = "address";
+
+	public static final String EVENT_DISCONNECTED = "com.hexad.bluezime.disconnected";
+	public static final String EVENT_DISCONNECTED_ADDRESS = "address";
+
+	//Sent when a session that dropped has been connected again by the reconnect supervisor
+	public static final String EVENT_RECONNECTED = "com.hexad.bluezime.reconnected";
+	public static final String EVENT_RECONNECTED_ADDRESS = "address";
+	public static final String EVENT_RECONNECTED_ATTEMPTS = "attempts"; //Integer, the number of connect attempts used
+	public static final String EVENT_RECONNECTED_DOWNTIME = "downtime"; //Long, ms from the drop until the session was connected
+
+	public static final String EVENT_ERROR = "com.hexad.bluezime.error";
+	public static final String EVENT_ERROR_SHORT = "message";
+	public static final String EVENT_ERROR_FULL = "stacktrace";
+
+	public static final String REQUEST_CONNECT = "com.hexad.bluezime.connect";
+	public static final String REQUEST_CONNECT_ADDRESS = "address";
+	public static final String REQUEST_CONNECT_DRIVER = "driver";
+	public static final String REQUEST_CONNECT_USE_UI = "use-ui-setup";
+	public static final String REQUEST_CONNECT_CREATE_NOTIFICATION = "registernotification";
+	public static final String REQUEST_CONNECT_BATCHED = "batched"; //Boolean, true=send EVENT_BATCH instead of individual events
+	public static final String REQUEST_CONNECT_COALESCE_AXES = "coalesceaxes"; //Integer, -1=off, 0=latest value per read, >0=window in ms
+	//Set by ReconnectSupervisor on its attempts, which only report an error when it gives up
+	static final String REQUEST_CONNECT_RECONNECT = "reconnect";
+		
+	//Bind with this action to get an IBluezService interface for registering event callbacks
+	public static final String REQUEST_BIND_EVENTS = "com.hexad.bluezime.bindevents";
+		
+	public static final String REQUEST_DISCONNECT = "com.hexad.bluezime.disconnect";
+	
+	public static final String REQUEST_STATE = "com.hexad.bluezime.getstate";
+	
+	public static final String EVENT_REPORTSTATE = "com.hexad.bluezime.currentstate";
+	public static final String EVENT_REPORTSTATE_CONNECTED = "connected";
+	public static final String EVENT_REPORTSTATE_DEVICENAME = "devicename";
+	public static final String EVENT_REPORTSTATE_DISPLAYNAME = "displayname";
+	public static final String EVENT_REPORTSTATE_DRIVERNAME = "drivername";
+	public static final String EVENT_REPORTSTATE_THREADSTATE = "threadstate"; //String, the state of the reader thread
+	public static final String EVENT_REPORTSTATE_SESSIONSTATE = "sessionstate"; //String, connecting, connected or stopping, missing if there is no session
+	
+	//The service caller can also activate these, but they are not used by Bluez-IME (=> Not tested!)
+	public static final String REQUEST_FEATURECHANGE = "com.hexad.bluezime.featurechange";
+	public static final String REQUEST_FEATURECHANGE_RUMBLE = "rumble"; //Boolean, true=on, false=off
+	public static final String REQUEST_FEATURECHANGE_LEDID = "ledid"; //Integer, LED to use 1-4 for Wiimote
+	public static final String REQUEST_FEATURECHANGE_ACCELEROMETER = "accelerometer"; //Boolean, true=on, false=off
+
+	public static final String REQUEST_CONFIG = "com.hexad.bluezime.getconfig";
+	
+	public static final String EVENT_REPORT_CONFIG = "com.hexad.bluezime.config";
+	public static final String EVENT_REPORT_CONFIG_VERSION = "version";
+	public static final String EVENT_REPORT_CONFIG_DRIVER_NAMES = "drivernames";
+	public static final String EVENT_REPORT_CONFIG_DRIVER_DISPLAYNAMES = "driverdisplaynames";
+	
+	//Reports the input latency histograms recorded by the IME for the session
+	public static final String REQUEST_STATS = "com.hexad.bluezime.getstats";
+	public static final String REQUEST_STATS_RESET = "reset"; //Boolean, true=clear the histograms after reporting
+	
+	public static final String EVENT_REPORT_STATS = "com.hexad.bluezime.stats";
+	public static final String EVENT_REPORT_STATS_BUCKETS = "buckets"; //Long array, upper limit of each bucket in microseconds
+	public static final String EVENT_REPORT_STATS_READ_PARSE = "readparse"; //Integer array, count per bucket
+	public static final String EVENT_REPORT_STATS_PARSE_DISPATCH = "parsedispatch"; //Integer array, count per bucket
+	public static final String EVENT_REPORT_STATS_DISPATCH_INJECT = "dispatchinject"; //Integer array, count per bucket
+	public static final String EVENT_REPORT_STATS_MEAN = "mean"; //Long array, mean microseconds per stage
+	public static final String EVENT_REPORT_STATS_MAX = "max"; //Long array, max microseconds per stage
+	public static final String EVENT_REPORT_STATS_DROPPED = "dropped"; //Integer, events that overflowed the in-process queue and were broadcast instead
+	
+	//Runs a capacity test with simulated controllers, see LoadGenerator, all values are optional
+	public static final String REQUEST_LOAD_TEST = "com.hexad.bluezime.loadtest";
+	public static final String REQUEST_LOAD_TEST_SESSIONS = "sessions"; //Integer, the number of simulated controllers
+	public static final String REQUEST_LOAD_TEST_KEY_RATE = "keyrate"; //Integer, key events per second for each controller
+	public static final String REQUEST_LOAD_TEST_AXIS_RATE = "axisrate"; //Integer, analog events per second for each controller
+	public static final String REQUEST_LOAD_TEST_ACCELEROMETER_RATE = "accelrate"; //Integer, accelerometer events per second for each controller
+	public static final String REQUEST_LOAD_TEST_KEYBOARD_RATE = "keyboardrate"; //Integer, key events per second for an extra keyboard session, 0=no keyboard
+	public static final String REQUEST_LOAD_TEST_INTERVAL = "interval"; //Integer, ms between two simulated reads
+	public static final String REQUEST_LOAD_TEST_DURATION = "duration"; //Integer, seconds to measure
+	public static final String REQUEST_LOAD_TEST_SESSION_PREFIX = "sessionprefix"; //String, the session ids are the prefix and the controller number, default is the IME controllers
+	
+	public static final String EVENT_LOAD_TEST_RESULT = "com.hexad.bluezime.loadtestresult";
+	public static final String EVENT_LOAD_TEST_RESULT_SESSIONS = "sessions"; //Integer, the number of controllers that connected
+	public static final String EVENT_LOAD_TEST_RESULT_DURATION = "duration"; //Long, ms measured
+	public static final String EVENT_LOAD_TEST_RESULT_EVENTS = "events"; //Long, events sent by the controllers
+	public static final String EVENT_LOAD_TEST_RESULT_RATE = "rate"; //Long, events sent per second
+	public static final String EVENT_LOAD_TEST_RESULT_DELIVERED = "delivered"; //Long, events read from the in-process queue by the IME
+	public static final String EVENT_LOAD_TEST_RESULT_DROPPED = "dropped"; //Integer, events that overflowed the in-process queue and were broadcast instead
+	public static final String EVENT_LOAD_TEST_RESULT_PERCENTILES = "percentiles"; //Double array, the fractions used for the latency arrays
+	public static final String EVENT_LOAD_TEST_RESULT_READ_PARSE = "readparse"; //Long array, microseconds per percentile, -1 if nothing was recorded
+	public static final String EVENT_LOAD_TEST_RESULT_PARSE_DISPATCH = "parsedispatch"; //Long array, microseconds per percentile, -1 if nothing was recorded
+	public static final String EVENT_LOAD_TEST_RESULT_DISPATCH_INJECT = "dispatchinject"; //Long array, microseconds per percentile, -1 if nothing was recorded
+	public static final String EVENT_LOAD_TEST_RESULT_MAX = "max"; //Long array, max microseconds per stage
+	
+	private static final String LOG_NAME = "BluezService";
+	private final Binder binder = new LocalBinder();
+	
+	//Callbacks registered by bound clients, also guards setting them on the readers
+	private static Hashtable<String, IBluezEventCallback> m_callbacks = new Hashtable<String, IBluezEventCallback>();
+	//The death recipient linked to each registered callback, guarded by m_callbacks
+	private static Hashtable<String, IBinder.DeathRecipient> m_deathRecipients = new Hashtable<String, IBinder.DeathRecipient>();
+
+	private static boolean hasProbedForHID = false;
+	private static boolean supportsHID = false;
+	
+	public BluezService() {
+		super(LOG_NAME);
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		
+		//Sessions that drop without being disconnected are reconnected automatically
+		InputThreadPool.getInstance().setExitListener(ReconnectSupervisor.getInstance(this));
+	}
+	
+	public class LocalBinder extends Binder {
+		BluezService getService() {
+			return(BluezService.this);
+		}
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		if (intent != null && REQUEST_BIND_EVENTS.equals(intent.getAction()))
+			return eventBinder;
+		
+		return binder;
+	}
+	
+	private final IBluezService.Stub eventBinder = new IBluezService.Stub() {
+		@Override
+		public void registerCallback(final String sessionId, final IBluezEventCallback callback) throws RemoteException {
+			if (sessionId == null || callback == null)
+				return;
+			
+			//Make sure we stop sending events if the client dies
+			IBinder.DeathRecipient recipient = new IBinder.DeathRecipient() {
+				@Override
+				public void binderDied() {
+					removeCallback(sessionId, callback);
+				}
+			};
+			callback.asBinder().linkToDeath(recipient, 0);
+			
+			synchronized (m_callbacks) {
+				IBluezEventCallback previous = m_callbacks.put(sessionId, callback);
+				IBinder.DeathRecipient previousRecipient = m_deathRecipients.put(sessionId, recipient);
+				if (previous != null && previousRecipient != null)
+					unlinkCallback(previous, previousRecipient);
+				
+				BluezDriverInterface reader = SessionRegistry.getInstance().getReader(sessionId);
+				if (reader instanceof RfcommReader)
+					((RfcommReader)reader).setEventCallback(callback);
+			}
+		}
+
+		@Override
+		public void unregisterCallback(String sessionId, IBluezEventCallback callback) throws RemoteException {
+			if (sessionId == null || callback == null)
+				return;
+			
+			removeCallback(sessionId, callback);
+		}
+	};
+	
+	private static void removeCallback(String sessionId, IBluezEventCallback callback) {
+		synchronized (m_callbacks) {
+			IBluezEventCallback current = m_callbacks.get(sessionId);
+			if (current == null || current.asBinder() != callback.asBinder())
+				return;
+			
+			m_callbacks.remove(sessionId);
+			
+			IBinder.DeathRecipient recipient = m_deathRecipients.remove(sessionId);
+			if (recipient != null)
+				unlinkCallback(current, recipient);
+			
+			BluezDriverInterface reader = SessionRegistry.getInstance().getReader(sessionId);
+			if (reader instanceof RfcommReader)
+				((RfcommReader)reader).setEventCallback(null);
+		}
+	}
+
+	private static void unlinkCallback(IBluezEventCallback callback, IBinder.DeathRecipient recipient) {
+		try {
+			callback.asBinder().unlinkToDeath(recipient, 0);
+		} catch (NoSuchElementException ex) {
+			//The client died, so the link is already gone
+		}
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		if (intent == null || intent.getAction() == null)
+			return;
+		
+		String sessionId = DEFAULT_SESSION_NAME;
+		if (intent.hasExtra(SESSION_ID))
+			sessionId = intent.getStringExtra(SESSION_ID);
+		
+		//Only connected sessions have a reader, a session that is still connecting does not block us
+		BluezDriverInterface reader = SessionRegistry.getInstance().getReader(sessionId);
+
+		if (intent.getAction().equals(REQUEST_CONNECT)) {
+            String address = null;
+            String driver = null;
+            final String sid = sessionId;
+			
+			if (intent.hasExtra(REQUEST_CONNECT_ADDRESS))
+				address = intent.getStringExtra(REQUEST_CONNECT_ADDRESS);
+			if (intent.hasExtra(REQUEST_CONNECT_DRIVER))
+				driver = intent.getStringExtra(REQUEST_CONNECT_DRIVER);
+			
+			if (address == null || driver == null) {
+				boolean use_ui = intent.getBooleanExtra(REQUEST_CONNECT_USE_UI, false);
+				Preferences p = new Preferences(this);
+
+				if (address == null)
+					address = p.getSelectedDeviceAddress(0);
+				if (driver == null)
+					driver = p.getSelectedDriverName(0);
+	            
+	            if (!use_ui) {
+	            	Log.w(LOG_NAME, "No driver/address set for connect request, please update your application. If this is intentional, please set the option " + REQUEST_CONNECT_USE_UI + " to true");
+	            }
+			}
+			
+			final String fAddress = address;
+			final String fDriver = driver;
+			final boolean startnotification = intent.getBooleanExtra(REQUEST_CONNECT_CREATE_NOTIFICATION, true);
+			final boolean batched = intent.getBooleanExtra(REQUEST_CONNECT_BATCHED, false);
+			final int coalesce = intent.getIntExtra(REQUEST_CONNECT_COALESCE_AXES, AxisCoalescer.DISABLED);
+			final boolean reconnect = intent.getBooleanExtra(REQUEST_CONNECT_RECONNECT, false);
+			
+			//Connecting may block for seconds, so each session connects on its own thread
+			runForSession(sessionId, new Runnable() {
+				@Override
+				public void run() {
+					connectToDevice(fAddress, fDriver, sid, startnotification, batched, coalesce, reconnect);
+				}
+			});
+		} else if (intent.getAction().equals(REQUEST_DISCONNECT)) {
+			if (sessionId != null)
+				ReconnectSupervisor.getInstance(this).cancel(sessionId);
+			
+			final String sid = sessionId;
+			runForSession(sessionId, new Runnable() {
+				@Override
+				public void run() {
+					disconnectFromDevice(sid);
+				}
+			});
+		} else if (intent.getAction().equals(REQUEST_FEATURECHANGE)) {
+			try 
+			{
+				//NOTE: Not tested!
+				
+				if (intent.hasExtra(REQUEST_FEATURECHANGE_RUMBLE)) {
+					if (reader != null && reader instanceof WiimoteReader) {
+						((WiimoteReader)reader).request_SetRumble(intent.getBooleanExtra(REQUEST_FEATURECHANGE_RUMBLE, false));
+					}
+				}
+
+				if (intent.hasExtra(REQUEST_FEATURECHANGE_ACCELEROMETER)) {
+					if (reader != null && reader instanceof WiimoteReader) {
+						((WiimoteReader)reader).request_UseAccelerometer(intent.getBooleanExtra(REQUEST_FEATURECHANGE_ACCELEROMETER, false));
+					}
+				}
+
+				if (intent.hasExtra(REQUEST_FEATURECHANGE_LEDID)) {
+					if (reader != null && reader instanceof WiimoteReader) {
+						int led = intent.getIntExtra(REQUEST_FEATURECHANGE_LEDID, 1);
+						((WiimoteReader)reader).request_SetLEDState(led == 1, led == 2, led == 3, led ==4);
+					}
+				}
+			} catch (Exception ex) {
+				notifyError(ex, sessionId);
+			}
+		} else if (intent.getAction().equals(REQUEST_STATE)) {
+			Intent i = new Intent(EVENT_REPORTSTATE);
+			
+			i.putExtra(EVENT_REPORTSTATE_CONNECTED, reader != null);
+			i.putExtra(SESSION_ID, sessionId);
+			
+			SessionRegistry.Session session = SessionRegistry.getInstance().get(sessionId);
+			if (session != null)
+				i.putExtra(EVENT_REPORTSTATE_SESSIONSTATE, SessionRegistry.getStateName(session.getState()));
+			
+			if (reader != null) {
+				i.putExtra(EVENT_REPORTSTATE_DEVICENAME, reader.getDeviceAddress());
+				i.putExtra(EVENT_REPORTSTATE_DISPLAYNAME, reader.getDeviceName());
+				i.putExtra(EVENT_REPORTSTATE_DRIVERNAME, reader.getDriverName());
+				
+				Thread.State state = InputThreadPool.getInstance().getThreadState(sessionId);
+				if (state != null)
+					i.putExtra(EVENT_REPORTSTATE_THREADSTATE, state.name());
+			}
+			
+			sendBroadcast(i);
+		} else if (intent.getAction().equals(REQUEST_CONFIG)) {
+			Intent i = new Intent(EVENT_REPORT_CONFIG);
+			
+			int version = 0;
+			try
+			{
+			    version = this.getPackageManager().getPackageInfo(this.getPackageName(), 0).versionCode;
+			}
+			catch (NameNotFoundException e)
+			{
+			    Log.w(LOG_NAME, e.getMessage());
+			}
+			
+			i.putExtra(SESSION_ID, sessionId);
+			i.putExtra(EVENT_REPORT_CONFIG_VERSION, version);
+			i.putExtra(EVENT_REPORT_CONFIG_DRIVER_NAMES, getDriverNames());
+			i.putExtra(EVENT_REPORT_CONFIG_DRIVER_DISPLAYNAMES, getDriverDisplayNames());
+			
+			sendBroadcast(i);
+		} else if (intent.getAction().equals(REQUEST_STATS)) {
+			Intent i = new Intent(EVENT_REPORT_STATS);
+			
+			i.putExtra(SESSION_ID, sessionId);
+			i.putExtra(EVENT_REPORT_STATS_BUCKETS, LatencyStats.getBucketLimits());
+			i.putExtra(EVENT_REPORT_STATS_DROPPED, InputEventQueue.getInstance().getDroppedCount());
+			
+			LatencyStats.Session stats = LatencyStats.getInstance().findSession(sessionId);
+			if (stats != null) {
+				long[] mean = new long[LatencyStats.STAGE_COUNT];
+				long[] max = new long[LatencyStats.STAGE_COUNT];
+				for(int j = 0; j < LatencyStats.STAGE_COUNT; j++) {
+					mean[j] = stats.getMean(j);
+					max[j] = stats.getMax(j);
+				}
+				
+				i.putExtra(EVENT_REPORT_STATS_READ_PARSE, stats.getBuckets(LatencyStats.STAGE_READ_PARSE));
+				i.putExtra(EVENT_REPORT_STATS_PARSE_DISPATCH, stats.getBuckets(LatencyStats.STAGE_PARSE_DISPATCH));
+				i.putExtra(EVENT_REPORT_STATS_DISPATCH_INJECT, stats.getBuckets(LatencyStats.STAGE_DISPATCH_INJECT));
+				i.putExtra(EVENT_REPORT_STATS_MEAN, mean);
+				i.putExtra(EVENT_REPORT_STATS_MAX, max);
+				
+				if (intent.getBooleanExtra(REQUEST_STATS_RESET, false))
+					stats.reset();
+			}
+			
+			sendBroadcast(i);
+		} else if (intent.getAction().equals(REQUEST_LOAD_TEST)) {
+			if (!isTestingEnabled()) {
+				notifyError(new Exception("Load tests are only available in debuggable builds"), sessionId);
+				return;
+			}
+			
+			LoadGenerator.Settings settings = new LoadGenerator.Settings();
+			settings.sessions = intent.getIntExtra(REQUEST_LOAD_TEST_SESSIONS, settings.sessions);
+			settings.keyRate = intent.getIntExtra(REQUEST_LOAD_TEST_KEY_RATE, settings.keyRate);
+			settings.axisRate = intent.getIntExtra(REQUEST_LOAD_TEST_AXIS_RATE, settings.axisRate);
+			settings.accelerometerRate = intent.getIntExtra(REQUEST_LOAD_TEST_ACCELEROMETER_RATE, settings.accelerometerRate);
+			settings.keyboardRate = intent.getIntExtra(REQUEST_LOAD_TEST_KEYBOARD_RATE, settings.keyboardRate);
+			settings.interval = intent.getIntExtra(REQUEST_LOAD_TEST_INTERVAL, settings.interval);
+			settings.duration = intent.getIntExtra(REQUEST_LOAD_TEST_DURATION, settings.duration);
+			settings.batched = intent.getBooleanExtra(REQUEST_CONNECT_BATCHED, settings.batched);
+			settings.coalesce = intent.getIntExtra(REQUEST_CONNECT_COALESCE_AXES, settings.coalesce);
+			if (intent.hasExtra(REQUEST_LOAD_TEST_SESSION_PREFIX))
+				settings.sessionPrefix = intent.getStringExtra(REQUEST_LOAD_TEST_SESSION_PREFIX);
+			
+			if (!LoadGenerator.getInstance(this).start(settings))
+				notifyError(new Exception("A load test is already running"), sessionId);
+		} else {
+			notifyError(new Exception(this.getString(R.string.bluetooth_unsupported)), sessionId);
+		}
+	}
+
+	//Queues the request on the worker for the session,
+	// requests without a session are invalid and are run right away so they fail
+	private void runForSession(String sessionId, Runnable task) {
+		if (sessionId == null)
+			task.run();
+		else
+			ConnectionExecutor.getInstance().execute(sessionId, task);
+	}
+
+	private void disconnectFromDevice(String sessionId)
+	{
+		if (sessionId == null)
+			return;
+		
+		//Only requests for the same session need to wait for each other
+		synchronized (ConnectionExecutor.getInstance().getSessionLock(sessionId)) {
+			SessionRegistry.Session session = SessionRegistry.getInstance().get(sessionId);
+			if (session == null || !session.beginStop())
+				return;
+			
+			String adr = "<null>"; 
+			try
+			{
+				BluezDriverInterface reader = session.getReader();
+				if (reader != null) {
+					adr = reader.getDeviceAddress();
+					InputThreadPool.getInstance().stop(sessionId, reader);
+				}
+			}
+			catch (Exception ex)
+			{
+	        	Log.e(LOG_NAME, "Error on disconnect from " + adr + ", message: " + ex.toString());
+	        	notifyError(ex, sessionId);
+			}
+			finally
+			{
+				SessionRegistry.getInstance().remove(session);
+			}
+		}
+	}
+	
+	private void connectToDevice(String address, String driver, String sessionId, boolean startnotification, boolean batched, int coalesce, boolean reconnect) {
+		//The readers do not report the errors of a reconnect attempt, we do when the supervisor gives up
+		if (reconnect)
+			RfcommReader.setProbing(true);
+		
+		try {
+			if (sessionId == null || sessionId.trim().length() == 0)
+				throw new Exception("Invalid call, no session id specified, this is an API violation, please report to the app maker");
+			
+			synchronized (ConnectionExecutor.getInstance().getSessionLock(sessionId)) {
+				connectSession(address, driver, sessionId, startnotification, batched, coalesce);
+			}
+		} catch (Exception ex) {
+			boolean retrying = sessionId != null && ReconnectSupervisor.getInstance(this).onConnectFailed(sessionId);
+			
+			if (reconnect && retrying)
+				Log.w(LOG_NAME, "Reconnect attempt for " + sessionId + " failed: " + ex.toString());
+			else
+				notifyError(ex, sessionId);
+		} finally {
+			if (reconnect)
+				RfcommReader.setProbing(false);
+		}
+	}
+	
+	private void connectSession(String address, String driver, String sessionId, boolean startnotification, boolean batched, int coalesce) throws Exception {
+		if (driver == null || driver.trim().length() == 0)
+			throw new Exception("Invalid call, no driver specified, this is an API violation, please report to the app maker");
+
+		//The error message is slightly different here because it is possible for the user to activate the IME without selecting a device
+		if (address == null || address.trim().length() == 0)
+			throw new Exception("No device selected, please select a device");
+
+		//A replay reads from a trace file and a synthetic controller makes up its data, so they work without Bluetooth
+		boolean simulated = driver.toLowerCase().equals(ReplayReader.DRIVER_NAME) || driver.toLowerCase().equals(SyntheticReader.DRIVER_NAME);
+		
+		//Any app can send us requests, and the test drivers inject made up input, so they are not part of release builds
+		if (simulated && !isTestingEnabled())
+			throw new Exception("The driver " + driver + " is only available in debuggable builds");
+		
+		BluetoothAdapter blue = BluetoothAdapter.getDefaultAdapter();
+		if (!simulated && blue == null)
+			throw new Exception(this.getString(R.string.bluetooth_unsupported));
+		if (!simulated && !blue.isEnabled())
+			throw new Exception(this.getString(R.string.error_bluetooth_off));
+
+		//With automatic detection, any driver that is connected to the device will do
+		boolean detect = driver.toLowerCase().equals(DriverDetector.DRIVER_NAME);
+		
+		SessionRegistry.Session current = SessionRegistry.getInstance().get(sessionId);
+		BluezDriverInterface reader = current == null ? null : current.getReader();
+		
+		if (reader != null)
+		{
+			if (reader.isRunning() && address.equals(reader.getDeviceAddress()) && (detect || driver.toLowerCase().equals(reader.getDriverName()))) {
+				//Already connected, but the client may have changed the delivery mode
+				if (reader instanceof RfcommReader) {
+					((RfcommReader)reader).setBatchedEvents(batched);
+					((RfcommReader)reader).setAxisCoalescing(coalesce);
+				}
+				return;
+			}
+			
+			//Connect to other device, disconnect
+			disconnectFromDevice(sessionId);
+		}
+		
+		SessionRegistry.Session session = SessionRegistry.getInstance().beginConnect(sessionId);
+		
+		Intent connectingBroadcast = new Intent(EVENT_CONNECTING);
+		connectingBroadcast.putExtra(EVENT_CONNECTING_ADDRESS, address);
+		connectingBroadcast.putExtra(SESSION_ID, sessionId);
+		sendBroadcast(connectingBroadcast);
+
+		try {
+			reader = detect ? createDetectedReader(address, sessionId, startnotification) : createReader(address, driver, sessionId, startnotification);
+		} catch (Exception ex) {
+			SessionRegistry.getInstance().remove(session);
+			throw ex;
+		}
+		
+		if (reader instanceof RfcommReader) {
+			((RfcommReader)reader).setBatchedEvents(batched);
+			((RfcommReader)reader).setAxisCoalescing(coalesce);
+		}
+		
+		//The callback must be set atomically with publishing the reader, or a client registering now could be missed
+		boolean connected;
+		synchronized (m_callbacks) {
+			if (reader instanceof RfcommReader)
+				((RfcommReader)reader).setEventCallback(m_callbacks.get(sessionId));
+			connected = session.setConnected(reader);
+		}
+		
+		if (!connected) {
+			reader.stop();
+			return;
+		}
+		
+		InputThreadPool.getInstance().start(sessionId, reader);
+		
+		//Reconnects use the detected driver, so they do not have to detect again.
+		//A simulated device that stops is done, and should not be restarted
+		if (!simulated)
+			ReconnectSupervisor.getInstance(this).onConnected(sessionId, address, reader.getDriverName(), startnotification, batched, coalesce);
+	}
+	
+	//Tries the drivers that are most likely to match the device, and remembers the one that connects
+	private BluezDriverInterface createDetectedReader(String address, String sessionId, boolean startnotification) throws Exception {
+		Exception error = null;
+		
+		//The drivers that fail are expected to, so only the final result is reported
+		boolean probing = RfcommReader.isProbing();
+		RfcommReader.setProbing(true);
+		try {
+			for(String candidate : DriverDetector.getCandidates(address, getDriverNames())) {
+				try {
+					Log.i(LOG_NAME, "Trying driver " + candidate + " for " + address);
+					BluezDriverInterface reader = createReader(address, candidate, sessionId, startnotification);
+					DriverDetector.setDetected(address, candidate);
+					new Preferences(this).setDetectedDriverName(address, candidate);
+					return reader;
+				} catch (Exception ex) {
+					Log.w(LOG_NAME, "Driver " + candidate + " failed for " + address + ": " + ex.toString());
+					
+					//Report the error from the best match
+					if (error == null)
+						error = ex;
+				}
+			}
+		} finally {
+			RfcommReader.setProbing(probing);
+		}
+		
+		if (error == null)
+			error = new Exception(String.format(this.getString(R.string.invalid_driver), DriverDetector.DRIVER_NAME));
+		throw error;
+	}
+	
+	private BluezDriverInterface createReader(String address, String driver, String sessionId, boolean startnotification) throws Exception {
+		BluezDriverInterface reader;
+		if (driver.toLowerCase().equals(ZeemoteReader.DRIVER_NAME.toLowerCase()))
+			reader = new ZeemoteReader(address, sessionId, getApplicationContext(), startnotification);
+		else if (driver.toLowerCase().equals(BGP100Reader.DRIVER_NAME.toLowerCase()))
+			reader = new BGP100Reader(address, sessionId, getApplicationContext(), startnotification);
+		else if (driver.toLowerCase().equals(PhonejoyReader.DRIVER_NAME.toLowerCase()))
+			reader = new PhonejoyReader(address, sessionId, getApplicationContext(), startnotification);
+		else if (driver.toLowerCase().equals(DataDumpReader.DRIVER_NAME.toLowerCase()))
+			reader = new DataDumpReader(address, sessionId, getApplicationContext(), startnotification);
+		else if (driver.toLowerCase().equals(iControlPadReader.DRIVER_NAME.toLowerCase()))
+			reader = new iControlPadReader(address, sessionId, getApplicationContext(), startnotification);
+		else if (driver.toLowerCase().equals(WiimoteReader.DRIVER_NAME.toLowerCase()))
+			reader = new WiimoteReader(address, sessionId, getApplicationContext(), startnotification);
+		else if (driver.toLowerCase().equals(HIDKeyboard.DRIVER_NAME.toLowerCase()))
+			reader = new HIDKeyboard(address, sessionId, getApplicationContext(), startnotification);
+		else if (driver.toLowerCase().equals(iCadeReader.DRIVER_NAME.toLowerCase()))
+			reader = new iCadeReader(address, sessionId, getApplicationContext(), startnotification);
+		else if (driver.toLowerCase().equals(GameStopReader.DRIVER_NAME.toLowerCase()))
+			reader = new GameStopReader(address, sessionId, getApplicationContext(), startnotification);
+        else if (driver.toLowerCase().equals(HIDipega.DRIVER_NAME.toLowerCase()))
+            reader = new HIDipega(address, sessionId, getApplicationContext(), startnotification);
+		else if (driver.toLowerCase().equals(ReplayReader.DRIVER_NAME.toLowerCase()))
+			reader = new ReplayReader(address, sessionId, getApplicationContext(), startnotification);
+		else if (driver.toLowerCase().equals(SyntheticReader.DRIVER_NAME.toLowerCase()))
+			reader = new SyntheticReader(address, sessionId, getApplicationContext(), startnotification);
+		else
+			throw new Exception(String.format(this.getString(R.string.invalid_driver), driver));
+		
+		return reader;
+	}
+	
+	public String[] getDriverNames() {
+		ArrayList<String> drivers = new ArrayList<String>(); 
+		for(int i = 0; i < BASE_DRIVER_NAMES.length; i++)
+			drivers.add(BASE_DRIVER_NAMES[i]);
+		
+		if (hasHIDSupport())
+			for(int i = 0; i < HID_DRIVER_NAMES.length; i++)
+				drivers.add(HID_DRIVER_NAMES[i]);
+		
+		return drivers.toArray(new String[drivers.size()]); 
+	}
+	public String[] getDriverDisplayNames() { 
+		ArrayList<String> drivers = new ArrayList<String>(); 
+		for(int i = 0; i < BASE_DRIVER_DISPLAYNAMES.length; i++)
+			drivers.add(BASE_DRIVER_DISPLAYNAMES[i]);
+
+		if (hasHIDSupport())
+			for(int i = 0; i < HID_DRIVER_DISPLAYNAMES.length; i++)
+				drivers.add(HID_DRIVER_DISPLAYNAMES[i]);
+
+		return drivers.toArray(new String[drivers.size()]); 
+	}
+	
+	public static String getDefaultDriverName() { return BASE_DRIVER_NAMES[0]; }
+
+	//The load test and the simulated drivers are only enabled in debuggable builds
+	private boolean isTestingEnabled() {
+		return (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+	}
+
+	private boolean hasHIDSupport() {
+		if (!hasProbedForHID) {
+			hasProbedForHID = true;
+			supportsHID = false;
+			try {			
+				PackageInfo pi = this.getPackageManager().getPackageInfo("com.hexad.bluezime.hidenabler", PackageManager.GET_GIDS);
+				supportsHID = pi != null;
+			} catch (NameNotFoundException e) {
+				
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		
+		return supportsHID; 
+	}
+	
+	private void notifyError(Exception ex, String sessionId) {
+		Log.e(LOG_NAME, ex.toString());
+
+		Intent errorBroadcast = new Intent(EVENT_ERROR);
+		errorBroadcast.putExtra(EVENT_ERROR_SHORT, ex.getMessage());
+		errorBroadcast.putExtra(EVENT_ERROR_FULL, ex.toString());
+		errorBroadcast.putExtra(SESSION_ID, sessionId);
+		sendBroadcast(errorBroadcast);
+		
+		disconnectFromDevice(sessionId);
+	}
+}
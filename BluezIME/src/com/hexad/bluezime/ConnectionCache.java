@@ -0,0 +1,78 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.util.Hashtable;
+
+//Remembers how each device was last connected, so the drivers can try
+// the method that worked first instead of repeating the attempts that failed.
+//An entry is removed when connecting with it fails
+public class ConnectionCache {
+
+	//RFCOMM socket on a fixed channel, created with reflection
+	public static final int METHOD_RFCOMM = 0;
+	//RFCOMM socket found with an SDP lookup of the service record
+	public static final int METHOD_SERVICE_RECORD = 1;
+	//L2CAP sockets on the HID channels
+	public static final int METHOD_L2CAP = 2;
+
+	private static final ConnectionCache m_instance = new ConnectionCache();
+
+	//The entries by driver and address
+	private final Hashtable<String, Entry> m_entries = new Hashtable<String, Entry>();
+
+	public static ConnectionCache getInstance() {
+		return m_instance;
+	}
+
+	private ConnectionCache() {
+	}
+
+	public static class Entry {
+		public final int method;
+		public final int channel;
+		public final boolean secure;
+
+		public Entry(int method, int channel, boolean secure) {
+			this.method = method;
+			this.channel = channel;
+			this.secure = secure;
+		}
+	}
+
+	private static String getKey(String address, String driver) {
+		return driver + "|" + address;
+	}
+
+	//Returns the method that worked last time, or null if it is unknown
+	public Entry get(String address, String driver) {
+		return m_entries.get(getKey(address, driver));
+	}
+
+	public void put(String address, String driver, int method, int channel, boolean secure) {
+		m_entries.put(getKey(address, driver), new Entry(method, channel, secure));
+	}
+
+	public void invalidate(String address, String driver) {
+		m_entries.remove(getKey(address, driver));
+	}
+
+	public void clear() {
+		m_entries.clear();
+	}
+}
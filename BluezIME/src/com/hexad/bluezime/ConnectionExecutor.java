@@ -0,0 +1,112 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.util.Hashtable;
+import java.util.LinkedList;
+
+import android.util.Log;
+
+//Runs the connect and disconnect requests for each session on its own worker thread,
+// so a slow connection setup for one controller does not hold up the others.
+//The requests for a single session are run in the order they were queued,
+// and the worker exits when its queue is empty
+public class ConnectionExecutor {
+
+	private static final boolean D = false;
+	private static final String LOG_NAME = "ConnectionExecutor";
+
+	private static final ConnectionExecutor m_instance = new ConnectionExecutor();
+
+	//The pending requests by session id, a session has a worker if it has a queue
+	private final Hashtable<String, LinkedList<Runnable>> m_queues = new Hashtable<String, LinkedList<Runnable>>();
+
+	//The locks that serialize the work on each session
+	private final Hashtable<String, Object> m_locks = new Hashtable<String, Object>();
+
+	public static ConnectionExecutor getInstance() {
+		return m_instance;
+	}
+
+	private ConnectionExecutor() {
+	}
+
+	private class Worker extends Thread {
+		private final String m_sessionId;
+
+		public Worker(String sessionId) {
+			super("BluezIME connect " + sessionId);
+			m_sessionId = sessionId;
+		}
+
+		@Override
+		public void run() {
+			Runnable task;
+			while ((task = next(m_sessionId)) != null) {
+				try {
+					task.run();
+				} catch (Exception ex) {
+					Log.e(LOG_NAME, "Request for " + m_sessionId + " failed: " + ex.toString());
+				}
+			}
+
+			if (D) Log.d(LOG_NAME, "Worker exited: " + getName());
+		}
+	}
+
+	//Queues the task for the session, starting a worker if there is none
+	public synchronized void execute(String sessionId, Runnable task) {
+		LinkedList<Runnable> queue = m_queues.get(sessionId);
+		if (queue != null) {
+			queue.add(task);
+			return;
+		}
+
+		queue = new LinkedList<Runnable>();
+		queue.add(task);
+		m_queues.put(sessionId, queue);
+
+		new Worker(sessionId).start();
+	}
+
+	private synchronized Runnable next(String sessionId) {
+		LinkedList<Runnable> queue = m_queues.get(sessionId);
+		if (queue == null || queue.size() == 0) {
+			m_queues.remove(sessionId);
+			return null;
+		}
+
+		return queue.removeFirst();
+	}
+
+	//Returns the lock that guards the connection state of the session
+	public synchronized Object getSessionLock(String sessionId) {
+		Object lock = m_locks.get(sessionId);
+		if (lock == null) {
+			lock = new Object();
+			m_locks.put(sessionId, lock);
+		}
+
+		return lock;
+	}
+
+	//Returns the number of sessions with requests being processed
+	public synchronized int getActiveCount() {
+		return m_queues.size();
+	}
+}
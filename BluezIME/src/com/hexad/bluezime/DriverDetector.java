@@ -0,0 +1,191 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
+import android.util.Log;
+
+//Picks the drivers most likely to work with a device, so the automatic driver
+// only has to try a few of them.
+//Each driver is scored from the device name, the device class, the driver that
+// worked for the device before, the cached connection method and the welcome message
+public class DriverDetector {
+
+	private static final boolean D = false;
+	private static final String LOG_NAME = "DriverDetector";
+
+	//The pseudo driver that selects the driver when connecting
+	public static final String DRIVER_NAME = "auto";
+	public static final String DISPLAY_NAME = "Automatic detection";
+
+	//The number of drivers that are tried before giving up
+	public static final int MAX_CANDIDATES = 3;
+
+	private static final int SCORE_NAME = 4;
+	private static final int SCORE_CLASS = 1;
+	private static final int SCORE_KEYBOARD_CLASS = 2;
+	private static final int SCORE_DETECTED = 8;
+	private static final int SCORE_CACHED = 3;
+	private static final int SCORE_WELCOME = 2;
+
+	//Parts of the device names reported by the controllers, in lower case
+	private static final String[][] NAME_PATTERNS = {
+		{ ZeemoteReader.DRIVER_NAME, "zeemote" },
+		{ ZeemoteReader.DRIVER_NAME, "steelseries" },
+		{ BGP100Reader.DRIVER_NAME, "bgp100" },
+		{ BGP100Reader.DRIVER_NAME, "bgp 100" },
+		{ PhonejoyReader.DRIVER_NAME, "phonejoy" },
+		{ iControlPadReader.DRIVER_NAME, "icontrolpad" },
+		{ GameStopReader.DRIVER_NAME, "samurai" },
+		{ GameStopReader.DRIVER_NAME, "gamestop" },
+		{ WiimoteReader.DRIVER_NAME, "nintendo rvl" },
+		{ HIDKeyboard.DRIVER_NAME, "keyboard" },
+		{ iCadeReader.DRIVER_NAME, "icade" },
+		{ HIDipega.DRIVER_NAME, "ipega" },
+	};
+
+	//Drivers for devices that report the peripheral keyboard class
+	private static final String[] KEYBOARD_DRIVERS = { HIDKeyboard.DRIVER_NAME, iCadeReader.DRIVER_NAME };
+
+	//Drivers for devices that report the peripheral joystick or gamepad class
+	private static final String[] GAMEPAD_DRIVERS = {
+		WiimoteReader.DRIVER_NAME,
+		HIDipega.DRIVER_NAME,
+		ZeemoteReader.DRIVER_NAME,
+		BGP100Reader.DRIVER_NAME,
+		GameStopReader.DRIVER_NAME,
+		iControlPadReader.DRIVER_NAME
+	};
+
+	//Drivers that are never picked automatically
+	private static final String[] EXCLUDED_DRIVERS = { DRIVER_NAME, DataDumpReader.DRIVER_NAME };
+
+	//The bits of the device class, which are not defined in the API before Honeycomb
+	private static final int MINOR_KEYBOARD = 0x40;
+	private static final int MINOR_JOYSTICK = 0x04;
+	private static final int MINOR_GAMEPAD = 0x08;
+	private static final int MAJOR_PERIPHERAL = 0x0500;
+
+	//The driver that worked for each device, and the last welcome message, by address
+	private static final Hashtable<String, String> m_detected = new Hashtable<String, String>();
+	private static final Hashtable<String, byte[]> m_welcome = new Hashtable<String, byte[]>();
+
+	//Returns the drivers to try for the device, best match first
+	public static String[] getCandidates(String address, String[] drivers) {
+		String name = null;
+		int deviceClass = 0;
+		try {
+			ImprovedBluetoothDevice device = new ImprovedBluetoothDevice(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address));
+			name = device.getName();
+			BluetoothClass bc = device.getBluetoothClass();
+			if (bc != null)
+				deviceClass = bc.getDeviceClass();
+		} catch (Exception ex) {
+			Log.w(LOG_NAME, "Failed to read the device info for " + address + ": " + ex.toString());
+		}
+
+		ArrayList<String> candidates = new ArrayList<String>();
+		ArrayList<Integer> scores = new ArrayList<Integer>();
+
+		for(String driver : drivers) {
+			if (contains(EXCLUDED_DRIVERS, driver))
+				continue;
+
+			int score = getScore(address, driver, name, deviceClass);
+			if (D) Log.d(LOG_NAME, "Score for " + driver + " with " + address + " (" + name + "): " + score);
+
+			//Keep the list sorted by score, and in the order of the driver list for equal scores
+			int pos = 0;
+			while (pos < scores.size() && scores.get(pos) >= score)
+				pos++;
+			candidates.add(pos, driver);
+			scores.add(pos, score);
+		}
+
+		//Without any hints we fall back to the first drivers in the list
+		int count = 0;
+		while (count < candidates.size() && count < MAX_CANDIDATES && (scores.get(count) > 0 || scores.get(0) == 0))
+			count++;
+
+		return candidates.subList(0, count).toArray(new String[count]);
+	}
+
+	private static int getScore(String address, String driver, String name, int deviceClass) {
+		int score = 0;
+
+		if (name != null) {
+			String lname = name.toLowerCase();
+			for(String[] pattern : NAME_PATTERNS)
+				if (pattern[0].equals(driver) && lname.contains(pattern[1]))
+					score += SCORE_NAME;
+		}
+
+		if ((deviceClass & 0x1f00) == MAJOR_PERIPHERAL) {
+			if ((deviceClass & MINOR_KEYBOARD) != 0 && contains(KEYBOARD_DRIVERS, driver))
+				score += SCORE_KEYBOARD_CLASS;
+			if ((deviceClass & (MINOR_JOYSTICK | MINOR_GAMEPAD)) != 0 && contains(GAMEPAD_DRIVERS, driver))
+				score += SCORE_CLASS;
+		}
+
+		if (driver.equals(m_detected.get(address)))
+			score += SCORE_DETECTED;
+
+		if (ConnectionCache.getInstance().get(address, driver) != null)
+			score += SCORE_CACHED;
+
+		//The iControlPad greets with its version string
+		byte[] welcome = m_welcome.get(address);
+		if (welcome != null && welcome.length > 0 && isPrintable(welcome) && driver.equals(iControlPadReader.DRIVER_NAME))
+			score += SCORE_WELCOME;
+
+		return score;
+	}
+
+	//Records the driver that connected to the device
+	public static void setDetected(String address, String driver) {
+		m_detected.put(address, driver);
+	}
+
+	//Records the welcome message a device sent when it was connected
+	public static void setWelcomeMessage(String address, byte[] data, int read) {
+		if (read <= 0)
+			return;
+
+		byte[] copy = new byte[read];
+		System.arraycopy(data, 0, copy, 0, read);
+		m_welcome.put(address, copy);
+	}
+
+	private static boolean isPrintable(byte[] data) {
+		for(byte b : data)
+			if ((b < 0x20 || b > 0x7e) && b != '\r' && b != '\n')
+				return false;
+		return true;
+	}
+
+	private static boolean contains(String[] values, String value) {
+		for(String v : values)
+			if (v.equals(value))
+				return true;
+		return false;
+	}
+}
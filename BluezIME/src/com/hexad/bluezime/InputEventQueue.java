@@ -0,0 +1,194 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.util.Hashtable;
+
+import android.os.Handler;
+import android.util.SparseIntArray;
+
+//A fixed size in-process ring buffer that carries input events from the
+// driver threads to the IME without going through Intents and broadcasts.
+//Events are stored as packed primitives, so posting an event does not allocate.
+//The IME only consumes key presses from the queue, analog events are delivered by the other means
+public class InputEventQueue {
+
+	public static final int EVENT_KEYPRESS = 1;
+
+	//The layout of a single event in the int buffer
+	public static final int FIELD_SLOT = 0;
+	public static final int FIELD_TYPE = 1;
+	public static final int FIELD_KEY = 2;
+	public static final int FIELD_ACTION = 3;
+	public static final int FIELD_MODIFIERS = 4;
+	public static final int FIELD_VALUE = 5; //1 if the keypress is emulated
+	public static final int EVENT_SIZE = 6;
+	
+	//The number of events the queue can hold, must be a power of two
+	private static final int DEFAULT_CAPACITY = 256;
+	
+	private static final InputEventQueue m_instance = new InputEventQueue(DEFAULT_CAPACITY);
+	
+	private final int[] m_events;
+	private final long[] m_timestamps;
+	
+	//System.nanoTime() of the socket read that produced each event, and of the post
+	private final long[] m_readTimes;
+	private final long[] m_postTimes;
+	private final int m_mask;
+	
+	//The index of the next event to read and write, only ever increased
+	private int m_head = 0;
+	private int m_tail = 0;
+	
+	//The number of events that did not fit in the queue and were delivered by other means
+	private int m_dropped = 0;
+	
+	//The key presses of each slot that were broadcast because the queue was full, and have not reached the IME yet.
+	//The slot is not queued until they arrive, or its later events could overtake them
+	private final SparseIntArray m_pending = new SparseIntArray();
+	
+	//The sessions that are delivered through this queue, mapped to their slot number
+	private final Hashtable<String, Integer> m_sessions = new Hashtable<String, Integer>();
+	
+	//The consumer is signaled once when the queue goes from empty to non-empty
+	private Handler m_handler;
+	private Runnable m_consumer;
+	private boolean m_signaled = false;
+	
+	public static InputEventQueue getInstance() {
+		return m_instance;
+	}
+	
+	private InputEventQueue(int capacity) {
+		m_events = new int[capacity * EVENT_SIZE];
+		m_timestamps = new long[capacity];
+		m_readTimes = new long[capacity];
+		m_postTimes = new long[capacity];
+		m_mask = capacity - 1;
+	}
+	
+	public int getCapacity() {
+		return m_timestamps.length;
+	}
+	
+	//Marks a session as being consumed in-process, with the given slot number
+	public synchronized void attachSession(String sessionId, int slot) {
+		m_sessions.put(sessionId, slot);
+	}
+	
+	public synchronized void detachSession(String sessionId) {
+		m_sessions.remove(sessionId);
+	}
+	
+	//Returns the slot for the session, or -1 if the session is not consumed in-process
+	public synchronized int getSessionSlot(String sessionId) {
+		if (sessionId == null)
+			return -1;
+		
+		Integer slot = m_sessions.get(sessionId);
+		return slot == null ? -1 : slot;
+	}
+	
+	//Sets the consumer, the runnable is posted to the handler when new events arrive
+	public synchronized void setConsumer(Handler handler, Runnable consumer) {
+		m_handler = handler;
+		m_consumer = consumer;
+		m_signaled = false;
+		
+		//Stale events are not delivered to a new consumer
+		m_head = m_tail;
+		m_pending.clear();
+	}
+	
+	//Stores an event in the queue, returns false if there is no consumer, the queue is full or the slot has broadcasts pending,
+	// in which case the caller should deliver the event by other means, so a key release is never lost
+	public synchronized boolean post(int slot, int type, int key, int action, int modifiers, int value, long timestamp, long readTime) {
+		if (m_consumer == null)
+			return false;
+		
+		if (m_tail - m_head > m_mask || m_pending.get(slot) > 0) {
+			m_dropped++;
+			return false;
+		}
+		
+		int index = m_tail & m_mask;
+		int offset = index * EVENT_SIZE;
+		
+		m_events[offset + FIELD_SLOT] = slot;
+		m_events[offset + FIELD_TYPE] = type;
+		m_events[offset + FIELD_KEY] = key;
+		m_events[offset + FIELD_ACTION] = action;
+		m_events[offset + FIELD_MODIFIERS] = modifiers;
+		m_events[offset + FIELD_VALUE] = value;
+		m_timestamps[index] = timestamp;
+		m_readTimes[index] = readTime;
+		m_postTimes[index] = System.nanoTime();
+		m_tail++;
+		
+		if (!m_signaled) {
+			m_signaled = true;
+			m_handler.post(m_consumer);
+		}
+		
+		return true;
+	}
+	
+	//Records that a key press of the slot was broadcast after the queue refused it
+	public synchronized void addPendingBroadcast(int slot) {
+		if (m_consumer != null)
+			m_pending.put(slot, m_pending.get(slot) + 1);
+	}
+	
+	//Called by the consumer when a broadcast key press of the slot arrives
+	public synchronized void onBroadcastDelivered(int slot) {
+		int pending = m_pending.get(slot);
+		if (pending > 1)
+			m_pending.put(slot, pending - 1);
+		else if (pending == 1)
+			m_pending.delete(slot);
+	}
+	
+	//Copies up to timestamps.length events into the buffers and returns the number of events copied.
+	//The events buffer must hold EVENT_SIZE ints per event, and the time buffers one value per event
+	public synchronized int read(int[] events, long[] timestamps, long[] readTimes, long[] postTimes) {
+		int count = Math.min(m_tail - m_head, Math.min(timestamps.length, events.length / EVENT_SIZE));
+		
+		for(int i = 0; i < count; i++) {
+			int index = (m_head + i) & m_mask;
+			System.arraycopy(m_events, index * EVENT_SIZE, events, i * EVENT_SIZE, EVENT_SIZE);
+			timestamps[i] = m_timestamps[index];
+			readTimes[i] = m_readTimes[index];
+			postTimes[i] = m_postTimes[index];
+		}
+		
+		m_head += count;
+		
+		//If we did not empty the queue, make sure the consumer is called again
+		if (m_head != m_tail && m_handler != null && m_consumer != null)
+			m_handler.post(m_consumer);
+		else
+			m_signaled = false;
+		
+		return count;
+	}
+	
+	public synchronized int getDroppedCount() {
+		return m_dropped;
+	}
+}
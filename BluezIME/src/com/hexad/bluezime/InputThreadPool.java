@@ -0,0 +1,185 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.util.Hashtable;
+
+import android.os.Process;
+import android.util.Log;
+
+//Runs the driver readers on dedicated, named threads with a raised priority,
+// so input is not starved when the UI is busy rendering.
+//There is at most one live reader thread per device, a new reader for a device
+// stops and waits for the previous one before it is started
+public class InputThreadPool {
+
+	private static final boolean D = false;
+	private static final String LOG_NAME = "InputThreadPool";
+
+	//The maximum time to wait for a reader thread to exit
+	public static final long JOIN_TIMEOUT = 2000;
+
+	private static final InputThreadPool m_instance = new InputThreadPool();
+
+	//The running threads, by session id and by device address
+	private final Hashtable<String, ReaderThread> m_sessions = new Hashtable<String, ReaderThread>();
+	private final Hashtable<String, ReaderThread> m_devices = new Hashtable<String, ReaderThread>();
+
+	//Notified when a reader thread exits
+	private volatile ExitListener m_exitListener = null;
+
+	public interface ExitListener {
+		//Called on the exiting thread, replaced is true if the reader was stopped to start a new one for the device
+		void onReaderExit(String sessionId, BluezDriverInterface reader, boolean replaced);
+	}
+
+	public static InputThreadPool getInstance() {
+		return m_instance;
+	}
+
+	private InputThreadPool() {
+	}
+
+	private static class ReaderThread extends Thread {
+		private final String m_sessionId;
+		private final String m_address;
+		private final BluezDriverInterface m_reader;
+		private volatile boolean m_replaced = false;
+
+		public ReaderThread(String sessionId, BluezDriverInterface reader) {
+			super(reader, "BluezIME reader " + reader.getDriverName() + " " + reader.getDeviceAddress());
+			m_sessionId = sessionId;
+			m_address = reader.getDeviceAddress();
+			m_reader = reader;
+		}
+
+		@Override
+		public void run() {
+			//Not all devices allow the urgent level, so fall back to the display level
+			try {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+			} catch (Exception ex) {
+				try { Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY); }
+				catch (Exception e) { }
+			}
+
+			try {
+				super.run();
+			} finally {
+				m_instance.onThreadExit(this);
+			}
+		}
+	}
+
+	//Starts the reader on its own thread, stopping any reader still running for the same device
+	public void start(String sessionId, BluezDriverInterface reader) {
+		ReaderThread previous;
+		synchronized (this) {
+			previous = m_devices.get(reader.getDeviceAddress());
+		}
+
+		if (previous != null && previous.m_reader != reader) {
+			if (D) Log.d(LOG_NAME, "Stopping previous reader for " + previous.m_address);
+			previous.m_replaced = true;
+			previous.m_reader.stop();
+			join(previous);
+		}
+
+		ReaderThread thread = new ReaderThread(sessionId, reader);
+		synchronized (this) {
+			m_sessions.put(sessionId, thread);
+			m_devices.put(thread.m_address, thread);
+		}
+
+		thread.start();
+	}
+
+	//Stops the reader and waits for its thread to exit,
+	// returns false if the thread was still running after the timeout
+	public boolean stop(String sessionId, BluezDriverInterface reader) {
+		reader.stop();
+
+		ReaderThread thread;
+		synchronized (this) {
+			thread = m_sessions.get(sessionId);
+		}
+
+		if (thread == null || thread.m_reader != reader)
+			return true;
+
+		return join(thread);
+	}
+
+	private boolean join(ReaderThread thread) {
+		//A reader that stops itself cannot wait for its own thread
+		if (thread == Thread.currentThread())
+			return false;
+
+		try {
+			thread.join(JOIN_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (thread.isAlive()) {
+			Log.w(LOG_NAME, "Reader thread did not exit: " + thread.getName());
+			return false;
+		}
+
+		return true;
+	}
+
+	private void onThreadExit(ReaderThread thread) {
+		synchronized (this) {
+			if (m_sessions.get(thread.m_sessionId) == thread)
+				m_sessions.remove(thread.m_sessionId);
+			if (m_devices.get(thread.m_address) == thread)
+				m_devices.remove(thread.m_address);
+		}
+
+		if (D) Log.d(LOG_NAME, "Reader thread exited: " + thread.getName());
+
+		ExitListener listener = m_exitListener;
+		if (listener != null) {
+			try {
+				listener.onReaderExit(thread.m_sessionId, thread.m_reader, thread.m_replaced);
+			} catch (Exception ex) {
+				Log.e(LOG_NAME, "Exit listener failed: " + ex.toString());
+			}
+		}
+	}
+
+	public void setExitListener(ExitListener listener) {
+		m_exitListener = listener;
+	}
+
+	//Returns the thread running the reader for the session, or null
+	public synchronized Thread getThread(String sessionId) {
+		return m_sessions.get(sessionId);
+	}
+
+	//Returns the state of the reader thread for the session, or null if there is none
+	public synchronized Thread.State getThreadState(String sessionId) {
+		ReaderThread thread = m_sessions.get(sessionId);
+		return thread == null ? null : thread.getState();
+	}
+
+	public synchronized int getActiveCount() {
+		return m_sessions.size();
+	}
+}
@@ -0,0 +1,63 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import android.view.KeyEvent;
+
+import com.hexad.bluezime.core.FutureKeyCodes;
+
+//The key and meta key mappings of a profile, compiled into dense per-controller tables.
+//Instances are never modified after they are built, so they can be shared between threads
+public class KeyMappingTable {
+
+	//The number of entries per controller, one for each possible key code
+	public static final int TABLE_SIZE = Math.max(FutureKeyCodes.FUTURE_MAX_KEYCODE, KeyEvent.getMaxKeyCode()) + 1;
+
+	private final int[][] m_keys;
+	private final int[][] m_metaKeys;
+
+	KeyMappingTable(int[][] keys, int[][] metaKeys) {
+		m_keys = keys;
+		m_metaKeys = metaKeys;
+	}
+
+	public int getKeyMapping(int key, int controllerNo) {
+		return m_keys[controllerNo][key];
+	}
+
+	public int getMetaKeyMapping(int key, int controllerNo) {
+		return m_metaKeys[controllerNo][key];
+	}
+
+	//Returns a copy of the table with a single key mapping changed,
+	// only the tables for the affected controller are copied
+	public KeyMappingTable withKeyMapping(int key, int controllerNo, int value) {
+		return new KeyMappingTable(replace(m_keys, key, controllerNo, value), m_metaKeys);
+	}
+
+	public KeyMappingTable withMetaKeyMapping(int key, int controllerNo, int value) {
+		return new KeyMappingTable(m_keys, replace(m_metaKeys, key, controllerNo, value));
+	}
+
+	private static int[][] replace(int[][] table, int key, int controllerNo, int value) {
+		int[][] copy = table.clone();
+		copy[controllerNo] = table[controllerNo].clone();
+		copy[controllerNo][key] = value;
+		return copy;
+	}
+}
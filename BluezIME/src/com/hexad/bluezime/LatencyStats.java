@@ -0,0 +1,150 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.util.Hashtable;
+
+//Per-session latency histograms for the stages an event passes through,
+// from the socket read until the key event is handed to the InputConnection.
+//All times are System.nanoTime() values
+public class LatencyStats {
+
+	public static final int STAGE_READ_PARSE = 0;
+	public static final int STAGE_PARSE_DISPATCH = 1;
+	public static final int STAGE_DISPATCH_INJECT = 2;
+	public static final int STAGE_COUNT = 3;
+
+	//Bucket i counts latencies below 2^i microseconds, the last bucket counts the rest
+	public static final int BUCKET_COUNT = 22;
+
+	private static final LatencyStats m_instance = new LatencyStats();
+
+	private final Hashtable<String, Session> m_sessions = new Hashtable<String, Session>();
+
+	public static LatencyStats getInstance() {
+		return m_instance;
+	}
+
+	private LatencyStats() {
+	}
+
+	public static class Session {
+		private final int[][] m_buckets = new int[STAGE_COUNT][BUCKET_COUNT];
+		private final long[] m_max = new long[STAGE_COUNT];
+		private final long[] m_total = new long[STAGE_COUNT];
+		private final int[] m_count = new int[STAGE_COUNT];
+
+		//Records the stages for one event, an inject time of 0 means the event was not injected
+		public synchronized void record(long readTime, long postTime, long dispatchTime, long injectTime) {
+			if (readTime != 0)
+				add(STAGE_READ_PARSE, postTime - readTime);
+			add(STAGE_PARSE_DISPATCH, dispatchTime - postTime);
+			if (injectTime != 0)
+				add(STAGE_DISPATCH_INJECT, injectTime - dispatchTime);
+		}
+
+		private void add(int stage, long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+			m_buckets[stage][bucket]++;
+			m_count[stage]++;
+			m_total[stage] += micros;
+			if (micros > m_max[stage])
+				m_max[stage] = micros;
+		}
+
+		//Returns a copy of the bucket counts for the stage
+		public synchronized int[] getBuckets(int stage) {
+			return m_buckets[stage].clone();
+		}
+
+		public synchronized int getCount(int stage) {
+			return m_count[stage];
+		}
+
+		//The mean latency of the stage in microseconds
+		public synchronized long getMean(int stage) {
+			return m_count[stage] == 0 ? 0 : m_total[stage] / m_count[stage];
+		}
+
+		//The largest latency of the stage in microseconds
+		public synchronized long getMax(int stage) {
+			return m_max[stage];
+		}
+
+		public synchronized void reset() {
+			for(int i = 0; i < STAGE_COUNT; i++) {
+				for(int j = 0; j < BUCKET_COUNT; j++)
+					m_buckets[i][j] = 0;
+				m_max[i] = 0;
+				m_total[i] = 0;
+				m_count[i] = 0;
+			}
+		}
+	}
+
+	//Returns the stats for the session, creating them if needed
+	public synchronized Session getSession(String sessionId) {
+		Session s = m_sessions.get(sessionId);
+		if (s == null) {
+			s = new Session();
+			m_sessions.put(sessionId, s);
+		}
+
+		return s;
+	}
+
+	//Returns the stats for the session, or null if there is no session id or nothing has been recorded
+	public synchronized Session findSession(String sessionId) {
+		if (sessionId == null)
+			return null;
+		
+		return m_sessions.get(sessionId);
+	}
+
+	//Returns the latency in microseconds that the given fraction of the counted events stayed below,
+	// rounded up to the limit of the bucket, or -1 if nothing was counted.
+	//The last bucket has no upper limit, so it is reported as Long.MAX_VALUE
+	public static long getPercentile(int[] buckets, double fraction) {
+		long total = 0;
+		for(int i = 0; i < buckets.length; i++)
+			total += buckets[i];
+		if (total == 0)
+			return -1;
+
+		long target = (long)Math.ceil(total * fraction);
+		long count = 0;
+		for(int i = 0; i < buckets.length; i++) {
+			count += buckets[i];
+			if (count >= target && count > 0)
+				return i == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << i;
+		}
+
+		return Long.MAX_VALUE;
+	}
+
+	//Returns the upper limit of each bucket in microseconds, the last bucket has no limit
+	public static long[] getBucketLimits() {
+		long[] limits = new long[BUCKET_COUNT];
+		for(int i = 0; i < BUCKET_COUNT - 1; i++)
+			limits[i] = 1L << i;
+		limits[BUCKET_COUNT - 1] = Long.MAX_VALUE;
+		return limits;
+	}
+}
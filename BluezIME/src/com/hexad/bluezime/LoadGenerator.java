@@ -0,0 +1,248 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+//Runs a capacity test with a number of simulated controllers, see SyntheticReader.
+//The controllers are connected with ordinary connect requests, so the events take the
+// same path as the events from real devices, from the reader threads through the
+// in-process queue to BluezIME. The result is the sustained event rate, the events
+// that overflowed the queue and the latency percentiles recorded by the IME.
+//By default the test uses the sessions of the IME controllers, so the IME consumes
+// the events. Controllers connected on those sessions are replaced during the test,
+// and connected again with the same settings when it ends
+public class LoadGenerator {
+
+	private static final String LOG_NAME = "LoadGenerator";
+
+	//How long to wait for the simulated controllers to connect, in ms
+	private static final long CONNECT_TIMEOUT = 10000;
+
+	//The fractions reported in the latency results
+	public static final double[] PERCENTILES = new double[] { 0.5, 0.9, 0.99 };
+
+	private static LoadGenerator m_instance = null;
+
+	private final Context m_context;
+	private Thread m_thread = null;
+
+	public static synchronized LoadGenerator getInstance(Context context) {
+		if (m_instance == null)
+			m_instance = new LoadGenerator(context.getApplicationContext());
+
+		return m_instance;
+	}
+
+	private LoadGenerator(Context context) {
+		m_context = context;
+	}
+
+	public static class Settings {
+		//The number of simulated controllers
+		public int sessions = Preferences.MAX_NO_OF_CONTROLLERS;
+		//The events per second for each controller
+		public int keyRate = 10;
+		public int axisRate = 400;
+		public int accelerometerRate = 300;
+		//If not zero, an extra session sends only key presses at this rate, like a keyboard
+		public int keyboardRate = 0;
+		//The ms between two simulated reads
+		public int interval = SyntheticReader.DEFAULT_INTERVAL;
+		//How long the events are measured, in seconds
+		public int duration = 30;
+		//The session ids are this prefix followed by the controller number
+		public String sessionPrefix = BluezIME.SESSION_ID;
+		public boolean batched = false;
+		public int coalesce = AxisCoalescer.DISABLED;
+	}
+
+	//Starts a test in the background, returns false if a test is already running
+	public synchronized boolean start(final Settings settings) {
+		if (m_thread != null && m_thread.isAlive())
+			return false;
+
+		m_thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runTest(settings);
+			}
+		}, "BluezIME load test");
+		m_thread.start();
+		return true;
+	}
+
+	private void runTest(Settings settings) {
+		//The IME only consumes its own slots, a session beyond them would go out as broadcasts
+		// and record no latency, so the keyboard takes the last slot
+		if (BluezIME.SESSION_ID.equals(settings.sessionPrefix)) {
+			int max = Preferences.MAX_NO_OF_CONTROLLERS - (settings.keyboardRate > 0 ? 1 : 0);
+			if (settings.sessions > max) {
+				Log.w(LOG_NAME, "The IME has " + Preferences.MAX_NO_OF_CONTROLLERS + " controller slots, using " + max + " controllers instead of " + settings.sessions);
+				settings.sessions = max;
+			}
+		}
+
+		int count = settings.sessions + (settings.keyboardRate > 0 ? 1 : 0);
+		String[] sessionIds = new String[count];
+		for(int i = 0; i < count; i++)
+			sessionIds[i] = settings.sessionPrefix + i;
+
+		//Remember the controllers we replace, so they can be restored afterwards
+		Intent[] previous = new Intent[count];
+		for(int i = 0; i < count; i++)
+			previous[i] = ReconnectSupervisor.getInstance(m_context).getConnectIntent(sessionIds[i]);
+
+		Log.i(LOG_NAME, "Starting load test with " + settings.sessions + " controllers at " + settings.keyRate + " keys/s, " + settings.axisRate + " axes/s and " + settings.accelerometerRate + " accel/s" + (settings.keyboardRate > 0 ? ", and a keyboard at " + settings.keyboardRate + " keys/s" : ""));
+
+		for(int i = 0; i < count; i++) {
+			boolean keyboard = i >= settings.sessions;
+			String address = keyboard ?
+				SyntheticReader.getAddress(i, settings.keyboardRate, 0, 0, settings.interval) :
+				SyntheticReader.getAddress(i, settings.keyRate, settings.axisRate, settings.accelerometerRate, settings.interval);
+
+			Intent intent = new Intent(m_context, BluezService.class);
+			intent.setAction(BluezService.REQUEST_CONNECT);
+			intent.putExtra(BluezService.REQUEST_CONNECT_ADDRESS, address);
+			intent.putExtra(BluezService.REQUEST_CONNECT_DRIVER, SyntheticReader.DRIVER_NAME);
+			intent.putExtra(BluezService.SESSION_ID, sessionIds[i]);
+			intent.putExtra(BluezService.REQUEST_CONNECT_CREATE_NOTIFICATION, false);
+			intent.putExtra(BluezService.REQUEST_CONNECT_BATCHED, settings.batched);
+			intent.putExtra(BluezService.REQUEST_CONNECT_COALESCE_AXES, settings.coalesce);
+			m_context.startService(intent);
+		}
+
+		SyntheticReader[] readers = new SyntheticReader[count];
+		int connected = waitForReaders(sessionIds, readers);
+		if (connected < count)
+			Log.w(LOG_NAME, "Only " + connected + " of " + count + " simulated controllers connected");
+
+		//Measure from here, so the connect time is not part of the result
+		long[] startEvents = new long[count];
+		for(int i = 0; i < count; i++) {
+			LatencyStats.getInstance().getSession(sessionIds[i]).reset();
+			if (readers[i] != null)
+				startEvents[i] = readers[i].getEventCount();
+		}
+
+		int startDropped = InputEventQueue.getInstance().getDroppedCount();
+		long start = SystemClock.elapsedRealtime();
+
+		try { Thread.sleep(settings.duration * 1000L); }
+		catch (InterruptedException ex) { }
+
+		long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+		int dropped = InputEventQueue.getInstance().getDroppedCount() - startDropped;
+
+		long events = 0;
+		for(int i = 0; i < count; i++)
+			if (readers[i] != null)
+				events += readers[i].getEventCount() - startEvents[i];
+
+		//Combine the histograms of all sessions
+		int[][] buckets = new int[LatencyStats.STAGE_COUNT][LatencyStats.BUCKET_COUNT];
+		long[] max = new long[LatencyStats.STAGE_COUNT];
+		for(int i = 0; i < count; i++) {
+			LatencyStats.Session stats = LatencyStats.getInstance().getSession(sessionIds[i]);
+			for(int j = 0; j < LatencyStats.STAGE_COUNT; j++) {
+				int[] b = stats.getBuckets(j);
+				for(int k = 0; k < b.length; k++)
+					buckets[j][k] += b[k];
+				max[j] = Math.max(max[j], stats.getMax(j));
+			}
+		}
+
+		for(int i = 0; i < count; i++) {
+			Intent intent = previous[i];
+			if (intent == null) {
+				intent = new Intent(m_context, BluezService.class);
+				intent.setAction(BluezService.REQUEST_DISCONNECT);
+				intent.putExtra(BluezService.SESSION_ID, sessionIds[i]);
+			}
+			m_context.startService(intent);
+		}
+
+		long delivered = 0;
+		for(int k = 0; k < LatencyStats.BUCKET_COUNT; k++)
+			delivered += buckets[LatencyStats.STAGE_PARSE_DISPATCH][k];
+
+		long[][] latency = new long[LatencyStats.STAGE_COUNT][PERCENTILES.length];
+		for(int j = 0; j < LatencyStats.STAGE_COUNT; j++)
+			for(int p = 0; p < PERCENTILES.length; p++) {
+				long limit = LatencyStats.getPercentile(buckets[j], PERCENTILES[p]);
+				latency[j][p] = limit < 0 ? limit : Math.min(limit, max[j]);
+			}
+
+		long rate = events * 1000 / elapsed;
+
+		Log.i(LOG_NAME, "Load test sent " + events + " events in " + elapsed + " ms, " + rate + " events/s, " + delivered + " delivered in-process, " + dropped + " overflowed");
+		if (delivered > 0) {
+			Log.i(LOG_NAME, "Latency us (p50/p90/p99/max): read-parse " + format(latency[LatencyStats.STAGE_READ_PARSE], max[LatencyStats.STAGE_READ_PARSE]) +
+				", parse-dispatch " + format(latency[LatencyStats.STAGE_PARSE_DISPATCH], max[LatencyStats.STAGE_PARSE_DISPATCH]) +
+				", dispatch-inject " + format(latency[LatencyStats.STAGE_DISPATCH_INJECT], max[LatencyStats.STAGE_DISPATCH_INJECT]));
+		} else {
+			Log.i(LOG_NAME, "No latency recorded, the sessions are not consumed by the IME");
+		}
+
+		Intent result = new Intent(BluezService.EVENT_LOAD_TEST_RESULT);
+		result.putExtra(BluezService.EVENT_LOAD_TEST_RESULT_SESSIONS, connected);
+		result.putExtra(BluezService.EVENT_LOAD_TEST_RESULT_DURATION, elapsed);
+		result.putExtra(BluezService.EVENT_LOAD_TEST_RESULT_EVENTS, events);
+		result.putExtra(BluezService.EVENT_LOAD_TEST_RESULT_RATE, rate);
+		result.putExtra(BluezService.EVENT_LOAD_TEST_RESULT_DELIVERED, delivered);
+		result.putExtra(BluezService.EVENT_LOAD_TEST_RESULT_DROPPED, dropped);
+		result.putExtra(BluezService.EVENT_LOAD_TEST_RESULT_PERCENTILES, PERCENTILES);
+		result.putExtra(BluezService.EVENT_LOAD_TEST_RESULT_READ_PARSE, latency[LatencyStats.STAGE_READ_PARSE]);
+		result.putExtra(BluezService.EVENT_LOAD_TEST_RESULT_PARSE_DISPATCH, latency[LatencyStats.STAGE_PARSE_DISPATCH]);
+		result.putExtra(BluezService.EVENT_LOAD_TEST_RESULT_DISPATCH_INJECT, latency[LatencyStats.STAGE_DISPATCH_INJECT]);
+		result.putExtra(BluezService.EVENT_LOAD_TEST_RESULT_MAX, max);
+		m_context.sendBroadcast(result);
+	}
+
+	//Waits until the readers of the sessions are running, returns the number that connected
+	private int waitForReaders(String[] sessionIds, SyntheticReader[] readers) {
+		long deadline = SystemClock.elapsedRealtime() + CONNECT_TIMEOUT;
+		int connected = 0;
+
+		while (true) {
+			connected = 0;
+			for(int i = 0; i < sessionIds.length; i++) {
+				BluezDriverInterface reader = SessionRegistry.getInstance().getReader(sessionIds[i]);
+				readers[i] = reader instanceof SyntheticReader && reader.isRunning() ? (SyntheticReader)reader : null;
+				if (readers[i] != null)
+					connected++;
+			}
+
+			if (connected == sessionIds.length || SystemClock.elapsedRealtime() > deadline)
+				return connected;
+
+			try { Thread.sleep(100); }
+			catch (InterruptedException ex) { return connected; }
+		}
+	}
+
+	private static String format(long[] percentiles, long max) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < percentiles.length; i++)
+			sb.append(percentiles[i]).append('/');
+		return sb.append(max).toString();
+	}
+}
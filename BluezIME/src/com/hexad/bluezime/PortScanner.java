@@ -0,0 +1,250 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
+import android.util.Log;
+
+//Probes the RFCOMM channels of a device to find one that accepts a connection.
+//A few channels are probed at a time, each channel is tried secure and then insecure,
+// an attempt that does not complete in time is aborted by closing its socket,
+// and the scan stops as soon as any channel connects.
+//The outcome of each channel is returned with the connected socket
+public class PortScanner {
+
+	private static final boolean D = false;
+	private static final String LOG_NAME = "PortScanner";
+
+	public static final int FIRST_PORT = 0;
+	public static final int LAST_PORT = 30;
+
+	public static final int DEFAULT_CONCURRENCY = 3;
+	public static final long DEFAULT_TIMEOUT = 4000;
+
+	public static final int STATUS_UNTESTED = 0;
+	public static final int STATUS_FAILED = 1;
+	public static final int STATUS_TIMEOUT = 2;
+	public static final int STATUS_SECURE = 3;
+	public static final int STATUS_INSECURE = 4;
+
+	private static final String[] STATUS_NAMES = { "untested", "failed", "timeout", "secure", "insecure" };
+
+	private final ImprovedBluetoothDevice m_device;
+	private final String m_address;
+	private int m_concurrency = DEFAULT_CONCURRENCY;
+	private long m_timeout = DEFAULT_TIMEOUT;
+
+	//State for the scan in progress
+	private ScanResult m_result;
+	private ScheduledExecutorService m_watchdog;
+	private final AtomicReference<BluetoothSocket> m_winner = new AtomicReference<BluetoothSocket>();
+	private final ArrayList<BluetoothSocket> m_pending = new ArrayList<BluetoothSocket>();
+
+	public static class ScanResult {
+		public final String address;
+		public final int[] status = new int[LAST_PORT + 1];
+		//The port that connected, or -1
+		public int port = -1;
+		public boolean secure = false;
+		//The connected socket, or null if no port accepted a connection
+		public BluetoothSocket socket = null;
+		//The time the scan took in ms
+		public long duration = 0;
+
+		public ScanResult(String address) {
+			this.address = address;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(address).append(" in ").append(duration).append(" ms:");
+			for(int i = FIRST_PORT; i <= LAST_PORT; i++)
+				if (status[i] != STATUS_UNTESTED)
+					sb.append(" ").append(i).append("=").append(STATUS_NAMES[status[i]]);
+			return sb.toString();
+		}
+	}
+
+	public PortScanner(ImprovedBluetoothDevice device, String address) {
+		m_device = device;
+		m_address = address;
+	}
+
+	//Sets the number of ports probed at the same time
+	public void setConcurrency(int concurrency) {
+		m_concurrency = Math.max(1, concurrency);
+	}
+
+	//Sets the time in ms before a single connect attempt is aborted
+	public void setTimeout(long timeout) {
+		m_timeout = timeout;
+	}
+
+	private class Probe implements Callable<BluetoothSocket> {
+		private final int m_port;
+
+		public Probe(int port) {
+			m_port = port;
+		}
+
+		@Override
+		public BluetoothSocket call() {
+			BluetoothSocket s = attempt(m_port, true);
+			if (s == null)
+				s = attempt(m_port, false);
+			return s;
+		}
+	}
+
+	//Scans the ports and returns the result, which holds the connected socket if a port accepted a connection.
+	//The result belongs to the caller, so scans of the same device do not overwrite each other
+	public ScanResult scan() throws InterruptedException {
+		long start = SystemClock.elapsedRealtime();
+
+		m_result = new ScanResult(m_address);
+		m_winner.set(null);
+		m_watchdog = Executors.newSingleThreadScheduledExecutor();
+		ExecutorService pool = Executors.newFixedThreadPool(m_concurrency);
+		CompletionService<BluetoothSocket> probes = new ExecutorCompletionService<BluetoothSocket>(pool);
+
+		//The lowest ports are submitted first, so they are also probed first
+		int remaining = 0;
+		for(int port = FIRST_PORT; port <= LAST_PORT; port++) {
+			probes.submit(new Probe(port));
+			remaining++;
+		}
+
+		BluetoothSocket found = null;
+		try {
+			while (remaining > 0 && found == null) {
+				try {
+					found = probes.take().get();
+				} catch (ExecutionException ex) {
+					Log.e(LOG_NAME, "Probe failed: " + ex.getCause());
+				}
+				remaining--;
+			}
+		} finally {
+			//Stop the queued probes and abort the ones in progress
+			pool.shutdownNow();
+			synchronized (m_pending) {
+				for(BluetoothSocket s : m_pending)
+					close(s);
+				m_pending.clear();
+			}
+			m_watchdog.shutdownNow();
+
+			m_result.duration = SystemClock.elapsedRealtime() - start;
+		}
+
+		m_result.socket = found;
+		Log.d(LOG_NAME, "Scanned " + m_result.toString());
+		return m_result;
+	}
+
+	private BluetoothSocket attempt(final int port, final boolean secure) {
+		if (m_winner.get() != null)
+			return null;
+
+		final BluetoothSocket s;
+		try {
+			s = secure ? m_device.createRfcommSocket(port) : m_device.createInsecureRfcommSocket(port);
+		} catch (Exception ex) {
+			setStatus(port, STATUS_FAILED);
+			return null;
+		}
+
+		synchronized (m_pending) {
+			m_pending.add(s);
+		}
+
+		//BluetoothSocket.connect has no timeout, so we close the socket to abort it
+		final AtomicBoolean timedOut = new AtomicBoolean(false);
+		ScheduledFuture<?> watchdog = null;
+		try {
+			watchdog = m_watchdog.schedule(new Runnable() {
+				@Override
+				public void run() {
+					timedOut.set(true);
+					close(s);
+				}
+			}, m_timeout, TimeUnit.MILLISECONDS);
+
+			if (D) Log.d(LOG_NAME, "Probing port " + port + (secure ? " secure" : " insecure"));
+			s.connect();
+			watchdog.cancel(false);
+
+			if (timedOut.get())
+				throw new IOException("Timed out");
+		} catch (Exception ex) {
+			if (watchdog != null)
+				watchdog.cancel(false);
+			close(s);
+			setStatus(port, timedOut.get() ? STATUS_TIMEOUT : STATUS_FAILED);
+
+			if (D) Log.d(LOG_NAME, "Port " + port + (secure ? " secure" : " insecure") + " failed: " + ex.toString());
+			return null;
+		} finally {
+			synchronized (m_pending) {
+				m_pending.remove(s);
+			}
+		}
+
+		setStatus(port, secure ? STATUS_SECURE : STATUS_INSECURE);
+
+		//Another port may have connected at the same time, only the first one is used
+		if (!m_winner.compareAndSet(null, s)) {
+			close(s);
+			return null;
+		}
+
+		synchronized (m_result) {
+			m_result.port = port;
+			m_result.secure = secure;
+		}
+
+		return s;
+	}
+
+	private void setStatus(int port, int status) {
+		synchronized (m_result) {
+			m_result.status[port] = status;
+		}
+	}
+
+	private static void close(BluetoothSocket s) {
+		try { s.close(); }
+		catch (Exception ex) { }
+	}
+}
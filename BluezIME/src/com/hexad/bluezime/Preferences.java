@@ -1,284 +1,480 @@
-/* Copyright (C) 2011, Kenneth Skovhede
- * http://www.hexad.dk, opensource@hexad.dk
- * 
- * This library is free software; you can redistribute it and/or
- * modify it under the terms of the GNU Lesser General Public
- * License as published by the Free Software Foundation; either
- * version 2.1 of the License, or (at your option) any later version.
- * 
- * This library is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
- * Lesser General Public License for more details.
- * 
- * You should have received a copy of the GNU Lesser General Public
- * License along with this library; if not, write to the Free Software
- * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
-*/
-package com.hexad.bluezime;
-
-import java.util.ArrayList;
-import android.content.Context;
-import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
-import android.os.PowerManager;
-import android.preference.PreferenceManager;
-
-public class Preferences {
-	
-	public static final String[] PROFILE_NAMES = new String[] {"<default>", "Profile 2", "Profile 3", "Profile 4", "Profile 5", "Profile 6", "Profile 7", "Profile 8", "Profile 9", "Profile 10" };
-	public static final String[] PROFILE_KEYS = new String[] {"", "Profile2", "Profile3", "Profile4", "Profile5", "Profile6", "Profile7", "Profile8", "Profile9", "Profile10" };
-	
-	public static final String PREFERENCES_UPDATED = "com.hexad.bluezime.preferenceschanged";
-
-	public static final int NO_WAKE_LOCK = 0;
-	
-	public static final int MAX_NO_OF_CONTROLLERS = 4;
-	
-	private static final String PREF_DONATION_AMOUNT = "donation amount";
-	private static final String PREF_DEVICE_NAME = "device name";
-	private static final String PREF_DEVICE_ADDRESS = "device address";
-	private static final String PREF_DRIVER_NAME = "driver name";
-	private static final String PREF_KEY_MAPPING = "key mapping";
-	private static final String PREF_META_KEY_MAPPING = "meta key mapping";
-	private static final String PREF_KEY_MAPPING_PROFILE = "key mapping profile";
-	private static final String PREF_PROFILE_NAME = "profile name";
-	private static final String PREF_CONTROLLER_COUNT = "controller count";
-	private static final String PREF_MANAGE_BLUETOOTH = "manage bluetooth";
-	private static final String PREF_WAKE_LOCK = "wake lock";
-	
-	private SharedPreferences m_prefs;
-	private Context m_context;
-	
-	public Preferences(Context context) {
-		m_prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		m_context = context;
-	}
-	
-	private static String getSuffix(int pos) {
-		return pos < 1 ? "" : (" #" + pos);
-			
-	}
-	
-	public String getSelectedDriverName(int pos) {
-		return m_prefs.getString(PREF_DRIVER_NAME + getSuffix(pos), BluezService.getDefaultDriverName());
-	}
-	
-	public void setSelectedDriverName(String value, int pos) {
-		Editor e = m_prefs.edit();
-		e.putString(PREF_DRIVER_NAME + getSuffix(pos), value);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-
-	public String getSelectedDeviceName(int pos) {
-		return m_prefs.getString(PREF_DEVICE_NAME + getSuffix(pos), null);
-	}
-	
-	public void setSelectedDeviceName(String value, int pos) {
-		Editor e = m_prefs.edit();
-		e.putString(PREF_DEVICE_NAME + getSuffix(pos), value);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-
-	public String getSelectedDeviceAddress(int pos) {
-		return m_prefs.getString(PREF_DEVICE_ADDRESS + getSuffix(pos), null);
-	}
-	
-	public void setSelectedDeviceAddress(String value, int pos) {
-		Editor e = m_prefs.edit();
-		e.putString(PREF_DEVICE_ADDRESS + getSuffix(pos), value);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-
-	public void setSelectedDevice(String name, String address, int pos) {
-		Editor e = m_prefs.edit();
-		e.putString(getCurrentProfile() + PREF_DEVICE_NAME + getSuffix(pos), name);
-		e.putString(getCurrentProfile() + PREF_DEVICE_ADDRESS + getSuffix(pos), address);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-	
-	public int getKeyMapping(int key, int controllerNo) {
-		String mapping = getCurrentProfile() + PREF_KEY_MAPPING + getSelectedDriverName(controllerNo) + (controllerNo == 0 ? "" : "#" + controllerNo) + "-" + Integer.toHexString(key);
-		
-		//Special default mapping for PhoneJoy pr. request
-		if (getSelectedDriverName(controllerNo).equals(PhonejoyReader.DRIVER_NAME)) {
-			switch(key) {
-				case FutureKeyCodes.KEYCODE_BUTTON_A: key = FutureKeyCodes.KEYCODE_BUTTON_Y; break;
-				case FutureKeyCodes.KEYCODE_BUTTON_B: key = FutureKeyCodes.KEYCODE_BUTTON_Z; break;
-				case FutureKeyCodes.KEYCODE_BUTTON_C: key = FutureKeyCodes.KEYCODE_BUTTON_X; break;
-				case FutureKeyCodes.KEYCODE_BUTTON_X: key = FutureKeyCodes.KEYCODE_DPAD_CENTER; break;
-				
-				case FutureKeyCodes.KEYCODE_BUTTON_L2: key = FutureKeyCodes.KEYCODE_BACK; break;
-				case FutureKeyCodes.KEYCODE_BUTTON_R2: key = FutureKeyCodes.KEYCODE_MENU; break;
-
-				case FutureKeyCodes.KEYCODE_T: key = FutureKeyCodes.KEYCODE_DPAD_UP; break;
-				case FutureKeyCodes.KEYCODE_G: key = FutureKeyCodes.KEYCODE_DPAD_DOWN; break;
-				case FutureKeyCodes.KEYCODE_F: key = FutureKeyCodes.KEYCODE_DPAD_LEFT; break;
-				case FutureKeyCodes.KEYCODE_H: key = FutureKeyCodes.KEYCODE_DPAD_RIGHT; break;
-
-				case FutureKeyCodes.KEYCODE_I: key = FutureKeyCodes.KEYCODE_W; break;
-				case FutureKeyCodes.KEYCODE_K: key = FutureKeyCodes.KEYCODE_S; break;
-				case FutureKeyCodes.KEYCODE_J: key = FutureKeyCodes.KEYCODE_A; break;
-				case FutureKeyCodes.KEYCODE_L: key = FutureKeyCodes.KEYCODE_D; break;
-			}
-		}
-		
-		return m_prefs.getInt(mapping, key);
-	}
-	
-	public void setKeyMapping(int fromKey, int toKey, int controllerNo) {
-		String mapping = getCurrentProfile() + PREF_KEY_MAPPING + getSelectedDriverName(controllerNo) + (controllerNo == 0 ? "" : "#" + controllerNo) + "-" + Integer.toHexString(fromKey); 
-		Editor e = m_prefs.edit();
-		e.putInt(mapping, toKey);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-
-	public int getMetaKeyMapping(int sourceKey, int controllerNo) {
-		String mapping = getCurrentProfile() + PREF_META_KEY_MAPPING + getSelectedDriverName(controllerNo) + (controllerNo == 0 ? "" : "#" + controllerNo) + "-" + Integer.toHexString(sourceKey); 
-		return m_prefs.getInt(mapping, 0);
-	}
-	
-	public void setMetaKeyMapping(int sourceKey, int metaKey, int controllerNo) {
-		String mapping = getCurrentProfile() + PREF_META_KEY_MAPPING + getSelectedDriverName(controllerNo) + (controllerNo == 0 ? "" : "#" + controllerNo) + "-" + Integer.toHexString(sourceKey); 
-		Editor e = m_prefs.edit();
-		e.putInt(mapping, metaKey);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-
-	public void setCurrentProfile(String value) {
-		Editor e = m_prefs.edit();
-		e.putString(PREF_KEY_MAPPING_PROFILE, value);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-	
-	public String getCurrentProfile() {
-		String prof = m_prefs.getString(PREF_KEY_MAPPING_PROFILE, "");
-		if (prof != null && prof.length() > 0)
-			return prof + ":";
-		else
-			return "";
-	}
-	
-	public void deleteProfile(String profilename) {
-		if (profilename == null || profilename.length() == 0)
-			return;
-		
-		clearByPrefix(profilename + ":");
-	}
-
-	public void clearKeyMappings(int controllerNo) {
-		clearByPrefix(getCurrentProfile() + PREF_KEY_MAPPING + getSelectedDriverName(controllerNo) + (controllerNo == 0 ? "" : "#" + controllerNo) + "-");
-		clearByPrefix(getCurrentProfile() + PREF_META_KEY_MAPPING + getSelectedDriverName(controllerNo) + (controllerNo == 0 ? "" : "#" + controllerNo) + "-");
-	}
-	
-	private void clearByPrefix(String prefix) {
-		ArrayList<String> toRemove = new ArrayList<String>();
-		for(String s : m_prefs.getAll().keySet())
-			if (s.startsWith(prefix))
-				toRemove.add(s);
-		
-		Editor e = m_prefs.edit();
-		
-		for(String s : toRemove)
-			e.remove(s);
-		
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-	
-	public int getDonatedAmount() {
-		return m_prefs.getInt(PREF_DONATION_AMOUNT, 0);
-	}
-
-	public void setDonatedAmount(int amount) {
-		Editor e = m_prefs.edit();
-		e.putInt(PREF_DONATION_AMOUNT, amount);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-
-	public String getProfileDisplayName(String profilename) {
-		String profKey = profilename;
-		if (profKey.endsWith(":"))
-			profKey = profKey.substring(0, profKey.length() - 1);
-		
-		String defaultName = profKey;
-		for(int i = 0; i < PROFILE_KEYS.length; i++)
-			if (PROFILE_KEYS[i].equals(profKey)) {
-				defaultName = PROFILE_NAMES[i];
-				break;
-			}
-		
-		String res = m_prefs.getString(profKey + ":" + PREF_PROFILE_NAME, defaultName);
-		if (res == null || res.equals(""))
-			res = defaultName;
-		
-		return res;
-	}
-
-	public String getProfileDisplayName() {
-		return getProfileDisplayName(getCurrentProfile());
-	}
-	
-	public void setProfileDisplayName(String value) {
-		Editor e = m_prefs.edit();
-		e.putString(getCurrentProfile() + PREF_PROFILE_NAME, value);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-
-	public boolean getManageBluetooth() {
-		return m_prefs.getBoolean(PREF_MANAGE_BLUETOOTH, true);
-	}
-	
-	public int getControllerCount() {
-		return m_prefs.getInt(PREF_CONTROLLER_COUNT, 1);
-	}
-
-	public void setControllerCount(int count) {
-		Editor e = m_prefs.edit();
-		e.putInt(PREF_CONTROLLER_COUNT, count);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-
-	public void setManageBluetooth(boolean value) {
-		Editor e = m_prefs.edit();
-		e.putBoolean(PREF_MANAGE_BLUETOOTH, value);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-
-	
-	public void setWakeLock(int value) {
-		switch(value)
-		{
-			case PowerManager.FULL_WAKE_LOCK:
-			case PowerManager.PARTIAL_WAKE_LOCK:
-			case PowerManager.SCREEN_BRIGHT_WAKE_LOCK:
-			case PowerManager.SCREEN_DIM_WAKE_LOCK:
-			case NO_WAKE_LOCK:
-				break;
-			default:
-				return;
-		}
-		
-		Editor e = m_prefs.edit();
-		e.putInt(PREF_WAKE_LOCK, value);
-		e.commit();
-		m_context.sendBroadcast(new Intent(PREFERENCES_UPDATED));
-	}
-	
-	public int getWakeLock() {
-		return m_prefs.getInt(PREF_WAKE_LOCK, NO_WAKE_LOCK);
-	}
-
-}
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.util.ArrayList;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.os.Build;
+import android.os.PowerManager;
+import android.preference.PreferenceManager;
+
+import com.hexad.bluezime.core.FutureKeyCodes;
+
+public class Preferences {
+	
+	public static final String[] PROFILE_NAMES = new String[] {"<default>", "Profile 2", "Profile 3", "Profile 4", "Profile 5", "Profile 6", "Profile 7", "Profile 8", "Profile 9", "Profile 10" };
+	public static final String[] PROFILE_KEYS = new String[] {"", "Profile2", "Profile3", "Profile4", "Profile5", "Profile6", "Profile7", "Profile8", "Profile9", "Profile10" };
+	
+	public static final String PREFERENCES_UPDATED = "com.hexad.bluezime.preferenceschanged";
+	public static final String PREFERENCES_UPDATED_TYPE = "type"; //Integer, one of the CHANGE_* values, CHANGE_ALL if missing
+	public static final String PREFERENCES_UPDATED_CONTROLLER = "controller"; //Integer, the controller that changed, -1 for all
+	public static final String PREFERENCES_UPDATED_KEY = "key"; //Integer, the key that was remapped, -1 for all
+	
+	public static final int CHANGE_ALL = 0;
+	public static final int CHANGE_KEY_MAPPING = 1;
+	public static final int CHANGE_META_KEY_MAPPING = 2;
+	public static final int CHANGE_KEY_MAPPINGS = 3; //All mappings for a controller
+	public static final int CHANGE_PROFILE = 4;
+	public static final int CHANGE_DRIVER = 5;
+	public static final int CHANGE_DEVICE = 6;
+	public static final int CHANGE_CONTROLLER_COUNT = 7;
+	public static final int CHANGE_WAKE_LOCK = 8;
+	public static final int CHANGE_OTHER = 9; //Does not affect input handling
+
+	public static final int NO_WAKE_LOCK = 0;
+	
+	public static final int MAX_NO_OF_CONTROLLERS = 4;
+	
+	private static final String PREF_DONATION_AMOUNT = "donation amount";
+	private static final String PREF_DEVICE_NAME = "device name";
+	private static final String PREF_DEVICE_ADDRESS = "device address";
+	private static final String PREF_DRIVER_NAME = "driver name";
+	static final String PREF_KEY_MAPPING = "key mapping";
+	static final String PREF_META_KEY_MAPPING = "meta key mapping";
+	private static final String PREF_KEY_MAPPING_PROFILE = "key mapping profile";
+	private static final String PREF_PROFILE_NAME = "profile name";
+	private static final String PREF_CONTROLLER_COUNT = "controller count";
+	private static final String PREF_MANAGE_BLUETOOTH = "manage bluetooth";
+	private static final String PREF_WAKE_LOCK = "wake lock";
+	private static final String PREF_CAPTURE_TRACES = "capture traces";
+	private static final String PREF_DETECTED_DRIVER = "detected driver";
+	
+	private SharedPreferences m_prefs;
+	private Context m_context;
+	
+	//The nesting level of the current transaction, and the changes made in it
+	private int m_transactionDepth = 0;
+	private boolean m_profilesChanged = false;
+	private int m_pendingType = -1;
+	private int m_pendingController = -1;
+	private int m_pendingKey = -1;
+	
+	public Preferences(Context context) {
+		m_prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		m_context = context;
+	}
+	
+	private static String getSuffix(int pos) {
+		return pos < 1 ? "" : (" #" + pos);
+			
+	}
+	
+	public String getSelectedDriverName(int pos) {
+		return m_prefs.getString(PREF_DRIVER_NAME + getSuffix(pos), BluezService.getDefaultDriverName());
+	}
+	
+	public void setSelectedDriverName(String value, int pos) {
+		Editor e = m_prefs.edit();
+		e.putString(PREF_DRIVER_NAME + getSuffix(pos), value);
+		save(e);
+		notifyChanged(CHANGE_DRIVER, pos, -1);
+	}
+
+	//The driver that automatic detection found for a device, or null if it has not connected yet
+	public String getDetectedDriverName(String address) {
+		if (address == null)
+			return null;
+		return m_prefs.getString(PREF_DETECTED_DRIVER + " " + address, null);
+	}
+	
+	public void setDetectedDriverName(String address, String value) {
+		if (value.equals(getDetectedDriverName(address)))
+			return;
+		
+		Editor e = m_prefs.edit();
+		e.putString(PREF_DETECTED_DRIVER + " " + address, value);
+		save(e);
+		
+		//The mappings of a controller with automatic detection follow the detected driver
+		notifyChanged(CHANGE_KEY_MAPPINGS, -1, -1);
+	}
+	
+	//The driver the key mappings of a controller belong to, which is the detected driver with automatic detection.
+	//Until the device has been detected, the mappings are kept for the automatic driver
+	public String getMappingDriverName(int pos) {
+		String driver = getSelectedDriverName(pos);
+		if (!DriverDetector.DRIVER_NAME.equals(driver))
+			return driver;
+		
+		String detected = getDetectedDriverName(getSelectedDeviceAddress(pos));
+		return detected == null ? driver : detected;
+	}
+
+	public String getSelectedDeviceName(int pos) {
+		return m_prefs.getString(PREF_DEVICE_NAME + getSuffix(pos), null);
+	}
+	
+	public void setSelectedDeviceName(String value, int pos) {
+		Editor e = m_prefs.edit();
+		e.putString(PREF_DEVICE_NAME + getSuffix(pos), value);
+		save(e);
+		notifyChanged(CHANGE_DEVICE, pos, -1);
+	}
+
+	public String getSelectedDeviceAddress(int pos) {
+		return m_prefs.getString(PREF_DEVICE_ADDRESS + getSuffix(pos), null);
+	}
+	
+	public void setSelectedDeviceAddress(String value, int pos) {
+		Editor e = m_prefs.edit();
+		e.putString(PREF_DEVICE_ADDRESS + getSuffix(pos), value);
+		save(e);
+		notifyChanged(CHANGE_DEVICE, pos, -1);
+		notifyDetectedMappings(pos);
+	}
+
+	public void setSelectedDevice(String name, String address, int pos) {
+		Editor e = m_prefs.edit();
+		e.putString(getCurrentProfile() + PREF_DEVICE_NAME + getSuffix(pos), name);
+		e.putString(getCurrentProfile() + PREF_DEVICE_ADDRESS + getSuffix(pos), address);
+		save(e);
+		notifyChanged(CHANGE_DEVICE, pos, -1);
+		notifyDetectedMappings(pos);
+	}
+	
+	//With automatic detection the key mappings follow the device, so they change with it
+	private void notifyDetectedMappings(int pos) {
+		if (DriverDetector.DRIVER_NAME.equals(getSelectedDriverName(pos)))
+			notifyChanged(CHANGE_KEY_MAPPINGS, pos, -1);
+	}
+	
+	private ProfileStore getProfileStore() {
+		return ProfileStore.getInstance(m_context, m_prefs);
+	}
+	
+	//The key of the current profile, without the separator
+	private String getCurrentProfileKey() {
+		String prof = m_prefs.getString(PREF_KEY_MAPPING_PROFILE, "");
+		return prof == null ? "" : prof;
+	}
+	
+	//Starts a batch of changes, the key mappings are written once and a single
+	// update is broadcast when the outermost transaction ends.
+	//Transactions are per instance and must only be used from one thread
+	public void beginTransaction() {
+		if (m_transactionDepth++ == 0) {
+			m_profilesChanged = false;
+			m_pendingType = -1;
+		}
+	}
+	
+	public void endTransaction() {
+		if (m_transactionDepth == 0)
+			throw new IllegalStateException("No transaction in progress");
+		
+		if (--m_transactionDepth > 0)
+			return;
+		
+		if (m_profilesChanged) {
+			m_profilesChanged = false;
+			saveProfiles();
+		}
+		
+		if (m_pendingType >= 0) {
+			int type = m_pendingType;
+			m_pendingType = -1;
+			sendChanged(type, m_pendingController, m_pendingKey);
+		}
+	}
+	
+	//Writes the values in the background, they are visible to readers immediately.
+	//Apply is not available before Gingerbread
+	private static void save(Editor e) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+			e.apply();
+		else
+			e.commit();
+	}
+	
+	//Tells listeners what changed, so they only need to refresh the affected parts
+	private void notifyChanged(int type, int controllerNo, int key) {
+		if (m_transactionDepth == 0) {
+			sendChanged(type, controllerNo, key);
+			return;
+		}
+		
+		if (m_pendingType < 0) {
+			m_pendingType = type;
+			m_pendingController = controllerNo;
+			m_pendingKey = key;
+		} else if (m_pendingType == type && m_pendingController == controllerNo && m_pendingKey == key) {
+			//Same change again
+		} else if (isKeyMappingChange(m_pendingType) && isKeyMappingChange(type)) {
+			//A batch of mapping changes is reported as a change of all mappings
+			m_pendingController = m_pendingController == controllerNo ? controllerNo : -1;
+			m_pendingType = CHANGE_KEY_MAPPINGS;
+			m_pendingKey = -1;
+		} else {
+			m_pendingType = CHANGE_ALL;
+			m_pendingController = -1;
+			m_pendingKey = -1;
+		}
+	}
+	
+	private static boolean isKeyMappingChange(int type) {
+		return type == CHANGE_KEY_MAPPING || type == CHANGE_META_KEY_MAPPING || type == CHANGE_KEY_MAPPINGS;
+	}
+	
+	private void sendChanged(int type, int controllerNo, int key) {
+		Intent i = new Intent(PREFERENCES_UPDATED);
+		i.putExtra(PREFERENCES_UPDATED_TYPE, type);
+		i.putExtra(PREFERENCES_UPDATED_CONTROLLER, controllerNo);
+		i.putExtra(PREFERENCES_UPDATED_KEY, key);
+		m_context.sendBroadcast(i);
+	}
+	
+	//Writes the changed key mappings in the background, or when the transaction ends
+	private void saveProfiles() {
+		if (m_transactionDepth > 0)
+			m_profilesChanged = true;
+		else
+			getProfileStore().flushAsync();
+	}
+	
+	public int getKeyMapping(int key, int controllerNo) {
+		String driver = getMappingDriverName(controllerNo);
+		return getProfileStore().getMapping(getCurrentProfileKey(), ProfileStore.TYPE_KEY, driver, controllerNo, key, getDefaultKeyMapping(driver, key));
+	}
+	
+	//The mapping used for a key that the user has not mapped
+	private static int getDefaultKeyMapping(String driver, int key) {
+		//Special default mapping for PhoneJoy pr. request
+		if (driver.equals(PhonejoyReader.DRIVER_NAME)) {
+			switch(key) {
+				case FutureKeyCodes.KEYCODE_BUTTON_A: key = FutureKeyCodes.KEYCODE_BUTTON_Y; break;
+				case FutureKeyCodes.KEYCODE_BUTTON_B: key = FutureKeyCodes.KEYCODE_BUTTON_Z; break;
+				case FutureKeyCodes.KEYCODE_BUTTON_C: key = FutureKeyCodes.KEYCODE_BUTTON_X; break;
+				case FutureKeyCodes.KEYCODE_BUTTON_X: key = FutureKeyCodes.KEYCODE_DPAD_CENTER; break;
+				
+				case FutureKeyCodes.KEYCODE_BUTTON_L2: key = FutureKeyCodes.KEYCODE_BACK; break;
+				case FutureKeyCodes.KEYCODE_BUTTON_R2: key = FutureKeyCodes.KEYCODE_MENU; break;
+
+				case FutureKeyCodes.KEYCODE_T: key = FutureKeyCodes.KEYCODE_DPAD_UP; break;
+				case FutureKeyCodes.KEYCODE_G: key = FutureKeyCodes.KEYCODE_DPAD_DOWN; break;
+				case FutureKeyCodes.KEYCODE_F: key = FutureKeyCodes.KEYCODE_DPAD_LEFT; break;
+				case FutureKeyCodes.KEYCODE_H: key = FutureKeyCodes.KEYCODE_DPAD_RIGHT; break;
+
+				case FutureKeyCodes.KEYCODE_I: key = FutureKeyCodes.KEYCODE_W; break;
+				case FutureKeyCodes.KEYCODE_K: key = FutureKeyCodes.KEYCODE_S; break;
+				case FutureKeyCodes.KEYCODE_J: key = FutureKeyCodes.KEYCODE_A; break;
+				case FutureKeyCodes.KEYCODE_L: key = FutureKeyCodes.KEYCODE_D; break;
+			}
+		}
+		
+		return key;
+	}
+	
+	public void setKeyMapping(int fromKey, int toKey, int controllerNo) {
+		getProfileStore().setMapping(getCurrentProfileKey(), ProfileStore.TYPE_KEY, getMappingDriverName(controllerNo), controllerNo, fromKey, toKey);
+		saveProfiles();
+		notifyChanged(CHANGE_KEY_MAPPING, controllerNo, fromKey);
+	}
+
+	public int getMetaKeyMapping(int sourceKey, int controllerNo) {
+		return getProfileStore().getMapping(getCurrentProfileKey(), ProfileStore.TYPE_META, getMappingDriverName(controllerNo), controllerNo, sourceKey, 0);
+	}
+	
+	public void setMetaKeyMapping(int sourceKey, int metaKey, int controllerNo) {
+		getProfileStore().setMapping(getCurrentProfileKey(), ProfileStore.TYPE_META, getMappingDriverName(controllerNo), controllerNo, sourceKey, metaKey);
+		saveProfiles();
+		notifyChanged(CHANGE_META_KEY_MAPPING, controllerNo, sourceKey);
+	}
+
+	//Builds the mapping tables for the current profile
+	public KeyMappingTable compileKeyMappings() {
+		int[][] keys = new int[MAX_NO_OF_CONTROLLERS][KeyMappingTable.TABLE_SIZE];
+		int[][] metaKeys = new int[MAX_NO_OF_CONTROLLERS][KeyMappingTable.TABLE_SIZE];
+		
+		ProfileStore store = getProfileStore();
+		String profile = getCurrentProfileKey();
+		
+		for(int i = 0; i < MAX_NO_OF_CONTROLLERS; i++) {
+			String driver = getMappingDriverName(i);
+			for(int j = 0; j < KeyMappingTable.TABLE_SIZE; j++)
+				keys[i][j] = getDefaultKeyMapping(driver, j);
+			
+			applyMappings(keys[i], store.getMappings(profile, ProfileStore.TYPE_KEY, driver, i));
+			applyMappings(metaKeys[i], store.getMappings(profile, ProfileStore.TYPE_META, driver, i));
+		}
+		
+		return new KeyMappingTable(keys, metaKeys);
+	}
+	
+	private static void applyMappings(int[] target, int[] pairs) {
+		for(int i = 0; i < pairs.length; i += 2)
+			if (pairs[i] >= 0 && pairs[i] < target.length)
+				target[pairs[i]] = pairs[i + 1];
+	}
+
+	public void setCurrentProfile(String value) {
+		Editor e = m_prefs.edit();
+		e.putString(PREF_KEY_MAPPING_PROFILE, value);
+		save(e);
+		notifyChanged(CHANGE_PROFILE, -1, -1);
+	}
+	
+	public String getCurrentProfile() {
+		String prof = m_prefs.getString(PREF_KEY_MAPPING_PROFILE, "");
+		if (prof != null && prof.length() > 0)
+			return prof + ":";
+		else
+			return "";
+	}
+	
+	public void deleteProfile(String profilename) {
+		if (profilename == null || profilename.length() == 0)
+			return;
+		
+		getProfileStore().deleteProfile(profilename);
+		clearByPrefix(profilename + ":");
+		notifyChanged(CHANGE_PROFILE, -1, -1);
+	}
+
+	public void clearKeyMappings(int controllerNo) {
+		getProfileStore().clearMappings(getCurrentProfileKey(), getMappingDriverName(controllerNo), controllerNo);
+		saveProfiles();
+		notifyChanged(CHANGE_KEY_MAPPINGS, controllerNo, -1);
+	}
+	
+	private void clearByPrefix(String prefix) {
+		ArrayList<String> toRemove = new ArrayList<String>();
+		for(String s : m_prefs.getAll().keySet())
+			if (s.startsWith(prefix))
+				toRemove.add(s);
+		
+		Editor e = m_prefs.edit();
+		
+		for(String s : toRemove)
+			e.remove(s);
+		
+		save(e);
+	}
+	
+	public int getDonatedAmount() {
+		return m_prefs.getInt(PREF_DONATION_AMOUNT, 0);
+	}
+
+	public void setDonatedAmount(int amount) {
+		Editor e = m_prefs.edit();
+		e.putInt(PREF_DONATION_AMOUNT, amount);
+		save(e);
+		notifyChanged(CHANGE_OTHER, -1, -1);
+	}
+
+	public String getProfileDisplayName(String profilename) {
+		String profKey = profilename;
+		if (profKey.endsWith(":"))
+			profKey = profKey.substring(0, profKey.length() - 1);
+		
+		String defaultName = profKey;
+		for(int i = 0; i < PROFILE_KEYS.length; i++)
+			if (PROFILE_KEYS[i].equals(profKey)) {
+				defaultName = PROFILE_NAMES[i];
+				break;
+			}
+		
+		String res = m_prefs.getString(profKey + ":" + PREF_PROFILE_NAME, defaultName);
+		if (res == null || res.equals(""))
+			res = defaultName;
+		
+		return res;
+	}
+
+	public String getProfileDisplayName() {
+		return getProfileDisplayName(getCurrentProfile());
+	}
+	
+	public void setProfileDisplayName(String value) {
+		Editor e = m_prefs.edit();
+		e.putString(getCurrentProfile() + PREF_PROFILE_NAME, value);
+		save(e);
+		notifyChanged(CHANGE_OTHER, -1, -1);
+	}
+
+	public boolean getManageBluetooth() {
+		return m_prefs.getBoolean(PREF_MANAGE_BLUETOOTH, true);
+	}
+	
+	public int getControllerCount() {
+		return m_prefs.getInt(PREF_CONTROLLER_COUNT, 1);
+	}
+
+	public void setControllerCount(int count) {
+		Editor e = m_prefs.edit();
+		e.putInt(PREF_CONTROLLER_COUNT, count);
+		save(e);
+		notifyChanged(CHANGE_CONTROLLER_COUNT, -1, -1);
+	}
+
+	public void setManageBluetooth(boolean value) {
+		Editor e = m_prefs.edit();
+		e.putBoolean(PREF_MANAGE_BLUETOOTH, value);
+		save(e);
+		notifyChanged(CHANGE_OTHER, -1, -1);
+	}
+
+	
+	public void setWakeLock(int value) {
+		switch(value)
+		{
+			case PowerManager.FULL_WAKE_LOCK:
+			case PowerManager.PARTIAL_WAKE_LOCK:
+			case PowerManager.SCREEN_BRIGHT_WAKE_LOCK:
+			case PowerManager.SCREEN_DIM_WAKE_LOCK:
+			case NO_WAKE_LOCK:
+				break;
+			default:
+				return;
+		}
+		
+		Editor e = m_prefs.edit();
+		e.putInt(PREF_WAKE_LOCK, value);
+		save(e);
+		notifyChanged(CHANGE_WAKE_LOCK, -1, -1);
+	}
+	
+	public int getWakeLock() {
+		return m_prefs.getInt(PREF_WAKE_LOCK, NO_WAKE_LOCK);
+	}
+	
+	//If set, the raw data from all devices is recorded, see TraceRecorder
+	public boolean getCaptureTraces() {
+		return m_prefs.getBoolean(PREF_CAPTURE_TRACES, false);
+	}
+	
+	public void setCaptureTraces(boolean value) {
+		Editor e = m_prefs.edit();
+		e.putBoolean(PREF_CAPTURE_TRACES, value);
+		save(e);
+		notifyChanged(CHANGE_OTHER, -1, -1);
+	}
+
+}
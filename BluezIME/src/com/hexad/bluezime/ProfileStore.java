@@ -0,0 +1,485 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+//Stores the key mapping profiles, with one binary file per profile and an index file
+// that maps the profile keys to the files.
+//A profile file has a section for each mapping type, driver and controller, and each
+// section is a list of (key, value) int pairs, sorted by key.
+//Profiles are loaded on first use, so switching profile costs a single file read
+public class ProfileStore {
+
+	private static final boolean D = false;
+	private static final String LOG_NAME = "ProfileStore";
+
+	public static final int TYPE_KEY = 0;
+	public static final int TYPE_META = 1;
+
+	//The format version, stored in the index and in each profile file
+	public static final int VERSION = 1;
+
+	private static final int INDEX_MAGIC = 0x425a5049; //BZPI
+	private static final int PROFILE_MAGIC = 0x425a5046; //BZPF
+
+	private static final String DIRECTORY = "profiles";
+	private static final String INDEX_FILE = "index";
+
+	private static ProfileStore m_instance = null;
+
+	private final File m_directory;
+
+	//The file name of each profile, by profile key
+	private final Hashtable<String, String> m_index = new Hashtable<String, String>();
+	private int m_nextFileNo = 0;
+
+	//The profiles that have been loaded, and those that have unsaved changes
+	private final Hashtable<String, Profile> m_profiles = new Hashtable<String, Profile>();
+	private final ArrayList<String> m_dirty = new ArrayList<String>();
+	//True if a background write has been queued but has not yet begun writing
+	private boolean m_flushPending = false;
+	
+	//The thread that writes the profiles, created on the first write
+	private Handler m_writer = null;
+
+	//Returns the store, the first call migrates mappings from the old SharedPreferences layout
+	public static synchronized ProfileStore getInstance(Context context, SharedPreferences prefs) {
+		if (m_instance == null) {
+			m_instance = new ProfileStore(new File(context.getFilesDir(), DIRECTORY));
+			m_instance.open(prefs);
+		}
+
+		return m_instance;
+	}
+
+	private ProfileStore(File directory) {
+		m_directory = directory;
+	}
+
+	//The mappings of a single profile
+	private static class Profile {
+		//Packed (key, value) pairs by section name, sorted by key
+		private final Hashtable<String, int[]> m_sections = new Hashtable<String, int[]>();
+
+		public static String getSectionName(int type, String driver, int controllerNo) {
+			return type + ":" + controllerNo + ":" + driver;
+		}
+
+		private static int find(int[] pairs, int key) {
+			int lo = 0;
+			int hi = (pairs.length / 2) - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int k = pairs[mid * 2];
+				if (k < key)
+					lo = mid + 1;
+				else if (k > key)
+					hi = mid - 1;
+				else
+					return mid;
+			}
+
+			return -(lo + 1);
+		}
+
+		public int get(String section, int key, int defaultValue) {
+			int[] pairs = m_sections.get(section);
+			if (pairs == null)
+				return defaultValue;
+
+			int ix = find(pairs, key);
+			return ix < 0 ? defaultValue : pairs[(ix * 2) + 1];
+		}
+
+		public void put(String section, int key, int value) {
+			int[] pairs = m_sections.get(section);
+			if (pairs == null)
+				pairs = new int[0];
+
+			int ix = find(pairs, key);
+			if (ix >= 0) {
+				pairs[(ix * 2) + 1] = value;
+			} else {
+				ix = -(ix + 1);
+				int[] tmp = new int[pairs.length + 2];
+				System.arraycopy(pairs, 0, tmp, 0, ix * 2);
+				System.arraycopy(pairs, ix * 2, tmp, (ix * 2) + 2, pairs.length - (ix * 2));
+				tmp[ix * 2] = key;
+				tmp[(ix * 2) + 1] = value;
+				m_sections.put(section, tmp);
+			}
+		}
+
+		public void write(DataOutputStream output) throws IOException {
+			output.writeInt(PROFILE_MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(m_sections.size());
+			for(Map.Entry<String, int[]> e : m_sections.entrySet()) {
+				int[] pairs = e.getValue();
+				output.writeUTF(e.getKey());
+				output.writeInt(pairs.length / 2);
+				for(int i = 0; i < pairs.length; i++)
+					output.writeInt(pairs[i]);
+			}
+		}
+
+		public static Profile read(DataInputStream input) throws IOException {
+			if (input.readInt() != PROFILE_MAGIC)
+				throw new IOException("Not a profile file");
+			int version = input.readInt();
+			if (version > VERSION)
+				throw new IOException("Unsupported profile version: " + version);
+
+			Profile p = new Profile();
+			int sections = input.readInt();
+			for(int i = 0; i < sections; i++) {
+				String name = input.readUTF();
+				int[] pairs = new int[input.readInt() * 2];
+				for(int j = 0; j < pairs.length; j++)
+					pairs[j] = input.readInt();
+				p.m_sections.put(name, pairs);
+			}
+
+			return p;
+		}
+	}
+
+	private void open(SharedPreferences prefs) {
+		File index = new File(m_directory, INDEX_FILE);
+		if (!index.exists()) {
+			migrate(prefs);
+			return;
+		}
+
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+			if (input.readInt() != INDEX_MAGIC)
+				throw new IOException("Not a profile index");
+			int version = input.readInt();
+			if (version > VERSION)
+				throw new IOException("Unsupported profile index version: " + version);
+
+			m_nextFileNo = input.readInt();
+			int count = input.readInt();
+			for(int i = 0; i < count; i++) {
+				String key = input.readUTF();
+				m_index.put(key, input.readUTF());
+			}
+		} catch (IOException ex) {
+			Log.e(LOG_NAME, "Failed to read the profile index: " + ex.toString());
+			m_nextFileNo = Math.max(0, m_nextFileNo);
+			recoverIndex(index);
+		} finally {
+			try { if (input != null) input.close(); }
+			catch (IOException ex) { }
+		}
+	}
+
+	//Keeps the entries that were read from a broken index, and moves the index aside so it is not lost
+	// when the index is written again. The profile files do not know their profile, so the others
+	// cannot be restored, but new files are numbered after the existing ones so none are overwritten
+	private void recoverIndex(File index) {
+		File bad = new File(m_directory, INDEX_FILE + ".bad");
+		bad.delete();
+		if (index.renameTo(bad))
+			Log.w(LOG_NAME, "Moved the unreadable profile index to " + bad);
+		else
+			Log.e(LOG_NAME, "Failed to move the unreadable profile index to " + bad);
+
+		String[] files = m_directory.list();
+		if (files != null)
+			for(String name : files) {
+				if (!name.startsWith("profile"))
+					continue;
+
+				//Also skips the temporary and unreadable files, the number is what matters
+				int end = name.indexOf('.');
+				try {
+					int no = Integer.parseInt(name.substring("profile".length(), end < 0 ? name.length() : end));
+					m_nextFileNo = Math.max(m_nextFileNo, no + 1);
+				} catch (NumberFormatException ex) {
+				}
+			}
+	}
+
+	//Moves the mappings from the old layout, where each mapping is an entry in the
+	// SharedPreferences, named: [profile:]<type><driver>[#controller]-<hex key>
+	private void migrate(SharedPreferences prefs) {
+		ArrayList<String> migrated = new ArrayList<String>();
+
+		for(Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+			if (!(entry.getValue() instanceof Integer))
+				continue;
+
+			String name = entry.getKey();
+
+			int type;
+			int typeIndex = name.indexOf(Preferences.PREF_META_KEY_MAPPING);
+			int typeLength = Preferences.PREF_META_KEY_MAPPING.length();
+			if (typeIndex >= 0) {
+				type = TYPE_META;
+			} else {
+				type = TYPE_KEY;
+				typeIndex = name.indexOf(Preferences.PREF_KEY_MAPPING);
+				typeLength = Preferences.PREF_KEY_MAPPING.length();
+			}
+
+			if (typeIndex < 0)
+				continue;
+
+			String profile = name.substring(0, typeIndex);
+			if (profile.length() > 0) {
+				if (!profile.endsWith(":"))
+					continue;
+				profile = profile.substring(0, profile.length() - 1);
+			}
+
+			String rest = name.substring(typeIndex + typeLength);
+			int keyIndex = rest.lastIndexOf('-');
+			if (keyIndex < 0)
+				continue;
+
+			String driver = rest.substring(0, keyIndex);
+			int controllerNo = 0;
+			int controllerIndex = driver.lastIndexOf('#');
+
+			try {
+				if (controllerIndex >= 0) {
+					controllerNo = Integer.parseInt(driver.substring(controllerIndex + 1));
+					driver = driver.substring(0, controllerIndex);
+				}
+
+				int key = Integer.parseInt(rest.substring(keyIndex + 1), 16);
+				getProfile(profile).put(Profile.getSectionName(type, driver, controllerNo), key, (Integer)entry.getValue());
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+
+			if (!m_dirty.contains(profile))
+				m_dirty.add(profile);
+			migrated.add(name);
+		}
+
+		//The index is written last, so an interrupted migration is repeated
+		try {
+			m_directory.mkdirs();
+			flush();
+			writeIndex();
+		} catch (IOException ex) {
+			Log.e(LOG_NAME, "Failed to migrate profiles: " + ex.toString());
+			return;
+		}
+
+		Editor e = prefs.edit();
+		for(String s : migrated)
+			e.remove(s);
+		e.commit();
+
+		if (D) Log.d(LOG_NAME, "Migrated " + migrated.size() + " mappings");
+	}
+
+	private Profile getProfile(String profile) {
+		Profile p = m_profiles.get(profile);
+		if (p != null)
+			return p;
+
+		String fileName = m_index.get(profile);
+		if (fileName != null) {
+			File file = new File(m_directory, fileName);
+			DataInputStream input = null;
+			try {
+				input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				p = Profile.read(input);
+			} catch (IOException ex) {
+				Log.e(LOG_NAME, "Failed to read profile " + profile + ": " + ex.toString());
+			} finally {
+				try { if (input != null) input.close(); }
+				catch (IOException ex) { }
+			}
+			
+			//The profile starts over empty, so keep the file that failed instead of overwriting it on the next flush
+			if (p == null && file.exists()) {
+				File bad = new File(m_directory, fileName + ".bad");
+				bad.delete();
+				if (file.renameTo(bad))
+					Log.w(LOG_NAME, "Moved the unreadable profile " + profile + " to " + bad);
+				else
+					Log.e(LOG_NAME, "Failed to move the unreadable profile " + profile + " to " + bad);
+			}
+		}
+
+		if (p == null)
+			p = new Profile();
+
+		m_profiles.put(profile, p);
+		return p;
+	}
+
+	public synchronized int getMapping(String profile, int type, String driver, int controllerNo, int key, int defaultValue) {
+		return getProfile(profile).get(Profile.getSectionName(type, driver, controllerNo), key, defaultValue);
+	}
+
+	//Returns a copy of the (key, value) pairs for the driver and controller
+	public synchronized int[] getMappings(String profile, int type, String driver, int controllerNo) {
+		int[] pairs = getProfile(profile).m_sections.get(Profile.getSectionName(type, driver, controllerNo));
+		return pairs == null ? new int[0] : pairs.clone();
+	}
+
+	//Changes a mapping, the change is not stored until flush() is called
+	public synchronized void setMapping(String profile, int type, String driver, int controllerNo, int key, int value) {
+		getProfile(profile).put(Profile.getSectionName(type, driver, controllerNo), key, value);
+		if (!m_dirty.contains(profile))
+			m_dirty.add(profile);
+	}
+
+	//Removes all mappings for the driver and controller, the change is not stored until flush() is called
+	public synchronized void clearMappings(String profile, String driver, int controllerNo) {
+		Profile p = getProfile(profile);
+		p.m_sections.remove(Profile.getSectionName(TYPE_KEY, driver, controllerNo));
+		p.m_sections.remove(Profile.getSectionName(TYPE_META, driver, controllerNo));
+		if (!m_dirty.contains(profile))
+			m_dirty.add(profile);
+	}
+
+	public synchronized void deleteProfile(String profile) {
+		m_profiles.remove(profile);
+		m_dirty.remove(profile);
+
+		String fileName = m_index.remove(profile);
+		if (fileName == null)
+			return;
+
+		try {
+			writeIndex();
+		} catch (IOException ex) {
+			Log.e(LOG_NAME, "Failed to write the profile index: " + ex.toString());
+		}
+
+		new File(m_directory, fileName).delete();
+	}
+
+	//Writes all changed profiles to disk
+	public synchronized void flush() throws IOException {
+		boolean indexChanged = false;
+
+		while (m_dirty.size() > 0) {
+			String profile = m_dirty.get(0);
+
+			String fileName = m_index.get(profile);
+			if (fileName == null) {
+				fileName = "profile" + (m_nextFileNo++);
+				m_index.put(profile, fileName);
+				indexChanged = true;
+			}
+
+			Profile p = m_profiles.get(profile);
+			if (p != null)
+				writeFile(fileName, p);
+
+			m_dirty.remove(0);
+		}
+
+		if (indexChanged)
+			writeIndex();
+	}
+
+	//Writes the changed profiles on a background thread,
+	// changes made before the write starts are included in it
+	public synchronized void flushAsync() {
+		if (m_flushPending || m_dirty.size() == 0)
+			return;
+
+		if (m_writer == null) {
+			HandlerThread thread = new HandlerThread("BluezIME profile writer");
+			thread.start();
+			m_writer = new Handler(thread.getLooper());
+		}
+
+		m_flushPending = true;
+		m_writer.post(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ProfileStore.this) {
+					m_flushPending = false;
+					try {
+						flush();
+					} catch (IOException ex) {
+						Log.e(LOG_NAME, "Failed to save the key mappings: " + ex.toString());
+					}
+				}
+			}
+		});
+	}
+
+	private void writeFile(String fileName, Profile profile) throws IOException {
+		m_directory.mkdirs();
+
+		//Write to a temporary file and rename, so a crash does not leave a broken profile
+		File tmp = new File(m_directory, fileName + ".tmp");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			profile.write(output);
+		} finally {
+			output.close();
+		}
+
+		if (!tmp.renameTo(new File(m_directory, fileName)))
+			throw new IOException("Failed to replace " + fileName);
+	}
+
+	private void writeIndex() throws IOException {
+		m_directory.mkdirs();
+
+		File tmp = new File(m_directory, INDEX_FILE + ".tmp");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			output.writeInt(INDEX_MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(m_nextFileNo);
+			output.writeInt(m_index.size());
+			for(Map.Entry<String, String> e : m_index.entrySet()) {
+				output.writeUTF(e.getKey());
+				output.writeUTF(e.getValue());
+			}
+		} finally {
+			output.close();
+		}
+
+		if (!tmp.renameTo(new File(m_directory, INDEX_FILE)))
+			throw new IOException("Failed to replace the profile index");
+	}
+}
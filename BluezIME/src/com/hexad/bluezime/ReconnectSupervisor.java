@@ -0,0 +1,224 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.util.Hashtable;
+import java.util.Random;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+//Watches the connected sessions and reconnects a controller when its reader dies
+// without being asked to stop.
+//The attempts are sent to BluezService as ordinary connect requests for the same session,
+// so the session keeps its id, delivery options, event callback and queue slot.
+//The delay between attempts doubles up to a limit, with random jitter so
+// several controllers that dropped together do not retry in lockstep
+public class ReconnectSupervisor implements InputThreadPool.ExitListener {
+
+	private static final boolean D = false;
+	private static final String LOG_NAME = "ReconnectSupervisor";
+
+	//The delay before the first attempt, and the limit for the delay, in ms
+	public static final long BASE_DELAY = 500;
+	public static final long MAX_DELAY = 30000;
+
+	//The number of failed attempts before we give up
+	public static final int MAX_ATTEMPTS = 15;
+
+	private static ReconnectSupervisor m_instance = null;
+
+	//The connection settings for each watched session
+	private final Hashtable<String, Target> m_targets = new Hashtable<String, Target>();
+
+	private final Random m_random = new Random();
+	private final Handler m_handler;
+	private final Context m_context;
+
+	public static synchronized ReconnectSupervisor getInstance(Context context) {
+		if (m_instance == null)
+			m_instance = new ReconnectSupervisor(context.getApplicationContext());
+
+		return m_instance;
+	}
+
+	private ReconnectSupervisor(Context context) {
+		m_context = context;
+
+		HandlerThread thread = new HandlerThread("BluezIME reconnect");
+		thread.start();
+		m_handler = new Handler(thread.getLooper());
+	}
+
+	private class Target implements Runnable {
+		public final String m_sessionId;
+		public String m_address;
+		public String m_driver;
+		public boolean m_startNotification;
+		public boolean m_batched;
+		public int m_coalesce;
+
+		//Set while the session is down and we are trying to get it back
+		public boolean m_reconnecting = false;
+		public int m_attempts = 0;
+		public long m_dropTime = 0;
+
+		public Target(String sessionId) {
+			m_sessionId = sessionId;
+		}
+
+		@Override
+		public void run() {
+			Intent intent;
+			synchronized (ReconnectSupervisor.this) {
+				if (!m_reconnecting || m_targets.get(m_sessionId) != this)
+					return;
+
+				m_attempts++;
+				if (D) Log.d(LOG_NAME, "Reconnecting " + m_sessionId + " to " + m_address + ", attempt " + m_attempts);
+
+				intent = createConnectIntent();
+				intent.putExtra(BluezService.REQUEST_CONNECT_RECONNECT, true);
+			}
+
+			m_context.startService(intent);
+		}
+
+		public Intent createConnectIntent() {
+			Intent intent = new Intent(m_context, BluezService.class);
+			intent.setAction(BluezService.REQUEST_CONNECT);
+			intent.putExtra(BluezService.REQUEST_CONNECT_ADDRESS, m_address);
+			intent.putExtra(BluezService.REQUEST_CONNECT_DRIVER, m_driver);
+			intent.putExtra(BluezService.SESSION_ID, m_sessionId);
+			intent.putExtra(BluezService.REQUEST_CONNECT_CREATE_NOTIFICATION, m_startNotification);
+			intent.putExtra(BluezService.REQUEST_CONNECT_BATCHED, m_batched);
+			intent.putExtra(BluezService.REQUEST_CONNECT_COALESCE_AXES, m_coalesce);
+			return intent;
+		}
+	}
+
+	//Records the settings of a session that has connected, and reports the timing if it was a reconnect
+	public synchronized void onConnected(String sessionId, String address, String driver, boolean startnotification, boolean batched, int coalesce) {
+		Target t = m_targets.get(sessionId);
+		if (t == null) {
+			t = new Target(sessionId);
+			m_targets.put(sessionId, t);
+		}
+
+		if (t.m_reconnecting) {
+			m_handler.removeCallbacks(t);
+
+			long downtime = SystemClock.elapsedRealtime() - t.m_dropTime;
+			Log.i(LOG_NAME, "Reconnected " + sessionId + " after " + downtime + " ms and " + t.m_attempts + " attempts");
+
+			Intent i = new Intent(BluezService.EVENT_RECONNECTED);
+			i.putExtra(BluezService.SESSION_ID, sessionId);
+			i.putExtra(BluezService.EVENT_RECONNECTED_ADDRESS, address);
+			i.putExtra(BluezService.EVENT_RECONNECTED_ATTEMPTS, t.m_attempts);
+			i.putExtra(BluezService.EVENT_RECONNECTED_DOWNTIME, downtime);
+			m_context.sendBroadcast(i);
+		}
+
+		t.m_address = address;
+		t.m_driver = driver;
+		t.m_startNotification = startnotification;
+		t.m_batched = batched;
+		t.m_coalesce = coalesce;
+		t.m_reconnecting = false;
+		t.m_attempts = 0;
+	}
+
+	//Schedules the next attempt if the failed connect was one of ours,
+	// returns false if there will be no more attempts
+	public synchronized boolean onConnectFailed(String sessionId) {
+		Target t = m_targets.get(sessionId);
+		if (t == null || !t.m_reconnecting)
+			return false;
+
+		if (t.m_attempts >= MAX_ATTEMPTS) {
+			Log.w(LOG_NAME, "Giving up reconnecting " + sessionId + " after " + t.m_attempts + " attempts");
+			m_targets.remove(sessionId);
+			return false;
+		}
+
+		schedule(t);
+		return true;
+	}
+
+	//Returns a connect request with the settings the session was last connected with,
+	// or null if the session is not watched
+	public synchronized Intent getConnectIntent(String sessionId) {
+		Target t = m_targets.get(sessionId);
+		return t == null ? null : t.createConnectIntent();
+	}
+
+	//Stops watching the session, used when the client disconnects it
+	public synchronized void cancel(String sessionId) {
+		Target t = m_targets.remove(sessionId);
+		if (t != null)
+			m_handler.removeCallbacks(t);
+	}
+
+	@Override
+	public void onReaderExit(String sessionId, BluezDriverInterface reader, boolean replaced) {
+		SessionRegistry.Session session = SessionRegistry.getInstance().get(sessionId);
+
+		//The device was taken over by a new reader, a session that still has the old one is gone for good.
+		//The reader reported the disconnect when it was stopped
+		if (replaced) {
+			if (session != null && session.getReader() == reader && session.beginStop()) {
+				if (D) Log.d(LOG_NAME, "Session " + sessionId + " was replaced by a new connection to " + reader.getDeviceAddress());
+				SessionRegistry.getInstance().remove(session);
+				cancel(sessionId);
+			}
+			return;
+		}
+
+		//A session that is stopping was disconnected on purpose
+		if (session == null || session.getReader() != reader || session.getState() != SessionRegistry.STATE_CONNECTED)
+			return;
+
+		synchronized (this) {
+			Target t = m_targets.get(sessionId);
+			if (t == null || t.m_reconnecting)
+				return;
+
+			Log.w(LOG_NAME, "Session " + sessionId + " dropped, reconnecting to " + t.m_address);
+
+			t.m_reconnecting = true;
+			t.m_attempts = 0;
+			t.m_dropTime = SystemClock.elapsedRealtime();
+			schedule(t);
+		}
+	}
+
+	private void schedule(Target t) {
+		//Half the delay is fixed and half is random
+		long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(t.m_attempts, 16));
+		delay = delay / 2 + (long)(m_random.nextDouble() * (delay / 2));
+
+		if (D) Log.d(LOG_NAME, "Next attempt for " + t.m_sessionId + " in " + delay + " ms");
+
+		m_handler.removeCallbacks(t);
+		m_handler.postDelayed(t, delay);
+	}
+}
@@ -0,0 +1,228 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.hexad.bluezime.core.InputDecoder;
+import com.hexad.bluezime.core.InputEventSink;
+import com.hexad.bluezime.core.TraceReader;
+import com.hexad.bluezime.core.TraceReplayStream;
+import com.hexad.bluezime.core.WiimoteDecoder;
+
+//Plays back a trace captured by TraceRecorder through the decoder of the
+// driver that recorded it, and delivers the events like a connected device.
+//The address is the name of a trace file in the trace folder,
+// optionally followed by options, e.g. "trace-20120101-120000.bztrace?speed=4&session=1":
+// speed   - 1 is the original timing (default), 2 is twice as fast, "max" does not wait
+// session - the index of the session in the trace to play back, the first one by default
+// driver  - decodes the data with another driver, required for traces made with the dump driver
+public class ReplayReader extends RfcommReader {
+
+	private static final boolean D = false;
+	private static final String LOG_NAME = "ReplayReader";
+	public static final String DRIVER_NAME = "replay";
+	public static final String DISPLAY_NAME = "Trace Replay";
+
+	public static final String OPTION_SPEED = "speed";
+	public static final String OPTION_SESSION = "session";
+	public static final String OPTION_DRIVER = "driver";
+
+	public static final String SPEED_MAX = "max";
+
+	private final TraceReplayStream m_replay;
+	private final String m_replayDriver;
+
+	//The number of events the decoder produced, only used from the reader thread
+	private long m_events = 0;
+
+	private boolean m_disconnected = false;
+
+	public ReplayReader(String address, String sessionId, Context context, boolean startnotification) throws Exception {
+		super(address, getFile(address, context).getName(), sessionId, context, startnotification);
+
+		String speed = getOption(address, OPTION_SPEED);
+		String session = getOption(address, OPTION_SESSION);
+
+		TraceReader trace = new TraceReader(new FileInputStream(getFile(address, context)));
+		try {
+			m_replay = new TraceReplayStream(trace,
+				session == null ? -1 : Integer.parseInt(session),
+				speed == null ? 1 : (speed.equalsIgnoreCase(SPEED_MAX) ? TraceReplayStream.AS_FAST_AS_POSSIBLE : Double.parseDouble(speed)));
+
+			String driver = getOption(address, OPTION_DRIVER);
+			m_replayDriver = driver == null ? m_replay.getSession().driverName : driver;
+
+			m_decoder = createDecoder(m_replayDriver, this);
+			if (m_decoder == null)
+				throw new Exception(String.format(context.getString(R.string.invalid_driver), m_replayDriver));
+		} catch (Exception ex) {
+			trace.close();
+			throw ex;
+		}
+
+		//Stop the read loop at the end of the trace, instead of treating it as an error
+		m_input = new FilterInputStream(m_replay) {
+			@Override
+			public int read(byte[] buffer, int offset, int count) throws IOException {
+				int read = super.read(buffer, offset, count);
+				if (read < 0)
+					m_isRunning = false;
+				return read;
+			}
+		};
+
+		Log.i(LOG_NAME, "Replaying " + m_replayDriver + " session " + m_replay.getSession().index + " of " + m_replay.getSession().address + " from " + m_name);
+
+		connectedBroadcast.putExtra(BluezService.EVENT_CONNECTED_ADDRESS, m_address);
+		m_context.sendBroadcast(connectedBroadcast);
+	}
+
+	//Creates the decoder for a driver with the factory of its reader, or returns null if the driver has no decoder
+	public static InputDecoder createDecoder(String driver, InputEventSink sink) throws Exception {
+		driver = driver.toLowerCase();
+
+		if (driver.equals(ZeemoteReader.DRIVER_NAME))
+			return ZeemoteReader.createDecoder(sink);
+		else if (driver.equals(BGP100Reader.DRIVER_NAME))
+			return BGP100Reader.createDecoder(sink);
+		else if (driver.equals(PhonejoyReader.DRIVER_NAME))
+			return PhonejoyReader.createDecoder(sink);
+		else if (driver.equals(iControlPadReader.DRIVER_NAME))
+			return iControlPadReader.createDecoder(sink);
+		else if (driver.equals(GameStopReader.DRIVER_NAME))
+			return GameStopReader.createDecoder(sink);
+		else if (driver.equals(HIDKeyboard.DRIVER_NAME))
+			return HIDKeyboard.createDecoder(sink);
+		else if (driver.equals(iCadeReader.DRIVER_NAME))
+			return iCadeReader.createDecoder(sink);
+		else if (driver.equals(HIDipega.DRIVER_NAME))
+			return HIDipega.createDecoder(sink);
+		else if (driver.equals(WiimoteReader.DRIVER_NAME)) {
+			//The replies to the setup requests are in the trace, so the requests are discarded
+			WiimoteDecoder decoder = WiimoteReader.createDecoder(sink);
+			decoder.start(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+			});
+			return decoder;
+		}
+
+		return null;
+	}
+
+	//Only files in the trace folder can be replayed, so a request cannot make us read other files
+	private static File getFile(String address, Context context) throws Exception {
+		int index = address.indexOf('?');
+		String name = index < 0 ? address : address.substring(0, index);
+
+		if (name.length() == 0 || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0)
+			throw new Exception("Invalid trace name " + name + ", only files in the trace folder can be replayed");
+
+		File folder = TraceRecorder.getTraceFolder(context);
+		File file = new File(folder, name);
+		if (!folder.getCanonicalFile().equals(file.getCanonicalFile().getParentFile()))
+			throw new Exception("Invalid trace name " + name + ", only files in the trace folder can be replayed");
+
+		return file;
+	}
+
+	private static String getOption(String address, String option) {
+		int index = address.indexOf('?');
+		if (index < 0)
+			return null;
+
+		for(String pair : address.substring(index + 1).split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0 && pair.substring(0, eq).equalsIgnoreCase(option))
+				return pair.substring(eq + 1);
+		}
+
+		return null;
+	}
+
+	@Override
+	public String getDriverName() {
+		return DRIVER_NAME;
+	}
+
+	@Override
+	protected void validateWelcomeMessage(byte[] data, int read) {
+	}
+
+	@Override
+	public void run() {
+		long start = System.nanoTime();
+
+		super.run();
+
+		long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+		Log.i(LOG_NAME, "Replayed " + m_replay.getChunks() + " reads, " + m_replay.getBytes() + " bytes and " + m_events + " events in " + elapsed + " ms, " + (m_events * 1000 / elapsed) + " events/s");
+
+		stop();
+	}
+
+	@Override
+	public void sendKeypress(int action, int key, int modifiers, boolean emulated) {
+		m_events++;
+		super.sendKeypress(action, key, modifiers, emulated);
+	}
+
+	@Override
+	public void sendDirectionalChange(int direction, int value) {
+		m_events++;
+		super.sendDirectionalChange(direction, value);
+	}
+
+	@Override
+	public void sendAccelerometerChange(int axis, int value) {
+		m_events++;
+		super.sendAccelerometerChange(axis, value);
+	}
+
+	@Override
+	public void stop() {
+		boolean notify;
+		synchronized (this) {
+			notify = !m_disconnected;
+			m_disconnected = true;
+		}
+
+		if (notify) {
+			if (D) Log.d(LOG_NAME, "Stopping replay of " + m_name);
+
+			releaseKeys();
+
+			disconnectedBroadcast.putExtra(BluezService.EVENT_DISCONNECTED_ADDRESS, m_address);
+			m_context.sendBroadcast(disconnectedBroadcast);
+		}
+
+		try { m_replay.close(); }
+		catch (IOException ex) { }
+
+		super.stop();
+	}
+}
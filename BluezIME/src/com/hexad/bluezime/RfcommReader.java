@@ -1,301 +1,675 @@
-/* Copyright (C) 2011, Kenneth Skovhede
- * http://www.hexad.dk, opensource@hexad.dk
- * 
- * This library is free software; you can redistribute it and/or
- * modify it under the terms of the GNU Lesser General Public
- * License as published by the Free Software Foundation; either
- * version 2.1 of the License, or (at your option) any later version.
- * 
- * This library is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
- * Lesser General Public License for more details.
- * 
- * You should have received a copy of the GNU Lesser General Public
- * License along with this library; if not, write to the Free Software
- * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
-*/
-package com.hexad.bluezime;
-
-import java.io.InputStream;
-
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothSocket;
-import android.content.Context;
-import android.content.Intent;
-import android.util.Log;
-
-public abstract class RfcommReader implements BluezDriverInterface {
-
-	private static final boolean D = false;
-	private static final String LOG_NAME = "RfcommReader - ";
-	
-	protected volatile boolean m_isRunning = true;
-	protected boolean m_useInsecureChannel = false;
-
-	protected BluetoothSocket m_socket = null;
-	protected InputStream m_input = null;
-	protected Context m_context = null;
-	protected String m_address = null;
-	protected String m_name = null;
-	protected String m_sessionId = null;
-	private Intent m_foregroundServiceIntent = null;
-
-	protected Intent errorBroadcast = new Intent(BluezService.EVENT_ERROR);
-	protected Intent connectedBroadcast = new Intent(BluezService.EVENT_CONNECTED);
-	protected Intent disconnectedBroadcast = new Intent(BluezService.EVENT_DISCONNECTED);
-	protected Intent keypressBroadcast = new Intent(BluezService.EVENT_KEYPRESS);
-	protected Intent directionBroadcast = new Intent(BluezService.EVENT_DIRECTIONALCHANGE);
-	protected Intent accelerometerBroadcast = new Intent(BluezService.EVENT_ACCELEROMETERCHANGE);
-	
-	protected ImprovedBluetoothDevice m_device;
-	
-	//private static final UUID HID_UUID = UUID.fromString("00001124-0000-1000-8000-00805f9b34fb");
-	//private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
-	
-	public RfcommReader(String address, String sessionId, Context context, boolean startnotification) throws Exception {
-		this(address, sessionId, context, true, startnotification);
-	}
-
-	protected RfcommReader(String address, String sessionId, Context context, boolean connect, boolean startnotification) throws Exception {
-		try
-		{	
-			if (startnotification) {
-				m_foregroundServiceIntent = new Intent(context, BluezForegroundService.class);
-				m_foregroundServiceIntent.setAction(BluezForegroundService.ACTION_START);
-	        	context.startService(m_foregroundServiceIntent);
-			}
-			
-			m_context = context;
-			m_address = address;
-			m_sessionId = sessionId;
-			
-			errorBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
-			connectedBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
-			disconnectedBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
-			keypressBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
-			directionBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
-			accelerometerBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
-			
-			BluetoothAdapter blue = BluetoothAdapter.getDefaultAdapter();
-			if (blue == null)
-				throw new Exception(m_context.getString(R.string.bluetooth_unsupported));
-			if (!blue.isEnabled())
-				throw new Exception(m_context.getString(R.string.error_bluetooth_off));
-			
-			try { blue.cancelDiscovery(); }
-			catch (Exception e) { }
-			
-			m_device = new ImprovedBluetoothDevice(blue.getRemoteDevice(address));
-	        m_name = m_device.getName();
-	        
-	        if (connect)
-	        	doConnect();
-		}
-		catch (Exception ex)
-		{
-			try { if (m_socket != null) m_socket.close(); }
-			catch (Exception e) { }
-			
-			m_socket = null;
-	    	Log.d(LOG_NAME + getDriverName(), "Failed to connect to " + address + ", message: " + ex.toString());
-	    	notifyError(ex);
-	    	
-	    	throw ex;
-		}
-	       
-		
-	}
-
-	protected void doConnect() throws Exception {
-		try {
-	        if (D) Log.d(LOG_NAME, "Connecting to " + m_address);
-	
-	        byte[] header = new byte[1024];
-	        int read = -1;
-	        
-			//We need to do this a few times as that fixes some connection issues
-			int retryCount = 5;
-			do
-			{
-				try {
-					read = setupConnection(m_device, header);
-	
-			        retryCount = 0;
-				} catch (Exception ex) {
-					if (retryCount == 0)
-						throw ex;
-					
-					try { if (m_socket != null) m_socket.close(); }
-					catch (Exception e) { }
-					m_socket = null;
-				}
-			} while(retryCount-- > 0);
-	        
-	    	if (D) Log.d(LOG_NAME, "Welcome message from controller was " + getHexString(header, 0, read));
-	
-	    	validateWelcomeMessage(header, read);
-	    	
-			connectedBroadcast.putExtra(BluezService.EVENT_CONNECTED_ADDRESS, m_address);
-			m_context.sendBroadcast(connectedBroadcast);
-		}
-		catch (Exception ex)
-		{
-			try { if (m_socket != null) m_socket.close(); }
-			catch (Exception e) { }
-			
-			m_socket = null;
-	    	Log.d(LOG_NAME + getDriverName(), "Failed to connect to " + m_address + ", message: " + ex.toString());
-	    	notifyError(ex);
-	    	
-	    	throw ex;
-		}
-	}
-	
-	protected int setupConnection(ImprovedBluetoothDevice device, byte[] readBuffer) throws Exception {
-		if (m_input != null) {
-			if (D) Log.d(LOG_NAME, "Closing input stream on retry, " + m_input);
-			try { m_input.close(); }
-			catch (Exception ex) {}
-			finally { m_input = null; }
-		}
-		
-		if (m_socket != null) {
-			if (D) Log.d(LOG_NAME, "Closing socket on retry, " + m_socket);
-			try { m_socket.close(); }
-			catch (Exception ex) {}
-			finally { m_socket = null; }
-		}
-		
-		m_socket = m_useInsecureChannel ? device.createInsecureRfcommSocket(1) : device.createRfcommSocket(1);
-        m_socket.connect();
-
-        if (D) Log.d(LOG_NAME, "Connected to " + m_address);
-    	
-    	m_input = m_socket.getInputStream();
-    	return m_input.read(readBuffer);		
-	}
-	
-	protected abstract void validateWelcomeMessage(byte[] data, int read);
-
-	@Override
-	public String getDeviceAddress() {
-		return m_address;
-	}
-
-	@Override
-	public String getDeviceName() {
-		return m_name;
-	}
-
-	@Override
-	public abstract String getDriverName();
-
-	@Override
-	public boolean isRunning() {
-		return m_isRunning;
-	}
-
-	@Override
-	public void stop() {
-		if (m_socket != null) {
-			disconnectedBroadcast.putExtra(BluezService.EVENT_DISCONNECTED_ADDRESS, getDeviceAddress());
-			m_context.sendBroadcast(disconnectedBroadcast);
-
-			try { m_socket.close(); }
-			catch (Exception ex) { notifyError(ex); }
-		}
-
-		m_isRunning = false;
-		m_socket = null;
-		m_input = null;
-		
-		if (m_foregroundServiceIntent != null && m_context != null) {
-			m_foregroundServiceIntent.setAction(BluezForegroundService.ACTION_STOP);
-			m_context.startService(m_foregroundServiceIntent);
-			m_foregroundServiceIntent = null;
-		}
-	}
-	
-	@Override
-	public void run() {
-        byte[] buffer = new byte[0x80];
-        int read = 0;
-        int errors = 0;
-        
-        int unparsed = 0;
-        
-        while (m_isRunning) {
-        	try {
-    			if (D) Log.e(LOG_NAME + getDriverName(), "Buffer before read(" + unparsed + "): " + getHexString(buffer, 0, buffer.length));
-        		
-        		read = m_input.read(buffer, unparsed, buffer.length - unparsed);
-        		errors = 0;
-
-    			if (D) Log.e(LOG_NAME + getDriverName(), "Buffer after read(" + read + " + " + unparsed + "): " + getHexString(buffer, 0, buffer.length));
-
-    			read += unparsed;
-        		unparsed = parseInputData(buffer, read);
-        		if (unparsed < 0)
-        			unparsed = 0;
-        		
-        		if (unparsed >= buffer.length - 10) {
-        			if (D) Log.e(LOG_NAME + getDriverName(), "Dumping unparsed data: " + getHexString(buffer, 0, unparsed));
-        			
-        			unparsed = 0;
-        		}
-        		
-        		//Copy the remaining data back to the beginning of the buffer 
-        		// to emulate a sliding window buffer
-        		if (unparsed > 0 && read != unparsed) {
-        			if (D) Log.e(LOG_NAME + getDriverName(), "Sliding array before: " + getHexString(buffer, 0, buffer.length));
-        			
-        			if (D) Log.e(LOG_NAME + getDriverName(), "Sliding array params, read: " + read + ", unparsed: " + unparsed);
-        			
-        			System.arraycopy(buffer, read - unparsed, buffer, 0, unparsed);
-        			
-        			if (D) Log.e(LOG_NAME + getDriverName(), "Sliding array after: " + getHexString(buffer, 0, buffer.length));
-        		}
-        		
-        	} catch (Exception ex) {
-        		if (D) Log.e(LOG_NAME + getDriverName(), "Got error: " + ex.toString());
-        		
-        		errors++;
-        		if (errors > 10) {
-    				//Give up
-        			notifyError(ex);
-        			m_isRunning = false;
-        		} else if (errors > 1) {
-        			//Retry after a little while
-        			try { Thread.sleep(100 * errors); }
-        			catch (Exception e) {}
-        		}
-        	}
-        }
-		
-	}
-
-	protected abstract int parseInputData(byte[] data, int read);
-	
-	protected void notifyError(Exception ex) {
-		Log.e(LOG_NAME + getDriverName(), ex.toString());
-
-		errorBroadcast.putExtra(BluezService.EVENT_ERROR_SHORT, ex.getMessage());
-		errorBroadcast.putExtra(BluezService.EVENT_ERROR_FULL, ex.toString());
-		m_context.sendBroadcast(errorBroadcast);
-		
-		stop();
-	}
-
-	public static String getHexString(byte[] buffer, int offset, int count) {
-        StringBuilder buf = new StringBuilder();
-        for (int i = offset; i < count; i++) {
-            if ((buffer[i] & 0xff) < 0x10) 
-                buf.append("0");
-            buf.append(Integer.toHexString((buffer[i] & 0xff))).append(" ");
-        }
-        
-        return buf.toString();
-	}
-	
-}
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.Intent;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.hexad.bluezime.core.FutureKeyCodes;
+import com.hexad.bluezime.core.InputDecoder;
+import com.hexad.bluezime.core.InputEventSink;
+import com.hexad.bluezime.core.InputRingBuffer;
+import com.hexad.bluezime.core.TraceFormat;
+import com.hexad.bluezime.core.TraceWriter;
+
+public abstract class RfcommReader implements BluezDriverInterface, InputEventSink {
+
+	private static final boolean D = false;
+	private static final String LOG_NAME = "RfcommReader - ";
+	
+	//Errors are not broadcast while a connect on the thread is only an attempt, see setProbing
+	private static final ThreadLocal<Boolean> m_probing = new ThreadLocal<Boolean>();
+	
+	protected volatile boolean m_isRunning = true;
+	protected boolean m_useInsecureChannel = false;
+
+	protected BluetoothSocket m_socket = null;
+	protected InputStream m_input = null;
+	protected Context m_context = null;
+	protected String m_address = null;
+	protected String m_name = null;
+	protected String m_sessionId = null;
+	private Intent m_foregroundServiceIntent = null;
+	
+	//The slot used for delivering events through the in-process queue, -1 means broadcast
+	protected int m_eventSlot = -1;
+
+	protected Intent errorBroadcast = new Intent(BluezService.EVENT_ERROR);
+	protected Intent connectedBroadcast = new Intent(BluezService.EVENT_CONNECTED);
+	protected Intent disconnectedBroadcast = new Intent(BluezService.EVENT_DISCONNECTED);
+	protected Intent keypressBroadcast = new Intent(BluezService.EVENT_KEYPRESS);
+	protected Intent directionBroadcast = new Intent(BluezService.EVENT_DIRECTIONALCHANGE);
+	protected Intent accelerometerBroadcast = new Intent(BluezService.EVENT_ACCELEROMETERCHANGE);
+	protected Intent batchBroadcast = new Intent(BluezService.EVENT_BATCH);
+	
+	//If set, events are collected and sent as a single broadcast after each read
+	private volatile boolean m_batchEvents = false;
+	private int[] m_batchData = new int[32 * BluezService.EVENT_BATCH_FIELDS];
+	private int m_batchCount = 0;
+	
+	//If set, events are delivered through the callback of a bound client
+	private volatile IBluezEventCallback m_eventCallback = null;
+	
+	//If set, analog values are coalesced before they are sent
+	private volatile AxisCoalescer m_axisCoalescer = null;
+	
+	//The keys that are down, as (key, modifiers, emulated) triples, so they can be released
+	// when the reader stops. A reconnected reader starts with all keys up
+	private static final int HELD_FIELDS = 3;
+	private int[] m_heldKeys = new int[8 * HELD_FIELDS];
+	private int m_heldCount = 0;
+	private boolean m_keysReleased = false;
+	
+	//System.nanoTime() of the last socket read, every event is stamped with this
+	protected volatile long m_readTimestamp = 0;
+	
+	//The initial size of the input buffer, it grows up to the maximum if the driver lags behind
+	public static final int DEFAULT_INPUT_BUFFER_SIZE = 0x100;
+	private static final int MAX_INPUT_BUFFER_SIZE = 0x4000;
+	protected int m_inputBufferSize = DEFAULT_INPUT_BUFFER_SIZE;
+	
+	protected ImprovedBluetoothDevice m_device;
+	
+	//The protocol decoder, events are reported back through the InputEventSink methods
+	protected InputDecoder m_decoder = null;
+	
+	//The raw data capture for this connection, null if capture is disabled
+	protected volatile TraceWriter.Session m_trace = null;
+	
+	//private static final UUID HID_UUID = UUID.fromString("00001124-0000-1000-8000-00805f9b34fb");
+	//private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805f9b34fb");
+	
+	public RfcommReader(String address, String sessionId, Context context, boolean startnotification) throws Exception {
+		this(address, sessionId, context, true, startnotification);
+	}
+
+	protected RfcommReader(String address, String sessionId, Context context, boolean connect, boolean startnotification) throws Exception {
+		try
+		{	
+			initSession(address, sessionId, context, startnotification);
+			
+			BluetoothAdapter blue = BluetoothAdapter.getDefaultAdapter();
+			if (blue == null)
+				throw new Exception(m_context.getString(R.string.bluetooth_unsupported));
+			if (!blue.isEnabled())
+				throw new Exception(m_context.getString(R.string.error_bluetooth_off));
+			
+			try { blue.cancelDiscovery(); }
+			catch (Exception e) { }
+			
+			m_device = new ImprovedBluetoothDevice(blue.getRemoteDevice(address));
+	        m_name = m_device.getName();
+	        
+	        if (connect)
+	        	doConnect();
+		}
+		catch (Exception ex)
+		{
+			try { if (m_socket != null) m_socket.close(); }
+			catch (Exception e) { }
+			
+			m_socket = null;
+	    	Log.d(LOG_NAME + getDriverName(), "Failed to connect to " + address + ", message: " + ex.toString());
+	    	notifyError(ex);
+	    	
+	    	throw ex;
+		}
+	       
+		
+	}
+
+	//For readers that do not get their data from a Bluetooth device, such as ReplayReader.
+	//The reader must set m_input before it is started
+	protected RfcommReader(String address, String name, String sessionId, Context context, boolean startnotification) {
+		initSession(address, sessionId, context, startnotification);
+		m_name = name;
+	}
+	
+	private void initSession(String address, String sessionId, Context context, boolean startnotification) {
+		if (startnotification) {
+			m_foregroundServiceIntent = new Intent(context, BluezForegroundService.class);
+			m_foregroundServiceIntent.setAction(BluezForegroundService.ACTION_START);
+        	context.startService(m_foregroundServiceIntent);
+		}
+		
+		m_context = context;
+		m_address = address;
+		m_sessionId = sessionId;
+		
+		errorBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
+		connectedBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
+		disconnectedBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
+		keypressBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
+		directionBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
+		accelerometerBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
+		batchBroadcast.putExtra(BluezService.SESSION_ID, m_sessionId);
+		
+		m_eventSlot = InputEventQueue.getInstance().getSessionSlot(m_sessionId);
+	}
+
+	protected void doConnect() throws Exception {
+		try {
+	        if (D) Log.d(LOG_NAME, "Connecting to " + m_address);
+	        
+	        if (m_trace == null)
+	        	m_trace = TraceRecorder.getInstance().openSession(m_context, m_sessionId, getDriverName(), m_address, alwaysCapture());
+	
+	        byte[] header = new byte[1024];
+	        int read = -1;
+	        
+			//We need to do this a few times as that fixes some connection issues
+			int retryCount = 5;
+			do
+			{
+				try {
+					read = setupConnection(m_device, header);
+	
+			        retryCount = 0;
+				} catch (Exception ex) {
+					if (retryCount == 0)
+						throw ex;
+					
+					try { if (m_socket != null) m_socket.close(); }
+					catch (Exception e) { }
+					m_socket = null;
+				}
+			} while(retryCount-- > 0);
+	        
+	    	if (D) Log.d(LOG_NAME, "Welcome message from controller was " + getHexString(header, 0, read));
+	    	
+	    	TraceWriter.Session trace = m_trace;
+	    	if (trace != null && read > 0)
+	    		trace.record(TraceFormat.TYPE_WELCOME, System.nanoTime(), header, 0, read);
+	
+	    	//Recorded before it is validated, so a message the driver rejects can still point the detection to the right driver
+	    	DriverDetector.setWelcomeMessage(m_address, header, read);
+	    	validateWelcomeMessage(header, read);
+	    	
+			connectedBroadcast.putExtra(BluezService.EVENT_CONNECTED_ADDRESS, m_address);
+			m_context.sendBroadcast(connectedBroadcast);
+		}
+		catch (Exception ex)
+		{
+			try { if (m_socket != null) m_socket.close(); }
+			catch (Exception e) { }
+			
+			m_socket = null;
+	    	Log.d(LOG_NAME + getDriverName(), "Failed to connect to " + m_address + ", message: " + ex.toString());
+	    	
+	    	//Start from scratch next time
+	    	ConnectionCache.getInstance().invalidate(m_address, getDriverName());
+	    	closeTrace();
+	    	notifyError(ex);
+	    	
+	    	throw ex;
+		}
+	}
+	
+	protected int setupConnection(ImprovedBluetoothDevice device, byte[] readBuffer) throws Exception {
+		if (m_input != null) {
+			if (D) Log.d(LOG_NAME, "Closing input stream on retry, " + m_input);
+			try { m_input.close(); }
+			catch (Exception ex) {}
+			finally { m_input = null; }
+		}
+		
+		if (m_socket != null) {
+			if (D) Log.d(LOG_NAME, "Closing socket on retry, " + m_socket);
+			try { m_socket.close(); }
+			catch (Exception ex) {}
+			finally { m_socket = null; }
+		}
+		
+		m_socket = m_useInsecureChannel ? device.createInsecureRfcommSocket(1) : device.createRfcommSocket(1);
+        m_socket.connect();
+
+        if (D) Log.d(LOG_NAME, "Connected to " + m_address);
+    	
+    	m_input = m_socket.getInputStream();
+    	int read = m_input.read(readBuffer);
+    	
+    	ConnectionCache.getInstance().put(m_address, getDriverName(), ConnectionCache.METHOD_RFCOMM, 1, !m_useInsecureChannel);
+    	return read;
+	}
+	
+	//Connects through an SDP lookup of the service, for devices where the fixed channel does not work
+	protected int setupServiceRecordConnection(ImprovedBluetoothDevice device, UUID service, byte[] readBuffer) throws Exception {
+		if (m_socket != null) {
+			try { m_socket.close(); }
+			catch (Exception ex) {}
+			finally { m_socket = null; }
+		}
+		
+        m_socket = device.createRfcommSocketToServiceRecord(service);
+        m_socket.connect();
+
+        if (D) Log.d(LOG_NAME, "Connected with createRfcommSocketToServiceRecord() to " + m_address);
+    	
+    	m_input = m_socket.getInputStream();
+    	int read = m_input.read(readBuffer);
+    	
+    	ConnectionCache.getInstance().put(m_address, getDriverName(), ConnectionCache.METHOD_SERVICE_RECORD, -1, true);
+    	return read;
+	}
+	
+	//Returns true if the device connected through the service record the last time
+	protected boolean preferServiceRecordConnection() {
+		ConnectionCache.Entry cached = ConnectionCache.getInstance().get(m_address, getDriverName());
+		return cached != null && cached.method == ConnectionCache.METHOD_SERVICE_RECORD;
+	}
+	
+	protected abstract void validateWelcomeMessage(byte[] data, int read);
+	
+	//Returns true if the raw data is captured even if capture is disabled in the preferences
+	protected boolean alwaysCapture() {
+		return false;
+	}
+	
+	//Returns a stream that records the data written to the device if capture is enabled,
+	// drivers should use this for every stream they write commands to
+	protected OutputStream traceOutput(OutputStream output) {
+		TraceWriter.Session trace = m_trace;
+		return trace == null ? output : trace.wrap(output);
+	}
+	
+	private synchronized void closeTrace() {
+		TraceWriter.Session trace = m_trace;
+		m_trace = null;
+		if (trace != null)
+			TraceRecorder.getInstance().closeSession(trace);
+	}
+
+	@Override
+	public String getDeviceAddress() {
+		return m_address;
+	}
+
+	@Override
+	public String getDeviceName() {
+		return m_name;
+	}
+
+	@Override
+	public abstract String getDriverName();
+
+	@Override
+	public boolean isRunning() {
+		return m_isRunning;
+	}
+	
+	public void setBatchedEvents(boolean value) {
+		m_batchEvents = value;
+	}
+	
+	public boolean getBatchedEvents() {
+		return m_batchEvents;
+	}
+	
+	public void setEventCallback(IBluezEventCallback callback) {
+		m_eventCallback = callback;
+	}
+	
+	//Sets the coalescing window for analog values, see AxisCoalescer
+	public void setAxisCoalescing(int window) {
+		AxisCoalescer previous = m_axisCoalescer;
+		if (previous != null && previous.getWindow() == window)
+			return;
+		
+		m_axisCoalescer = window == AxisCoalescer.DISABLED ? null : new AxisCoalescer(this, window);
+		
+		//Make sure we do not lose any pending values
+		if (previous != null)
+			previous.flush();
+	}
+
+	@Override
+	public void stop() {
+		//Values that are still held back belong to a connection that is gone
+		AxisCoalescer coalescer = m_axisCoalescer;
+		if (coalescer != null)
+			coalescer.cancel();
+		
+		//The client must see the keys go up before the controller is reported as gone
+		releaseKeys();
+		
+		if (m_socket != null) {
+			disconnectedBroadcast.putExtra(BluezService.EVENT_DISCONNECTED_ADDRESS, getDeviceAddress());
+			m_context.sendBroadcast(disconnectedBroadcast);
+
+			try { m_socket.close(); }
+			catch (Exception ex) { notifyError(ex); }
+		}
+
+		m_isRunning = false;
+		m_socket = null;
+		m_input = null;
+		
+		closeTrace();
+		
+		if (m_foregroundServiceIntent != null && m_context != null) {
+			m_foregroundServiceIntent.setAction(BluezForegroundService.ACTION_STOP);
+			m_context.startService(m_foregroundServiceIntent);
+			m_foregroundServiceIntent = null;
+		}
+	}
+	
+	@Override
+	public void run() {
+        InputRingBuffer buffer = new InputRingBuffer(m_inputBufferSize, MAX_INPUT_BUFFER_SIZE);
+        int read = 0;
+        int errors = 0;
+        
+        int unparsed = 0;
+        
+        while (m_isRunning) {
+        	try {
+        		//If the driver cannot parse a full buffer, make room rather than dropping data
+        		if (buffer.isFull() && !buffer.grow()) {
+        			if (D) Log.e(LOG_NAME + getDriverName(), "Dumping unparsed data: " + buffer.getHexString(0, buffer.size()));
+        			
+        			buffer.clear();
+        		}
+        		
+        		read = buffer.read(m_input);
+        		if (read < 0)
+        			throw new IOException("End of stream");
+        		m_readTimestamp = System.nanoTime();
+        		errors = 0;
+        		
+        		//The new data is always at the end of the buffer, and read() does not wrap
+        		TraceWriter.Session trace = m_trace;
+        		if (trace != null && read > 0)
+        			trace.record(TraceFormat.TYPE_IN, m_readTimestamp, buffer.array(), buffer.arrayOffset(buffer.size() - read), read);
+
+    			if (D) Log.e(LOG_NAME + getDriverName(), "Buffer after read(" + read + " + " + unparsed + "): " + buffer.getHexString(0, buffer.size()));
+
+        		unparsed = parseInputData(buffer);
+        		completeRead();
+        		if (unparsed < 0)
+        			unparsed = 0;
+        		
+        		//Keep the remaining data for the next read
+        		buffer.consume(buffer.size() - unparsed);
+        		
+        	} catch (Exception ex) {
+        		if (D) Log.e(LOG_NAME + getDriverName(), "Got error: " + ex.toString());
+        		
+        		errors++;
+        		if (errors > 10) {
+    				//Give up
+        			notifyError(ex);
+        			m_isRunning = false;
+        		} else if (errors > 1) {
+        			//Retry after a little while
+        			try { Thread.sleep(100 * errors); }
+        			catch (Exception e) {}
+        		}
+        	}
+        }
+		
+	}
+
+	//Sets the initial size of the input buffer, must be called before the reader is started
+	public void setInputBufferSize(int size) {
+		m_inputBufferSize = size;
+	}
+	
+	//Parses the unconsumed data in the buffer, and returns the number of
+	// bytes at the end of the buffer that could not be parsed yet
+	protected int parseInputData(InputRingBuffer data) {
+		return m_decoder.parseInputData(data);
+	}
+	
+	//Reports a key state change, key presses emulated from an axis may be held back with the axis values
+	@Override
+	public void sendKeypress(int action, int key, int modifiers, boolean emulated) {
+		AxisCoalescer coalescer = m_axisCoalescer;
+		if (emulated && coalescer != null && coalescer.addEmulatedKeypress(action, key, modifiers))
+			return;
+		
+		emitKeypress(action, key, modifiers, emulated);
+	}
+	
+	//Delivers a key state change, using the in-process queue if possible.
+	//The emit methods are called from the reader thread, the coalescer timer and the service,
+	// so they are synchronized with the batch methods to keep the shared intents consistent
+	synchronized void emitKeypress(int action, int key, int modifiers, boolean emulated) {
+		//Nothing is sent after the keys have been released, or the client could see a key go down again
+		if (m_keysReleased)
+			return;
+		trackKey(action, key, modifiers, emulated);
+		
+		if (m_eventSlot >= 0 && InputEventQueue.getInstance().post(m_eventSlot, InputEventQueue.EVENT_KEYPRESS, key, action, modifiers, emulated ? 1 : 0, SystemClock.uptimeMillis(), m_readTimestamp))
+			return;
+		IBluezEventCallback callback = m_eventCallback;
+		if (callback != null) {
+			try {
+				callback.onKeypress(key, action, modifiers, emulated);
+				return;
+			} catch (RemoteException ex) {
+				//The client is gone, revert to broadcasts
+				m_eventCallback = null;
+			}
+		}
+		if (m_batchEvents) {
+			addToBatch(BluezService.EVENT_BATCH_TYPE_KEYPRESS, key, action, modifiers, emulated ? 1 : 0);
+			return;
+		}
+		
+		keypressBroadcast.putExtra(BluezService.EVENT_KEYPRESS_ACTION, action);
+		keypressBroadcast.putExtra(BluezService.EVENT_KEYPRESS_KEY, key);
+		keypressBroadcast.putExtra(BluezService.EVENT_KEYPRESS_MODIFIERS, modifiers);
+		keypressBroadcast.putExtra(BluezService.EVENT_KEYPRESS_ANALOG_EMULATED, emulated);
+		keypressBroadcast.putExtra(BluezService.EVENT_READTIME, m_readTimestamp);
+		
+		//The queue holds back the later events of the slot until this one has arrived
+		if (m_eventSlot >= 0)
+			InputEventQueue.getInstance().addPendingBroadcast(m_eventSlot);
+		m_context.sendBroadcast(keypressBroadcast);
+	}
+
+	private void trackKey(int action, int key, int modifiers, boolean emulated) {
+		int ix = 0;
+		while (ix < m_heldCount && m_heldKeys[ix * HELD_FIELDS] != key)
+			ix++;
+		
+		if (action == FutureKeyCodes.ACTION_UP) {
+			//Move the last key into the free place
+			if (ix < m_heldCount) {
+				m_heldCount--;
+				System.arraycopy(m_heldKeys, m_heldCount * HELD_FIELDS, m_heldKeys, ix * HELD_FIELDS, HELD_FIELDS);
+			}
+		} else if (action == FutureKeyCodes.ACTION_DOWN && ix == m_heldCount) {
+			if ((m_heldCount + 1) * HELD_FIELDS > m_heldKeys.length) {
+				int[] tmp = new int[m_heldKeys.length * 2];
+				System.arraycopy(m_heldKeys, 0, tmp, 0, m_heldCount * HELD_FIELDS);
+				m_heldKeys = tmp;
+			}
+			
+			m_heldKeys[ix * HELD_FIELDS] = key;
+			m_heldKeys[ix * HELD_FIELDS + 1] = modifiers;
+			m_heldKeys[ix * HELD_FIELDS + 2] = emulated ? 1 : 0;
+			m_heldCount++;
+		}
+	}
+	
+	//Sends a release for every key that is still down, a controller that drops cannot do it
+	protected synchronized void releaseKeys() {
+		if (m_keysReleased)
+			return;
+		
+		while (m_heldCount > 0) {
+			int offset = (m_heldCount - 1) * HELD_FIELDS;
+			if (D) Log.d(LOG_NAME, "Releasing key " + m_heldKeys[offset] + " for " + m_address);
+			emitKeypress(FutureKeyCodes.ACTION_UP, m_heldKeys[offset], m_heldKeys[offset + 1], m_heldKeys[offset + 2] != 0);
+		}
+		
+		m_keysReleased = true;
+		flushBatch();
+	}
+
+	//Reports an analog axis change, the value may be coalesced with later values
+	@Override
+	public void sendDirectionalChange(int direction, int value) {
+		AxisCoalescer coalescer = m_axisCoalescer;
+		if (coalescer != null && coalescer.setDirection(direction, value))
+			return;
+		
+		emitDirectionalChange(direction, value);
+	}
+	
+	//Delivers an analog axis change, the in-process queue only carries key presses
+	synchronized void emitDirectionalChange(int direction, int value) {
+		IBluezEventCallback callback = m_eventCallback;
+		if (callback != null) {
+			try {
+				callback.onDirectionalChange(direction, value);
+				return;
+			} catch (RemoteException ex) {
+				m_eventCallback = null;
+			}
+		}
+		if (m_batchEvents) {
+			addToBatch(BluezService.EVENT_BATCH_TYPE_DIRECTIONALCHANGE, direction, 0, 0, value);
+			return;
+		}
+
+		directionBroadcast.putExtra(BluezService.EVENT_DIRECTIONALCHANGE_DIRECTION, direction);
+		directionBroadcast.putExtra(BluezService.EVENT_DIRECTIONALCHANGE_VALUE, value);
+		directionBroadcast.putExtra(BluezService.EVENT_READTIME, m_readTimestamp);
+		m_context.sendBroadcast(directionBroadcast);
+	}
+
+	//Reports an accelerometer axis change, the value may be coalesced with later values
+	@Override
+	public void sendAccelerometerChange(int axis, int value) {
+		AxisCoalescer coalescer = m_axisCoalescer;
+		if (coalescer != null && coalescer.setAccelerometer(axis, value))
+			return;
+		
+		emitAccelerometerChange(axis, value);
+	}
+
+	//Delivers an accelerometer axis change, the in-process queue only carries key presses
+	synchronized void emitAccelerometerChange(int axis, int value) {
+		IBluezEventCallback callback = m_eventCallback;
+		if (callback != null) {
+			try {
+				callback.onAccelerometerChange(axis, value);
+				return;
+			} catch (RemoteException ex) {
+				m_eventCallback = null;
+			}
+		}
+		if (m_batchEvents) {
+			addToBatch(BluezService.EVENT_BATCH_TYPE_ACCELEROMETERCHANGE, axis, 0, 0, value);
+			return;
+		}
+
+		accelerometerBroadcast.putExtra(BluezService.EVENT_ACCELEROMETERCHANGE_AXIS, axis);
+		accelerometerBroadcast.putExtra(BluezService.EVENT_ACCELEROMETERCHANGE_VALUE, value);
+		accelerometerBroadcast.putExtra(BluezService.EVENT_READTIME, m_readTimestamp);
+		m_context.sendBroadcast(accelerometerBroadcast);
+	}
+	
+	private synchronized void addToBatch(int type, int key, int action, int modifiers, int value) {
+		int offset = m_batchCount * BluezService.EVENT_BATCH_FIELDS;
+		
+		//Grow the buffer if we get more events than expected
+		if (offset + BluezService.EVENT_BATCH_FIELDS > m_batchData.length) {
+			int[] tmp = new int[m_batchData.length * 2];
+			System.arraycopy(m_batchData, 0, tmp, 0, offset);
+			m_batchData = tmp;
+		}
+		
+		m_batchData[offset + BluezService.EVENT_BATCH_FIELD_TYPE] = type;
+		m_batchData[offset + BluezService.EVENT_BATCH_FIELD_KEY] = key;
+		m_batchData[offset + BluezService.EVENT_BATCH_FIELD_ACTION] = action;
+		m_batchData[offset + BluezService.EVENT_BATCH_FIELD_MODIFIERS] = modifiers;
+		m_batchData[offset + BluezService.EVENT_BATCH_FIELD_VALUE] = value;
+		m_batchCount++;
+	}
+	
+	//Delivers the events that are held back until all events from a read are known
+	protected void completeRead() {
+		AxisCoalescer coalescer = m_axisCoalescer;
+		if (coalescer != null)
+			coalescer.onReadComplete();
+		flushBatch();
+	}
+	
+	//Sends all events collected since the last flush as a single broadcast
+	protected synchronized void flushBatch() {
+		if (m_batchCount == 0)
+			return;
+		
+		int[] data = new int[m_batchCount * BluezService.EVENT_BATCH_FIELDS];
+		System.arraycopy(m_batchData, 0, data, 0, data.length);
+		m_batchCount = 0;
+		
+		batchBroadcast.putExtra(BluezService.EVENT_BATCH_DATA, data);
+		batchBroadcast.putExtra(BluezService.EVENT_READTIME, m_readTimestamp);
+		m_context.sendBroadcast(batchBroadcast);
+	}
+	
+	//Reports data from the controller that the decoder could not handle
+	@Override
+	public void onDecodeWarning(String message) {
+		Log.w(LOG_NAME + getDriverName(), message);
+	}
+	
+	//Set while the automatic driver tries the candidates on this thread, or a reconnect is attempted,
+	// the caller reports the error if the attempts fail
+	public static void setProbing(boolean probing) {
+		m_probing.set(probing ? Boolean.TRUE : null);
+	}
+	
+	public static boolean isProbing() {
+		return m_probing.get() != null;
+	}
+	
+	protected void notifyError(Exception ex) {
+		Log.e(LOG_NAME + getDriverName(), ex.toString());
+
+		if (isProbing()) {
+			stop();
+			return;
+		}
+		
+		errorBroadcast.putExtra(BluezService.EVENT_ERROR_SHORT, ex.getMessage());
+		errorBroadcast.putExtra(BluezService.EVENT_ERROR_FULL, ex.toString());
+		m_context.sendBroadcast(errorBroadcast);
+		
+		stop();
+	}
+
+	public static String getHexString(byte[] buffer, int offset, int count) {
+		return InputRingBuffer.getHexString(buffer, offset, count);
+	}
+	
+}
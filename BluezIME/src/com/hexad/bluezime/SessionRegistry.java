@@ -0,0 +1,119 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//The driver sessions of the service, which can be read without locking.
+//A session moves from connecting to connected to stopping, and each move is
+// a single atomic step, so status queries never wait for a connect in progress.
+//Connecting and stopping a session is serialized by the session lock in ConnectionExecutor
+public class SessionRegistry {
+
+	public static final int STATE_CONNECTING = 0;
+	public static final int STATE_CONNECTED = 1;
+	public static final int STATE_STOPPING = 2;
+
+	private static final String[] STATE_NAMES = { "connecting", "connected", "stopping" };
+
+	private static final SessionRegistry m_instance = new SessionRegistry();
+
+	private final ConcurrentHashMap<String, Session> m_sessions = new ConcurrentHashMap<String, Session>();
+
+	public static SessionRegistry getInstance() {
+		return m_instance;
+	}
+
+	private SessionRegistry() {
+	}
+
+	public static class Session {
+		private final String m_sessionId;
+		private final AtomicInteger m_state = new AtomicInteger(STATE_CONNECTING);
+		private volatile BluezDriverInterface m_reader;
+
+		private Session(String sessionId) {
+			m_sessionId = sessionId;
+		}
+
+		public String getSessionId() {
+			return m_sessionId;
+		}
+
+		public int getState() {
+			return m_state.get();
+		}
+
+		//The reader for the session, or null while it is connecting
+		public BluezDriverInterface getReader() {
+			return m_reader;
+		}
+
+		//Publishes the reader, returns false if the session was stopped while connecting
+		public boolean setConnected(BluezDriverInterface reader) {
+			m_reader = reader;
+			return m_state.compareAndSet(STATE_CONNECTING, STATE_CONNECTED);
+		}
+
+		//Marks the session as stopping, returns false if it already was
+		public boolean beginStop() {
+			while (true) {
+				int state = m_state.get();
+				if (state == STATE_STOPPING)
+					return false;
+				if (m_state.compareAndSet(state, STATE_STOPPING))
+					return true;
+			}
+		}
+	}
+
+	//Returns the session, or null if there is none
+	public Session get(String sessionId) {
+		return sessionId == null ? null : m_sessions.get(sessionId);
+	}
+
+	//Returns the reader if the session is connected, otherwise null
+	public BluezDriverInterface getReader(String sessionId) {
+		Session s = get(sessionId);
+		if (s == null || s.getState() != STATE_CONNECTED)
+			return null;
+
+		return s.getReader();
+	}
+
+	//Registers a new session in the connecting state, replacing any previous session with the id
+	public Session beginConnect(String sessionId) {
+		Session s = new Session(sessionId);
+		m_sessions.put(sessionId, s);
+		return s;
+	}
+
+	//Removes the session, unless it has already been replaced
+	public boolean remove(Session session) {
+		return m_sessions.remove(session.getSessionId(), session);
+	}
+
+	public int getCount() {
+		return m_sessions.size();
+	}
+
+	public static String getStateName(int state) {
+		return state >= 0 && state < STATE_NAMES.length ? STATE_NAMES[state] : null;
+	}
+}
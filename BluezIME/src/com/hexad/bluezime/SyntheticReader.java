@@ -0,0 +1,183 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.hexad.bluezime.core.FutureKeyCodes;
+
+//A simulated controller that produces events at fixed rates, used by LoadGenerator.
+//The events are delivered exactly like the events from a decoder, through the
+// in-process queue, the event callback or broadcasts, including batching and coalescing.
+//The address holds the rates, e.g. "id=0&keys=10&axes=200&accel=300&interval=10":
+// id       - the number of the controller, only used to give each controller its own address,
+//            the readers of two sessions with the same address would replace each other
+// keys     - key presses and releases per second
+// axes     - analog stick changes per second
+// accel    - accelerometer changes per second
+// interval - ms between two simulated reads, the events due are sent together
+public class SyntheticReader extends RfcommReader {
+
+	private static final boolean D = false;
+	private static final String LOG_NAME = "SyntheticReader";
+	public static final String DRIVER_NAME = "synthetic";
+	public static final String DISPLAY_NAME = "Synthetic Controller";
+
+	public static final String OPTION_ID = "id";
+	public static final String OPTION_KEYS = "keys";
+	public static final String OPTION_AXES = "axes";
+	public static final String OPTION_ACCELEROMETER = "accel";
+	public static final String OPTION_INTERVAL = "interval";
+
+	public static final int DEFAULT_INTERVAL = 10;
+
+	//The keys that are pressed and released in turn
+	private static final int[] KEYS = new int[] {
+		FutureKeyCodes.KEYCODE_BUTTON_A,
+		FutureKeyCodes.KEYCODE_BUTTON_B,
+		FutureKeyCodes.KEYCODE_BUTTON_X,
+		FutureKeyCodes.KEYCODE_BUTTON_Y
+	};
+
+	private static final int AXIS_COUNT = 4;
+	private static final int ACCELEROMETER_AXIS_COUNT = 3;
+
+	private final int m_keyRate;
+	private final int m_axisRate;
+	private final int m_accelerometerRate;
+	private final int m_interval;
+
+	//The number of events sent so far, and the time the first one was due
+	private volatile long m_events = 0;
+	private volatile long m_startTime = 0;
+
+	public SyntheticReader(String address, String sessionId, Context context, boolean startnotification) throws Exception {
+		super(address, DISPLAY_NAME, sessionId, context, startnotification);
+
+		m_keyRate = getOption(address, OPTION_KEYS, 0);
+		m_axisRate = getOption(address, OPTION_AXES, 0);
+		m_accelerometerRate = getOption(address, OPTION_ACCELEROMETER, 0);
+		m_interval = Math.max(1, getOption(address, OPTION_INTERVAL, DEFAULT_INTERVAL));
+
+		if (m_keyRate < 0 || m_axisRate < 0 || m_accelerometerRate < 0)
+			throw new Exception("Invalid event rates: " + address);
+
+		connectedBroadcast.putExtra(BluezService.EVENT_CONNECTED_ADDRESS, m_address);
+		m_context.sendBroadcast(connectedBroadcast);
+	}
+
+	//Builds the address for a synthetic controller with the given number and rates
+	public static String getAddress(int id, int keys, int axes, int accelerometer, int interval) {
+		return OPTION_ID + "=" + id + "&" + OPTION_KEYS + "=" + keys + "&" + OPTION_AXES + "=" + axes + "&" + OPTION_ACCELEROMETER + "=" + accelerometer + "&" + OPTION_INTERVAL + "=" + interval;
+	}
+
+	private static int getOption(String address, String option, int defaultValue) throws Exception {
+		for(String pair : address.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0 && pair.substring(0, eq).trim().equalsIgnoreCase(option)) {
+				try {
+					return Integer.parseInt(pair.substring(eq + 1).trim());
+				} catch (NumberFormatException ex) {
+					throw new Exception("Invalid value for " + option + ": " + pair);
+				}
+			}
+		}
+
+		return defaultValue;
+	}
+
+	@Override
+	public String getDriverName() {
+		return DRIVER_NAME;
+	}
+
+	@Override
+	protected void validateWelcomeMessage(byte[] data, int read) {
+	}
+
+	//The number of events sent since the reader was started
+	public long getEventCount() {
+		return m_events;
+	}
+
+	//The number of events sent per second since the reader was started
+	public long getEventRate() {
+		long start = m_startTime;
+		if (start == 0)
+			return 0;
+
+		long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+		return m_events * 1000 / elapsed;
+	}
+
+	@Override
+	public void run() {
+		long interval = m_interval * 1000000L;
+		long start = System.nanoTime();
+		m_startTime = start;
+
+		long keys = 0;
+		long axes = 0;
+		long accelerometer = 0;
+		long events = 0;
+
+		if (D) Log.d(LOG_NAME, "Starting " + m_sessionId + " with " + m_keyRate + " keys/s, " + m_axisRate + " axes/s and " + m_accelerometerRate + " accel/s");
+
+		for(long tick = 1; m_isRunning; tick++) {
+			long due = start + tick * interval;
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				try { Thread.sleep(wait / 1000000, (int)(wait % 1000000)); }
+				catch (InterruptedException ex) { break; }
+			}
+
+			//Each simulated read sends the events that are due by now, so a
+			// reader that falls behind catches up with larger reads like a real one
+			m_readTimestamp = System.nanoTime();
+			long elapsed = m_readTimestamp - start;
+
+			for(long target = m_keyRate * elapsed / 1000000000L; keys < target; keys++, events++) {
+				//Every second event releases the key that was pressed before
+				sendKeypress((keys & 1) == 0 ? FutureKeyCodes.ACTION_DOWN : FutureKeyCodes.ACTION_UP, KEYS[(int)((keys >> 1) % KEYS.length)], 0, false);
+			}
+
+			for(long target = m_axisRate * elapsed / 1000000000L; axes < target; axes++, events++)
+				sendDirectionalChange((int)(axes % AXIS_COUNT), (int)(axes % 255) - 127);
+
+			for(long target = m_accelerometerRate * elapsed / 1000000000L; accelerometer < target; accelerometer++, events++)
+				sendAccelerometerChange((int)(accelerometer % ACCELEROMETER_AXIS_COUNT), (int)(accelerometer % 255) - 127);
+
+			completeRead();
+			m_events = events;
+		}
+
+		if (D) Log.d(LOG_NAME, "Stopped " + m_sessionId + " after " + events + " events");
+	}
+
+	@Override
+	public void stop() {
+		if (m_isRunning) {
+			releaseKeys();
+			disconnectedBroadcast.putExtra(BluezService.EVENT_DISCONNECTED_ADDRESS, m_address);
+			m_context.sendBroadcast(disconnectedBroadcast);
+		}
+
+		super.stop();
+	}
+}
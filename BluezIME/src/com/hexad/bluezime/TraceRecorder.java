@@ -0,0 +1,135 @@
+/* Copyright (C) 2011, Kenneth Skovhede
+ * http://www.hexad.dk, opensource@hexad.dk
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package com.hexad.bluezime;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.hexad.bluezime.core.TraceFormat;
+import com.hexad.bluezime.core.TraceWriter;
+
+//Captures the raw streams of the connected devices to a trace file, see TraceFormat.
+//A trace file is started when the first session is opened, and closed
+// when the last session ends, so all controllers that are connected at
+// the same time end up in the same file
+public class TraceRecorder {
+
+	private static final boolean D = false;
+	private static final String LOG_NAME = "TraceRecorder";
+
+	private static final String TRACE_FOLDER = "traces";
+
+	private static final TraceRecorder m_instance = new TraceRecorder();
+
+	private TraceWriter m_writer = null;
+	private File m_file = null;
+	private int m_openSessions = 0;
+
+	public static TraceRecorder getInstance() {
+		return m_instance;
+	}
+
+	private TraceRecorder() {
+	}
+
+	//Returns the folder where the traces are stored, on external storage if we can write there.
+	//Before KitKat that needs WRITE_EXTERNAL_STORAGE, which we do not request,
+	// so the traces are kept in internal storage instead
+	public static File getTraceFolder(Context context) {
+		File root = context.getExternalFilesDir(null);
+		if (root != null) {
+			File folder = new File(root, TRACE_FOLDER);
+			if (folder.isDirectory() ? folder.canWrite() : folder.mkdirs())
+				return folder;
+		}
+		
+		return new File(context.getFilesDir(), TRACE_FOLDER);
+	}
+
+	//Starts recording a connection if capture is enabled in the preferences or
+	// if always is set, returns null if the connection is not recorded
+	public synchronized TraceWriter.Session openSession(Context context, String sessionId, String driverName, String address, boolean always) {
+		if (!always && !new Preferences(context).getCaptureTraces())
+			return null;
+
+		try {
+			if (m_writer == null) {
+				File folder = getTraceFolder(context);
+				if (!folder.isDirectory() && !folder.mkdirs())
+					throw new IOException("Unable to create folder " + folder);
+
+				String name = "trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + TraceFormat.FILE_EXTENSION;
+				m_file = new File(folder, name);
+				m_writer = new TraceWriter(new FileOutputStream(m_file));
+
+				Log.i(LOG_NAME, "Capturing raw data to " + m_file);
+			}
+		} catch (IOException ex) {
+			Log.w(LOG_NAME, "Failed to start trace: " + ex.toString());
+			m_writer = null;
+			m_file = null;
+			return null;
+		}
+
+		TraceWriter.Session session = m_writer.openSession(sessionId, driverName, address);
+		if (session == null) {
+			Log.w(LOG_NAME, "Trace " + m_file + " cannot hold more sessions, not capturing " + address);
+			return null;
+		}
+
+		if (D) Log.d(LOG_NAME, "Capturing session " + session.getIndex() + " for " + driverName + " on " + address);
+
+		m_openSessions++;
+		return session;
+	}
+
+	//Ends a session that was returned by openSession, and closes the trace file
+	// when no more sessions are open
+	public synchronized void closeSession(TraceWriter.Session session) {
+		session.close();
+
+		if (--m_openSessions > 0 || m_writer == null)
+			return;
+
+		long dropped = m_writer.getDroppedRecords();
+		try {
+			m_writer.close();
+		} catch (IOException ex) {
+			Log.w(LOG_NAME, "Failed to write trace " + m_file + ": " + ex.toString());
+		}
+
+		if (dropped > 0)
+			Log.w(LOG_NAME, "Trace " + m_file + " is missing " + dropped + " records");
+		else
+			Log.i(LOG_NAME, "Trace " + m_file + " completed");
+
+		m_writer = null;
+		m_file = null;
+	}
+
+	//Returns the file currently being written, or null if nothing is captured
+	public synchronized File getCurrentFile() {
+		return m_file;
+	}
+}
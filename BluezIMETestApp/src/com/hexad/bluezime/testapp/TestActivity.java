@@ -38,6 +38,16 @@ public class TestActivity extends Activity {
 	public static final String EVENT_DIRECTIONALCHANGE_DIRECTION = "direction";
 	public static final String EVENT_DIRECTIONALCHANGE_VALUE = "value";
 
+	public static final String EVENT_BATCH = "com.hexad.bluezime.batch";
+	public static final String EVENT_BATCH_DATA = "data";
+	public static final int EVENT_BATCH_FIELDS = 5;
+	public static final int EVENT_BATCH_FIELD_TYPE = 0;
+	public static final int EVENT_BATCH_FIELD_KEY = 1;
+	public static final int EVENT_BATCH_FIELD_ACTION = 2;
+	public static final int EVENT_BATCH_FIELD_VALUE = 4;
+	public static final int EVENT_BATCH_TYPE_KEYPRESS = 1;
+	public static final int EVENT_BATCH_TYPE_DIRECTIONALCHANGE = 2;
+
 	public static final String EVENT_CONNECTED = "com.hexad.bluezime.connected";
 	public static final String EVENT_CONNECTED_ADDRESS = "address";
 
@@ -53,6 +63,7 @@ public class TestActivity extends Activity {
 	public static final String REQUEST_CONNECT = "com.hexad.bluezime.connect";
 	public static final String REQUEST_CONNECT_ADDRESS = "address";
 	public static final String REQUEST_CONNECT_DRIVER = "driver";
+	public static final String REQUEST_CONNECT_BATCHED = "batched";
 	
 	public static final String REQUEST_DISCONNECT = "com.hexad.bluezime.disconnect";
 	
@@ -122,6 +133,7 @@ public class TestActivity extends Activity {
 	private CheckBox m_checkX;
 	private CheckBox m_checkY;
 	private CheckBox m_checkZ;
+	private CheckBox m_batchEvents;
 	
 	private SeekBar m_axisX1;
 	private SeekBar m_axisY1;
@@ -159,6 +171,7 @@ public class TestActivity extends Activity {
         m_connectData = (TableLayout)findViewById(R.id.ConnectionData);
         m_mac = (TextView)findViewById(R.id.MACAddress);
         m_driver = (Spinner)findViewById(R.id.DriverName);
+        m_batchEvents = (CheckBox)findViewById(R.id.BatchEvents);
         m_driver.setOnItemSelectedListener(new OnItemSelectedListener() {
 			@Override
 			public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
@@ -184,6 +197,7 @@ public class TestActivity extends Activity {
         
         registerReceiver(statusMonitor, new IntentFilter(EVENT_DIRECTIONALCHANGE));
         registerReceiver(statusMonitor, new IntentFilter(EVENT_KEYPRESS));
+        registerReceiver(statusMonitor, new IntentFilter(EVENT_BATCH));
         
         m_buttonMap.put(KEYCODE_BUTTON_A, m_checkA);
         m_buttonMap.put(KEYCODE_BUTTON_B, m_checkB);
@@ -209,6 +223,7 @@ public class TestActivity extends Activity {
 			        serviceIntent.putExtra(SESSION_ID, SESSION_NAME);
 			        serviceIntent.putExtra(REQUEST_CONNECT_ADDRESS, m_mac.getText().toString());
 			        serviceIntent.putExtra(REQUEST_CONNECT_DRIVER, m_selectedDriver);
+			        serviceIntent.putExtra(REQUEST_CONNECT_BATCHED, m_batchEvents.isChecked());
 			        startService(serviceIntent);
 				}
 			}
@@ -312,44 +327,62 @@ public class TestActivity extends Activity {
 			if (intent.getAction().equals(EVENT_DIRECTIONALCHANGE)) {
 				int value = intent.getIntExtra(EVENT_DIRECTIONALCHANGE_VALUE, 0);
 				int direction = intent.getIntExtra(EVENT_DIRECTIONALCHANGE_DIRECTION, 100);
-
-				SeekBar sbar = null;
-				switch (direction) {
-					case 0:
-						sbar = m_axisX1;
-						break;
-					case 1:
-						sbar = m_axisY1;
-						break;
-					case 2:
-						sbar = m_axisX2;
-						break;
-					case 3:
-						sbar = m_axisY2;
-						break;
-				}
-				
-				if (sbar != null) {
-					sbar.setProgress(Math.min(Math.max(0, 128 + value), sbar.getMax()));
-				}
-				else {
-					reportUnmatched(String.format(getString(R.string.unmatched_axis_event), direction + "", value + ""));
-				}
-				
 				
+				handleDirectionalChange(direction, value);
 			} else if (intent.getAction().equals(EVENT_KEYPRESS)) {
 				int key = intent.getIntExtra(EVENT_KEYPRESS_KEY, 0);
 				int action = intent.getIntExtra(EVENT_KEYPRESS_ACTION, 100);
 				
-				if (m_buttonMap.containsKey(key)) 
-					m_buttonMap.get(key).setChecked(action == KeyEvent.ACTION_DOWN);
-				else {
-					reportUnmatched(String.format(getString(action == KeyEvent.ACTION_DOWN ? R.string.unmatched_key_event_down : R.string.unmatched_key_event_up), key + ""));
+				handleKeypress(key, action);
+			} else if (intent.getAction().equals(EVENT_BATCH)) {
+				//Newer versions of Bluez-IME can pack all events from one report into a single broadcast
+				int[] data = intent.getIntArrayExtra(EVENT_BATCH_DATA);
+				if (data == null)
+					return;
+				
+				for(int i = 0; i + EVENT_BATCH_FIELDS <= data.length; i += EVENT_BATCH_FIELDS) {
+					if (data[i + EVENT_BATCH_FIELD_TYPE] == EVENT_BATCH_TYPE_KEYPRESS)
+						handleKeypress(data[i + EVENT_BATCH_FIELD_KEY], data[i + EVENT_BATCH_FIELD_ACTION]);
+					else if (data[i + EVENT_BATCH_FIELD_TYPE] == EVENT_BATCH_TYPE_DIRECTIONALCHANGE)
+						handleDirectionalChange(data[i + EVENT_BATCH_FIELD_KEY], data[i + EVENT_BATCH_FIELD_VALUE]);
 				}
 			}
 		}
 	};
 	
+	private void handleDirectionalChange(int direction, int value) {
+		SeekBar sbar = null;
+		switch (direction) {
+			case 0:
+				sbar = m_axisX1;
+				break;
+			case 1:
+				sbar = m_axisY1;
+				break;
+			case 2:
+				sbar = m_axisX2;
+				break;
+			case 3:
+				sbar = m_axisY2;
+				break;
+		}
+		
+		if (sbar != null) {
+			sbar.setProgress(Math.min(Math.max(0, 128 + value), sbar.getMax()));
+		}
+		else {
+			reportUnmatched(String.format(getString(R.string.unmatched_axis_event), direction + "", value + ""));
+		}
+	}
+	
+	private void handleKeypress(int key, int action) {
+		if (m_buttonMap.containsKey(key)) 
+			m_buttonMap.get(key).setChecked(action == KeyEvent.ACTION_DOWN);
+		else {
+			reportUnmatched(String.format(getString(action == KeyEvent.ACTION_DOWN ? R.string.unmatched_key_event_down : R.string.unmatched_key_event_up), key + ""));
+		}
+	}
+	
 	private void reportUnmatched(String entry) {
 		m_logAdapter.add(entry);
 		while (m_logAdapter.getCount() > 50)